@@ -0,0 +1,132 @@
+package com.example.andres.battle_bots;
+
+import android.app.Instrumentation;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.os.Bundle;
+import android.support.test.InstrumentationRegistry;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Collects one benchmark's numbers and publishes them in forms a script can diff between builds:
+ *
+ * - a JSON file per benchmark in the app's external files directory, falling back to internal
+ *   storage, with the device, build and every metric:
+ *
+ *     adb pull /sdcard/Android/data/com.example.andres.battle_bots/files/benchmarks
+ *
+ * - instrumentation status lines, one key per metric, in the output of
+ *
+ *     adb shell am instrument -r -w \
+ *         com.example.andres.battle_bots.test/android.support.test.runner.AndroidJUnitRunner
+ *
+ * - one line in logcat under the Benchmark tag.
+ *
+ * Metric names are snake_case with the unit last, e.g. touch_to_write_idle_p90_ms.
+ */
+public class BenchmarkResults {
+    private final static String TAG = "Benchmark";
+
+    // The code AndroidJUnitRunner uses for values reported while a test runs
+    private static final int STATUS_IN_PROGRESS = 2;
+
+    private final String mName;
+    private final JSONObject mMetrics = new JSONObject();
+
+    public BenchmarkResults(String name) {
+        mName = name;
+    }
+
+    public void put(String metric, double value) {
+        try {
+            mMetrics.put(metric, value);
+        } catch (JSONException e) {
+            // Only thrown for NaN and infinities, which no benchmark here produces
+            throw new IllegalArgumentException(metric + " = " + value, e);
+        }
+    }
+
+    /**
+     * Records p50, p90, p99 and max of a set of durations in nanoseconds, as milliseconds, along
+     * with how many there were.
+     */
+    public void putDistribution(String metric, long[] nanos, int count) {
+        put(metric + "_count", count);
+        if (count == 0) return;
+        final long[] sorted = Arrays.copyOf(nanos, count);
+        Arrays.sort(sorted);
+        put(metric + "_p50_ms", millis(percentile(sorted, 50)));
+        put(metric + "_p90_ms", millis(percentile(sorted, 90)));
+        put(metric + "_p99_ms", millis(percentile(sorted, 99)));
+        put(metric + "_max_ms", millis(sorted[count - 1]));
+    }
+
+    // Nearest-rank percentile of sorted values
+    static long percentile(long[] sorted, int percent) {
+        final int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    static double millis(long nanos) {
+        // Microsecond resolution is plenty and keeps the JSON readable
+        return Math.round(nanos / 1000.0) / 1000.0;
+    }
+
+    /**
+     * Writes the file, reports the status and logs the line.
+     *
+     * @throws IOException If the file could not be written.
+     */
+    public void publish() throws IOException {
+        final Instrumentation instrumentation = InstrumentationRegistry.getInstrumentation();
+        final Context context = instrumentation.getTargetContext();
+        final JSONObject report = new JSONObject();
+        try {
+            report.put("benchmark", mName);
+            report.put("device", Build.MANUFACTURER + " " + Build.MODEL);
+            report.put("sdk", Build.VERSION.SDK_INT);
+            report.put("version_code", context.getPackageManager()
+                    .getPackageInfo(context.getPackageName(), 0).versionCode);
+            report.put("timestamp_ms", System.currentTimeMillis());
+            report.put("metrics", mMetrics);
+        } catch (JSONException | PackageManager.NameNotFoundException e) {
+            throw new IOException(e);
+        }
+        final String json = report.toString();
+
+        File dir = context.getExternalFilesDir(null);
+        if (dir == null) dir = context.getFilesDir();
+        dir = new File(dir, "benchmarks");
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        final File file = new File(dir, mName + ".json");
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(json.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+
+        final Bundle status = new Bundle();
+        status.putString("benchmark", mName);
+        status.putString("file", file.getAbsolutePath());
+        final Iterator<String> metrics = mMetrics.keys();
+        while (metrics.hasNext()) {
+            final String metric = metrics.next();
+            status.putDouble(metric, mMetrics.optDouble(metric));
+        }
+        instrumentation.sendStatus(STATUS_IN_PROGRESS, status);
+        Log.i(TAG, json);
+    }
+}
@@ -0,0 +1,230 @@
+package com.example.andres.battle_bots;
+
+import android.app.Activity;
+import android.app.Instrumentation;
+import android.content.Intent;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.rule.ActivityTestRule;
+import android.support.test.runner.AndroidJUnit4;
+import android.view.MotionEvent;
+import android.view.View;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Taps the control screen's d-pads through the real input pipeline, against a
+ * {@link RecordingRadio} instead of Bluetooth, and times each touch to the write of its frame:
+ *
+ * - idle: one event at a time with the link quiet in between, i.e. the cost of the path from
+ *   the touch to the transport on its own,
+ * - burst: both d-pads mashed at 60 events a second, i.e. what a driver feels with the
+ *   scheduler's pacing and lanes at work. Presses replaced by a newer event for the same
+ *   channel before they went out are counted, not timed.
+ *
+ * Frame timing is recorded during the burst. Results go to BenchmarkResults under
+ * "control_latency". Needs an unlocked screen; runs without Bluetooth hardware, e.g. on an
+ * emulator.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ControlLatencyBenchmark {
+
+    // Two controls from each d-pad of the default profile, with their channels
+    private static final int[] BUTTONS = {
+            R.id.up_btn1, R.id.right_btn1, R.id.up_btn2, R.id.right_btn2
+    };
+    private static final int[] CHANNELS = {0, 1, 4, 5};
+
+    private static final int WARMUP_TAPS = 20;
+    private static final int IDLE_TAPS = 100;
+    // Longer than any pace the scheduler holds a frame for
+    private static final long IDLE_GAP_MS = 250;
+    private static final int BURST_EVENTS = 600;
+    private static final long BURST_GAP_MS = 16;
+    private static final long WRITE_TIMEOUT_MS = 2000;
+    private static final long READY_TIMEOUT_MS = 10000;
+
+    @Rule
+    public final ActivityTestRule<DeviceControlActivity> mRule =
+            new ActivityTestRule<DeviceControlActivity>(DeviceControlActivity.class, false, false);
+
+    private final ProtocolCodec mCodec =
+            ProtocolCodecs.forVersion(ProtocolCodecs.VERSION_COMPACT);
+    private final RecordingRadio mRadio = new RecordingRadio(4 * BURST_EVENTS);
+    private Instrumentation mInstrumentation;
+
+    @Before
+    public void setUp() {
+        mInstrumentation = InstrumentationRegistry.getInstrumentation();
+        BluetoothLeService.setFakeRadio(mRadio);
+    }
+
+    @After
+    public void tearDown() {
+        BluetoothLeService.setFakeRadio(null);
+    }
+
+    @Test
+    public void touchToWrite() throws Exception {
+        final DeviceControlActivity activity = mRule.launchActivity(controlIntent());
+        final Touches touches = new Touches(mInstrumentation, activity);
+        assertTrue("never drivable", awaitDrivable(touches, mRadio, READY_TIMEOUT_MS) >= 0);
+        final BenchmarkResults results = new BenchmarkResults("control_latency");
+
+        // Lets the JIT see the path before anything is timed
+        tap(touches, WARMUP_TAPS, IDLE_GAP_MS, null);
+        final long[] idle = new long[2 * IDLE_TAPS];
+        results.putDistribution("touch_to_write_idle", idle, tap(touches, IDLE_TAPS,
+                IDLE_GAP_MS, idle));
+
+        final FrameRecorder frames = new FrameRecorder(
+                (int) (4 * BURST_EVENTS * BURST_GAP_MS / 16));
+        frames.start(mInstrumentation);
+        burst(touches, results);
+        frames.stop(mInstrumentation);
+        frames.report(results, "burst_frame",
+                activity.getWindowManager().getDefaultDisplay().getRefreshRate());
+        results.publish();
+    }
+
+    // One event at a time, each awaited; returns how many were timed into latencies, if given
+    private int tap(Touches touches, int taps, long gapMillis, long[] latencies)
+            throws InterruptedException {
+        int timed = 0;
+        for (int i = 0; i < 2 * taps; i++) {
+            final int button = (i / 2) % BUTTONS.length;
+            final boolean pressed = i % 2 == 0;
+            final byte[] frame = mCodec.encodeButton(CHANNELS[button], pressed);
+            final long touched = touches.send(button, pressed);
+            final long written = mRadio.awaitWrite(frame, touched, WRITE_TIMEOUT_MS);
+            assertTrue("event " + i + " was never written", written >= 0);
+            if (latencies != null) latencies[timed++] = written - touched;
+            SystemClock.sleep(gapMillis);
+        }
+        return timed;
+    }
+
+    // Every button toggled in turn, without waiting for the link, then matched up afterwards
+    private void burst(Touches touches, BenchmarkResults results) throws InterruptedException {
+        mRadio.clear();
+        final long[] touched = new long[BURST_EVENTS];
+        final int[] buttons = new int[BURST_EVENTS];
+        final boolean[] pressed = new boolean[BURST_EVENTS];
+        final boolean[] down = new boolean[BUTTONS.length];
+        for (int i = 0; i < BURST_EVENTS; i++) {
+            // Alternates between the d-pads so both control groups are busy
+            buttons[i] = (i % 2) * 2 + (i / 2) % 2;
+            down[buttons[i]] = !down[buttons[i]];
+            pressed[i] = down[buttons[i]];
+            touched[i] = touches.send(buttons[i], pressed[i]);
+            SystemClock.sleep(BURST_GAP_MS);
+        }
+        // Lets go of anything still held and lets the queues drain
+        for (int button = 0; button < BUTTONS.length; button++) {
+            if (down[button]) touches.send(button, false);
+        }
+        SystemClock.sleep(WRITE_TIMEOUT_MS);
+
+        final long[] latencies = new long[BURST_EVENTS];
+        int timed = 0;
+        int replaced = 0;
+        for (int i = 0; i < BURST_EVENTS; i++) {
+            // Only counts if written before the next event on the same button replaced it
+            long next = Long.MAX_VALUE;
+            for (int j = i + 1; j < BURST_EVENTS; j++) {
+                if (buttons[j] == buttons[i]) {
+                    next = touched[j];
+                    break;
+                }
+            }
+            final long written = mRadio.findWrite(
+                    mCodec.encodeButton(CHANNELS[buttons[i]], pressed[i]), touched[i]);
+            if (written >= 0 && written < next) {
+                latencies[timed++] = written - touched[i];
+            } else {
+                replaced++;
+            }
+        }
+        results.putDistribution("touch_to_write_burst", latencies, timed);
+        results.put("touch_to_write_burst_replaced", replaced);
+    }
+
+    static Intent controlIntent() {
+        return new Intent(InstrumentationRegistry.getTargetContext(), DeviceControlActivity.class)
+                .putExtra(DeviceControlActivity.EXTRAS_DEVICE_NAME, RecordingRadio.NAME)
+                .putExtra(DeviceControlActivity.EXTRAS_DEVICE_ADDRESS, RecordingRadio.ADDRESS);
+    }
+
+    /**
+     * Taps the first button until something makes it to the radio, which nothing can before the
+     * screen has its link.
+     *
+     * @return When the first frame was written, from nanoTime(), or -1 on timeout.
+     */
+    static long awaitDrivable(Touches touches, RecordingRadio radio, long timeoutMillis)
+            throws InterruptedException {
+        final byte[] press = ProtocolCodecs.forVersion(ProtocolCodecs.VERSION_COMPACT)
+                .encodeButton(CHANNELS[0], true);
+        final long deadline = SystemClock.uptimeMillis() + timeoutMillis;
+        while (SystemClock.uptimeMillis() < deadline) {
+            final long touched = touches.send(0, true);
+            radio.awaitWrite(press, touched, 10);
+            // A press held back by the motion pace is replaced by the release, which still
+            // shows the link is up
+            touches.send(0, false);
+            final long written = radio.findWrite(null, touched);
+            if (written >= 0) return written;
+        }
+        return -1;
+    }
+
+    /**
+     * Injects touches on the benchmark's buttons the way the touchscreen would, through the
+     * window's input channel, so dispatch and the views' listeners are part of what is timed.
+     */
+    static class Touches {
+        private final Instrumentation mInstrumentation;
+        private final float[] mX = new float[BUTTONS.length];
+        private final float[] mY = new float[BUTTONS.length];
+        private final long[] mDownTime = new long[BUTTONS.length];
+
+        Touches(Instrumentation instrumentation, final Activity activity) {
+            mInstrumentation = instrumentation;
+            instrumentation.runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    final int[] location = new int[2];
+                    for (int button = 0; button < BUTTONS.length; button++) {
+                        final View view = activity.findViewById(BUTTONS[button]);
+                        view.getLocationOnScreen(location);
+                        mX[button] = location[0] + view.getWidth() / 2f;
+                        mY[button] = location[1] + view.getHeight() / 2f;
+                    }
+                }
+            });
+        }
+
+        /**
+         * Presses or releases a button, returning once the app has handled the event.
+         *
+         * @return When the event was injected, from nanoTime().
+         */
+        long send(int button, boolean pressed) {
+            final long now = SystemClock.uptimeMillis();
+            if (pressed) mDownTime[button] = now;
+            final MotionEvent event = MotionEvent.obtain(mDownTime[button], now,
+                    pressed ? MotionEvent.ACTION_DOWN : MotionEvent.ACTION_UP,
+                    mX[button], mY[button], 0);
+            final long injected = System.nanoTime();
+            mInstrumentation.sendPointerSync(event);
+            event.recycle();
+            return injected;
+        }
+    }
+}
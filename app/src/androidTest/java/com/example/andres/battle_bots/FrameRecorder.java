@@ -0,0 +1,72 @@
+package com.example.andres.battle_bots;
+
+import android.app.Instrumentation;
+import android.view.Choreographer;
+
+/**
+ * Records the time of every vsync the main thread gets to while it runs, as a measure of jank
+ * that works on any API level. A frame callback asks for every vsync, so a gap of more than one
+ * refresh period between two callbacks means the main thread was busy through a frame the
+ * screen could have shown.
+ */
+public class FrameRecorder implements Choreographer.FrameCallback {
+
+    private final long[] mFrames;
+    private int mCount;
+    private boolean mRunning;
+
+    public FrameRecorder(int capacity) {
+        mFrames = new long[capacity];
+    }
+
+    public void start(Instrumentation instrumentation) {
+        instrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mCount = 0;
+                mRunning = true;
+                Choreographer.getInstance().postFrameCallback(FrameRecorder.this);
+            }
+        });
+    }
+
+    public void stop(Instrumentation instrumentation) {
+        instrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mRunning = false;
+                Choreographer.getInstance().removeFrameCallback(FrameRecorder.this);
+            }
+        });
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (!mRunning) return;
+        if (mCount < mFrames.length) {
+            mFrames[mCount++] = frameTimeNanos;
+        }
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    /**
+     * Adds the frame intervals and how many frames were janky, i.e. came more than half a period
+     * late, to the results. Call after {@link #stop(Instrumentation)}.
+     *
+     * @param refreshRate The display's refresh rate in Hz.
+     */
+    public void report(BenchmarkResults results, String metric, float refreshRate) {
+        final long period = (long) (1e9 / refreshRate);
+        final int intervals = Math.max(0, mCount - 1);
+        final long[] gaps = new long[intervals];
+        int janky = 0;
+        for (int i = 0; i < intervals; i++) {
+            gaps[i] = mFrames[i + 1] - mFrames[i];
+            if (gaps[i] > period + period / 2) janky++;
+        }
+        results.putDistribution(metric + "_interval", gaps, intervals);
+        results.put(metric + "_janky_frames", janky);
+        results.put(metric + "_janky_percent",
+                intervals == 0 ? 0 : Math.round(1000.0 * janky / intervals) / 10.0);
+    }
+}
@@ -0,0 +1,84 @@
+package com.example.andres.battle_bots;
+
+import java.util.Arrays;
+
+/**
+ * A {@link BluetoothLeService.FakeRadio} robot that accepts every frame and remembers when each
+ * one was written, for the benchmarks to match against the input that caused it. Reports the
+ * compact protocol without motor frames, so every profile control goes out as a button frame.
+ */
+public class RecordingRadio implements BluetoothLeService.FakeRadio {
+
+    public static final String ADDRESS = "00:11:22:33:44:55";
+    public static final String NAME = "Benchmark robot";
+
+    private final long[] mTimes;
+    private final byte[][] mFrames;
+    private int mCount;
+
+    public RecordingRadio(int capacity) {
+        mTimes = new long[capacity];
+        mFrames = new byte[capacity][];
+    }
+
+    @Override
+    public int getProtocolVersion() {
+        return ProtocolCodecs.VERSION_COMPACT;
+    }
+
+    @Override
+    public synchronized boolean write(String address, byte[] frame) {
+        // Stamped first, so bookkeeping is not counted against the app
+        final long now = System.nanoTime();
+        if (mCount < mTimes.length) {
+            mTimes[mCount] = now;
+            // Codec frames are shared, but ReliableLink reuses its buffer
+            mFrames[mCount] = Arrays.copyOf(frame, frame.length);
+            mCount++;
+        }
+        notifyAll();
+        return true;
+    }
+
+    public synchronized void clear() {
+        mCount = 0;
+    }
+
+    public synchronized int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Finds the first write of the frame at or after a time, from nanoTime().
+     *
+     * @param frame The frame to look for, or null for any.
+     *
+     * @return When it was written, or -1 if it never was.
+     */
+    public synchronized long findWrite(byte[] frame, long notBefore) {
+        for (int i = 0; i < mCount; i++) {
+            if (mTimes[i] >= notBefore && (frame == null || Arrays.equals(mFrames[i], frame))) {
+                return mTimes[i];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Waits for the frame to be written at or after a time.
+     *
+     * @return When it was written, or -1 on timeout.
+     */
+    public synchronized long awaitWrite(byte[] frame, long notBefore, long timeoutMillis)
+            throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        long written = findWrite(frame, notBefore);
+        while (written < 0) {
+            final long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) return -1;
+            wait(remaining);
+            written = findWrite(frame, notBefore);
+        }
+        return written;
+    }
+}
@@ -0,0 +1,201 @@
+package com.example.andres.battle_bots;
+
+import android.app.Activity;
+import android.app.Application;
+import android.app.Instrumentation;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.view.ViewTreeObserver;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Times each screen from startActivity() to its first draw, cold and warm:
+ *
+ * - cold: the service is stopped, so there is no session and the control screen has to bring
+ *   up its link first. The process itself stays up, since instrumentation runs inside it; the
+ *   first cold launch of each screen is reported on its own, as it also pays for class loading
+ *   when this benchmark runs first in a fresh process, e.g. with
+ *   -e class com.example.andres.battle_bots.StartupBenchmark.
+ * - warm: the screen is launched again with whatever the last launch left running, i.e. for the
+ *   control screen the service and its live session, as when coming back to the app.
+ *
+ * For the control screen, the time until a tap first reaches the {@link RecordingRadio} is
+ * reported too. Results go to BenchmarkResults under "startup".
+ */
+@RunWith(AndroidJUnit4.class)
+public class StartupBenchmark {
+
+    private static final int LAUNCHES = 10;
+    private static final long TIMEOUT_S = 10;
+
+    private Instrumentation mInstrumentation;
+    private Context mContext;
+    private final RecordingRadio mRadio = new RecordingRadio(4 * LAUNCHES * 100);
+    private final LaunchWatcher mWatcher = new LaunchWatcher();
+
+    @Before
+    public void setUp() {
+        mInstrumentation = InstrumentationRegistry.getInstrumentation();
+        mContext = mInstrumentation.getTargetContext();
+        BluetoothLeService.setFakeRadio(mRadio);
+        ((Application) mContext.getApplicationContext()).registerActivityLifecycleCallbacks(
+                mWatcher);
+    }
+
+    @After
+    public void tearDown() {
+        ((Application) mContext.getApplicationContext()).unregisterActivityLifecycleCallbacks(
+                mWatcher);
+        stopService();
+        BluetoothLeService.setFakeRadio(null);
+    }
+
+    @Test
+    public void coldAndWarmStartup() throws Exception {
+        final BenchmarkResults results = new BenchmarkResults("startup");
+        // The list screen as the launcher opens it, minus the jump to the last robot
+        final Intent scan = new Intent(mContext, DeviceScanActivity.class)
+                .setAction(Intent.ACTION_MAIN)
+                .addCategory(Intent.CATEGORY_LAUNCHER)
+                .putExtra(DeviceScanActivity.EXTRA_SKIP_FAST_START, true);
+        measure(results, "scan", scan, false);
+        measure(results, "control", ControlLatencyBenchmark.controlIntent(), true);
+        results.publish();
+    }
+
+    // Cold launches first, so the very first one is the first of the screen in this process
+    private void measure(BenchmarkResults results, String screen, Intent intent, boolean drive)
+            throws Exception {
+        final long[] draw = new long[LAUNCHES];
+        final long[] drivable = new long[LAUNCHES];
+        for (int i = 0; i < LAUNCHES; i++) {
+            stopService();
+            launch(intent, draw, drivable, i, drive);
+        }
+        results.put(screen + "_first_cold_draw_ms", BenchmarkResults.millis(draw[0]));
+        results.putDistribution(screen + "_cold_draw", draw, LAUNCHES);
+        if (drive) results.putDistribution(screen + "_cold_drivable", drivable, LAUNCHES);
+
+        // One unmeasured launch to get the service and session up, which stay from here on
+        launch(intent, draw, drivable, 0, drive);
+        for (int i = 0; i < LAUNCHES; i++) {
+            launch(intent, draw, drivable, i, drive);
+        }
+        results.putDistribution(screen + "_warm_draw", draw, LAUNCHES);
+        if (drive) results.putDistribution(screen + "_warm_drivable", drivable, LAUNCHES);
+    }
+
+    // Starts the screen, waits for its first draw and, if asked, for a tap to go out, then ends it
+    private void launch(Intent intent, long[] draw, long[] drivable, int index, boolean drive)
+            throws Exception {
+        mWatcher.expect();
+        final long started = System.nanoTime();
+        mContext.startActivity(new Intent(intent).addFlags(Intent.FLAG_ACTIVITY_NEW_TASK));
+        assertTrue("never drawn", mWatcher.mDrawn.await(TIMEOUT_S, TimeUnit.SECONDS));
+        draw[index] = mWatcher.mDrawnAt - started;
+        final Activity activity = mWatcher.mActivity;
+        if (drive) {
+            final long written = ControlLatencyBenchmark.awaitDrivable(
+                    new ControlLatencyBenchmark.Touches(mInstrumentation, activity), mRadio,
+                    TIMEOUT_S * 1000);
+            assertTrue("never drivable", written >= 0);
+            drivable[index] = written - started;
+        }
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                activity.finish();
+            }
+        });
+        assertTrue("never destroyed", mWatcher.mDestroyed.await(TIMEOUT_S, TimeUnit.SECONDS));
+        // Lets the last frames and the unbind settle so the next launch starts from quiet
+        mInstrumentation.waitForIdleSync();
+        SystemClock.sleep(200);
+    }
+
+    // Ends any session and stops the service; only possible once no screen is bound to it
+    private void stopService() {
+        mContext.stopService(new Intent(mContext, BluetoothLeService.class));
+        mInstrumentation.waitForIdleSync();
+    }
+
+    /**
+     * Catches the next activity to be created and notes when its window first draws, from
+     * nanoTime(), and when it is destroyed.
+     */
+    private static class LaunchWatcher implements Application.ActivityLifecycleCallbacks {
+        volatile CountDownLatch mDrawn;
+        volatile CountDownLatch mDestroyed;
+        volatile long mDrawnAt;
+        volatile Activity mActivity;
+
+        void expect() {
+            mActivity = null;
+            mDrawn = new CountDownLatch(1);
+            mDestroyed = new CountDownLatch(1);
+        }
+
+        @Override
+        public void onActivityCreated(final Activity activity, Bundle savedInstanceState) {
+            if (mActivity != null) return;
+            mActivity = activity;
+            final ViewTreeObserver observer =
+                    activity.getWindow().getDecorView().getViewTreeObserver();
+            observer.addOnDrawListener(new ViewTreeObserver.OnDrawListener() {
+                @Override
+                public void onDraw() {
+                    if (mDrawn.getCount() == 0) return;
+                    mDrawnAt = System.nanoTime();
+                    mDrawn.countDown();
+                    // Listeners cannot be removed while the tree is dispatching to them
+                    final ViewTreeObserver.OnDrawListener listener = this;
+                    activity.getWindow().getDecorView().post(new Runnable() {
+                        @Override
+                        public void run() {
+                            activity.getWindow().getDecorView().getViewTreeObserver()
+                                    .removeOnDrawListener(listener);
+                        }
+                    });
+                }
+            });
+        }
+
+        @Override
+        public void onActivityDestroyed(Activity activity) {
+            if (activity == mActivity) mDestroyed.countDown();
+        }
+
+        @Override
+        public void onActivityStarted(Activity activity) {
+        }
+
+        @Override
+        public void onActivityResumed(Activity activity) {
+        }
+
+        @Override
+        public void onActivityPaused(Activity activity) {
+        }
+
+        @Override
+        public void onActivityStopped(Activity activity) {
+        }
+
+        @Override
+        public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.example.andres.battle_bots;
+
+/**
+ * The original protocol: three ASCII characters per event. The first two name the button
+ * (u1 = up on d-pad 1, l2 = left on d-pad 2, ...) and the last one is n for on or f for off.
+ */
+public class AsciiProtocolCodec implements ProtocolCodec {
+
+    // Button names in channel order
+    private static final String[] BUTTONS = {"u1", "r1", "d1", "l1", "u2", "r2", "d2", "l2"};
+
+    private final byte[][] mOnFrames = new byte[BUTTONS.length][];
+    private final byte[][] mOffFrames = new byte[BUTTONS.length][];
+    private final byte[][] mStopAllFrames;
+
+    public AsciiProtocolCodec() {
+        for (int i = 0; i < BUTTONS.length; i++) {
+            mOnFrames[i] = (BUTTONS[i] + "n").getBytes();
+            mOffFrames[i] = (BUTTONS[i] + "f").getBytes();
+        }
+        // Every off code, split per d-pad so each write fits in one 20 byte ATT packet
+        mStopAllFrames = new byte[][] {
+                "u1fr1fd1fl1f".getBytes(),
+                "u2fr2fd2fl2f".getBytes()
+        };
+    }
+
+    @Override
+    public String getName() {
+        return "ascii";
+    }
+
+    @Override
+    public int getChannelCount() {
+        return BUTTONS.length;
+    }
+
+    @Override
+    public byte[] encodeButton(int channel, boolean pressed) {
+        return pressed ? mOnFrames[channel] : mOffFrames[channel];
+    }
+
+    @Override
+    public byte[][] encodeStopAll() {
+        return mStopAllFrames;
+    }
+
+    // Eight three-letter codes would be larger than the events they replace
+    @Override
+    public byte[] encodeFullState(int pressedMask) {
+        return null;
+    }
+
+    // The ASCII firmware only knows buttons
+    @Override
+    public byte[] encodeMotors(int left, int right) {
+        return null;
+    }
+}
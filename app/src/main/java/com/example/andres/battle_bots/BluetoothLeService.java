@@ -16,6 +16,8 @@
 
 package com.example.andres.battle_bots;
 
+import android.app.Notification;
+import android.app.PendingIntent;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
@@ -26,32 +28,95 @@ import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
+import android.bluetooth.BluetoothSocket;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
 import android.os.IBinder;
 import android.util.Log;
 
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 
 /**
  * Service for managing connection and data communication with a GATT server hosted on a
  * given Bluetooth LE device.
+ *
+ * The service is started (not just bound) and runs in the foreground while a session is open, so
+ * the GATT connection outlives any single activity. Activities bind to it to send commands and
+ * reattach to the live link when they come back. The session is only torn down by an explicit
+ * {@link #endSession()}, or after {@link #IDLE_DISCONNECT_MS} with no activity bound.
+ *
+ * When pre-connection is enabled the service also keeps warm sessions to known robots seen while
+ * scanning. Only the active session receives commands and produces broadcasts; switching to a warm
+ * session that is already ready is just a change of the active pointer.
+ *
+ * Link metrics (see {@link LinkMetrics}) and the state of every session are printed by
+ * {@link #dump(FileDescriptor, PrintWriter, String[])}, i.e. by {@code adb shell dumpsys}. Given
+ * the arguments {@code log <tag> <level>} or {@code log <tag> sample <n>}, it sets a
+ * {@link RingLog} tag's level or sampling instead, e.g. {@code log rx off} to stop recording
+ * notifications or {@code log rx sample 10} to keep one in ten.
  */
 public class BluetoothLeService extends Service {
     private final static String TAG = BluetoothLeService.class.getSimpleName();
 
+    // Every notification is recorded in the RingLog rather than logcat
+    private static final RingLog.Tag LOG_RX = RingLog.tag("rx");
+    private static final RingLog.Event LOG_NOTIFICATION =
+            RingLog.event(LOG_RX, RingLog.DEBUG, "notification len=%d head=%016x");
+
+    // Levels a RingLog tag can be set to through dump()
+    private static final List<String> LOG_LEVEL_NAMES =
+            Arrays.asList("verbose", "debug", "info", "warn", "off");
+    private static final int[] LOG_LEVELS =
+            {RingLog.VERBOSE, RingLog.DEBUG, RingLog.INFO, RingLog.WARN, RingLog.OFF};
+
     // Instantiates objects we will use to communicate
     private BluetoothManager mBluetoothManager;
     private BluetoothAdapter mBluetoothAdapter;
-    private String mBluetoothDeviceAddress;
-    private BluetoothGatt mBluetoothGatt;
-    private int mConnectionState = STATE_DISCONNECTED;
 
-    private static final int STATE_DISCONNECTED = 0;
-    private static final int STATE_CONNECTING = 1;
-    private static final int STATE_CONNECTED = 2;
+    // Every session we hold, keyed by device address, and the one commands currently go to
+    private final ConcurrentHashMap<String, GattSession> mSessions =
+            new ConcurrentHashMap<String, GattSession>();
+    private volatile GattSession mActive;
+
+    // Group of each command channel and share per group, from the controller profile in use
+    private volatile int[] mChannelGroups = new int[CommandScheduler.CHANNEL_SLOTS];
+    private volatile int[] mGroupWeights = {1, 1, 1, 1};
+
+    // Phones typically manage 4 to 7 simultaneous LE links; stay well under that
+    public static final int MAX_OPEN_SESSIONS = 3;
+
+    // Whether sessions other than the active one are kept open
+    private boolean mKeepWarm = false;
+
+    // How long the link stays up with no activity bound before the session is closed
+    public static final long IDLE_DISCONNECT_MS = 2 * 60 * 1000;
+
+    private static final int NOTIFICATION_ID = 1;
+
+    private final Handler mHandler = new Handler();
+    private boolean mForeground = false;
+
+    // Request results are handed to callers on the main thread
+    private final Executor mMainExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            mHandler.post(command);
+        }
+    };
 
     // Defines various action events
     public final static String ACTION_GATT_CONNECTED =
@@ -64,6 +129,27 @@ public class BluetoothLeService extends Service {
             "com.example.andres.battle_bots.ACTION_DATA_AVAILABLE";
     public final static String EXTRA_DATA =
             "com.example.andres.battle_bots.EXTRA_DATA";
+    // Start extra: connect to this address right away, before any activity has bound
+    public final static String EXTRA_CONNECT_ADDRESS =
+            "com.example.andres.battle_bots.EXTRA_CONNECT_ADDRESS";
+    public final static String ACTION_EMERGENCY_STOP_RESULT =
+            "com.example.andres.battle_bots.ACTION_EMERGENCY_STOP_RESULT";
+    public final static String EXTRA_STOP_CONFIRMED =
+            "com.example.andres.battle_bots.EXTRA_STOP_CONFIRMED";
+    public final static String EXTRA_STOP_TOTAL =
+            "com.example.andres.battle_bots.EXTRA_STOP_TOTAL";
+    public final static String EXTRA_STOP_WORST_MS =
+            "com.example.andres.battle_bots.EXTRA_STOP_WORST_MS";
+
+    // Robots that have not confirmed an emergency stop within this time are reported as failed
+    public static final long EMERGENCY_STOP_TIMEOUT_MS = 500;
+
+    // Progress of the current emergency stop across all links, guarded by mStopLock
+    private final Object mStopLock = new Object();
+    private int mStopTotal;
+    private int mStopResolved;
+    private int mStopConfirmed;
+    private long mStopWorstMillis;
 
     // Defines some sample UUIDs. See SampleGattAttributes.java for the data within each UUID
     public final static UUID UUID_HM_RX_TX =
@@ -76,6 +162,37 @@ public class BluetoothLeService extends Service {
             UUID.fromString(SampleGattAttributes.UUID_TX);
     public final static UUID UUID_RX =
             UUID.fromString(SampleGattAttributes.UUID_RX);
+    public final static UUID UUID_PROTOCOL_VERSION =
+            UUID.fromString(SampleGattAttributes.UUID_PROTOCOL_VERSION);
+    private final static UUID UUID_CLIENT_CHARACTERISTIC_CONFIG =
+            UUID.fromString(SampleGattAttributes.CLIENT_CHARACTERISTIC_CONFIG);
+    private final static UUID UUID_UART_SERVICE =
+            UUID.fromString(SampleGattAttributes.UUID_UART_SERVICE);
+
+    /**
+     * Stands in for the radio, so the app can be driven on a device or emulator without Bluetooth,
+     * e.g. by the benchmarks in androidTest. While one is installed, connect() brings up a session
+     * that is ready at once and hands every command frame to it instead of writing to TX.
+     */
+    public interface FakeRadio {
+        // Protocol version byte the fake robot reports, see ProtocolCodecs
+        int getProtocolVersion();
+
+        // Called instead of a GATT write, on the thread that sent the command; false if busy. An
+        // accepted write completes on the main thread right after, as a fast radio would.
+        boolean write(String address, byte[] frame);
+    }
+
+    private static volatile FakeRadio sFakeRadio;
+
+    // Installs a fake radio, or removes it with null; sessions opened before keep what they had
+    public static void setFakeRadio(FakeRadio radio) {
+        sFakeRadio = radio;
+    }
+
+    public static boolean hasFakeRadio() {
+        return sFakeRadio != null;
+    }
 
 
 
@@ -84,30 +201,48 @@ public class BluetoothLeService extends Service {
     private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
         @Override
         public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            String intentAction;
+            // Late callbacks from a client we already closed must not touch the current session
+            final GattSession session = sessionFor(gatt);
+            if (session == null) return;
+            final ConnectionStateMachine stateMachine = session.stateMachine;
+
             if (newState == BluetoothProfile.STATE_CONNECTED) {
-                intentAction = ACTION_GATT_CONNECTED;
-                mConnectionState = STATE_CONNECTED;
-                broadcastUpdate(intentAction);
-                Log.i(TAG, "Connected to GATT server.");
+                if (!stateMachine.transition(ConnectionStateMachine.State.CONNECTING,
+                        ConnectionStateMachine.State.DISCOVERING)) {
+                    Log.w(TAG, "Connected while " + stateMachine.getState() + ", ignoring.");
+                    return;
+                }
+                broadcastUpdate(session, ACTION_GATT_CONNECTED);
+                Log.i(TAG, "Connected to GATT server " + session.address);
                 // Attempts to discover services after successful connection.
                 Log.i(TAG, "Attempting to start service discovery:" +
-                        mBluetoothGatt.discoverServices());
+                        gatt.discoverServices());
 
             } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                intentAction = ACTION_GATT_DISCONNECTED;
-                mConnectionState = STATE_DISCONNECTED;
-                Log.i(TAG, "Disconnected from GATT server.");
-                broadcastUpdate(intentAction);
+                if (stateMachine.moveTo(ConnectionStateMachine.State.DISCONNECTED)) {
+                    Log.i(TAG, "Disconnected from GATT server " + session.address);
+                    broadcastUpdate(session, ACTION_GATT_DISCONNECTED);
+                }
             }
         }
 
         @Override
         public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            final GattSession session = sessionFor(gatt);
+            if (session == null) return;
+
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED);
+                findUartCharacteristics(session);
+                // Newer firmware tells us which protocol it speaks; the link is ready once known
+                final BluetoothGattCharacteristic version = findCharacteristic(gatt,
+                        UUID_PROTOCOL_VERSION);
+                if (version == null || !gatt.readCharacteristic(version)) {
+                    onProtocolNegotiated(session, ProtocolCodecs.VERSION_ASCII);
+                }
             } else {
                 Log.w(TAG, "onServicesDiscovered received: " + status);
+                session.stateMachine.moveTo(ConnectionStateMachine.State.DISCONNECTING);
+                gatt.disconnect();
             }
         }
 
@@ -115,42 +250,408 @@ public class BluetoothLeService extends Service {
         public void onCharacteristicRead(BluetoothGatt gatt,
                                          BluetoothGattCharacteristic characteristic,
                                          int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+            if (UUID_PROTOCOL_VERSION.equals(characteristic.getUuid())) {
+                final GattSession session = sessionFor(gatt);
+                final byte[] value = characteristic.getValue();
+                final boolean read = status == BluetoothGatt.GATT_SUCCESS && value != null;
+                if (session != null) {
+                    onProtocolNegotiated(session, read && value.length > 0
+                            ? value[0] & 0xFF : ProtocolCodecs.VERSION_ASCII);
+                    // A second byte is the PSM of an L2CAP channel the robot listens on
+                    if (read && value.length > 1 && value[1] != 0) {
+                        openL2cap(session, value[1] & 0xFF);
+                    }
+                }
+                return;
+            }
+            if (status == BluetoothGatt.GATT_SUCCESS && isActive(gatt)) {
+                broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic.getValue());
+            }
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt,
+                                          BluetoothGattCharacteristic characteristic,
+                                          int status) {
+            final GattSession session = sessionFor(gatt);
+            if (session == null) return;
+            // An emergency stop owns the link until all of its frames are through
+            if (onStopFrameWritten(session, status == BluetoothGatt.GATT_SUCCESS)) return;
+            final CommandScheduler scheduler = session.scheduler;
+            if (scheduler != null) {
+                scheduler.onWriteComplete(status == BluetoothGatt.GATT_SUCCESS);
             }
         }
 
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt,
                                             BluetoothGattCharacteristic characteristic) {
-            broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+            final GattSession session = sessionFor(gatt);
+            if (session != null && UUID_RX.equals(characteristic.getUuid())) {
+                onRobotData(session, characteristic.getValue());
+                return;
+            }
+            LinkMetrics.NOTIFICATIONS.mark();
+            if (isActive(gatt)) {
+                broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic.getValue());
+            }
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
+                                      int status) {
+            final GattSession session = sessionFor(gatt);
+            if (session == null || !UUID_RX.equals(descriptor.getCharacteristic().getUuid())) {
+                return;
+            }
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.w(TAG, session.address + " refused RX notifications: " + status);
+            }
+            onSetupComplete(session);
+        }
+
+        @Override
+        public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
+            final GattSession session = sessionFor(gatt);
+            final LinkQualityMonitor quality = session == null ? null : session.quality;
+            if (status != BluetoothGatt.GATT_SUCCESS || quality == null) return;
+            quality.onRssi(rssi);
+            if (isActive(gatt)) {
+                LinkMetrics.RSSI.set(rssi);
+                LinkMetrics.LINK_QUALITY.set(quality.getScore());
+            }
         }
     };
 
+    /**
+     * Handles a packet from the robot, whether it came as an RX notification or over the L2CAP
+     * channel. May be called on any thread.
+     */
+    private void onRobotData(GattSession session, byte[] data) {
+        LinkMetrics.NOTIFICATIONS.mark();
+        // Acknowledgements for reliable framing are consumed here, never shown as data
+        final ReliableLink reliable = session.reliable;
+        final CommandScheduler scheduler = session.scheduler;
+        if (reliable != null && scheduler != null) {
+            boolean consumed;
+            synchronized (scheduler) {
+                consumed = reliable.onReceive(data);
+            }
+            if (consumed) {
+                // Resends anything the robot reported missing
+                scheduler.pump();
+                return;
+            }
+        }
+        // So are responses to requests, which go to whoever asked
+        final RobotRequests requests = session.requests;
+        if (requests != null && requests.onReceive(data)) {
+            return;
+        }
+        if (session == mActive) {
+            broadcastUpdate(ACTION_DATA_AVAILABLE, data);
+        }
+    }
+
+    /**
+     * Opens an LE L2CAP channel to the robot in the background. Once it is up, commands and
+     * telemetry move to it; until then, and whenever it fails, the TX/RX characteristics carry
+     * them. The API only exists from Android 10, so it is looked up by reflection.
+     */
+    private void openL2cap(final GattSession session, final int psm) {
+        final BluetoothGatt gatt = session.gatt;
+        if (Build.VERSION.SDK_INT < 29 || gatt == null) return;
+        final BluetoothDevice device = gatt.getDevice();
+        new Thread("l2cap-connect") {
+            @Override
+            public void run() {
+                BluetoothSocket socket = null;
+                try {
+                    final Method create = BluetoothDevice.class.getMethod(
+                            "createInsecureL2capChannel", int.class);
+                    socket = (BluetoothSocket) create.invoke(device, psm);
+                    // Blocks until the channel is up or refused
+                    socket.connect();
+                    final L2capListener listener = new L2capListener(session);
+                    final L2capLink link = new L2capLink(socket.getInputStream(),
+                            socket.getOutputStream(), socket, listener);
+                    listener.link = link;
+                    if (session.gatt != gatt) {
+                        // The connection went away while the channel was opening
+                        socket.close();
+                        return;
+                    }
+                    link.start();
+                    session.l2cap = link;
+                    Log.i(TAG, session.address + " switched to L2CAP channel " + psm);
+                } catch (NoSuchMethodException | IllegalAccessException
+                        | InvocationTargetException | IOException e) {
+                    Log.w(TAG, session.address + " has no L2CAP channel, staying on GATT", e);
+                    if (socket != null) {
+                        try {
+                            socket.close();
+                        } catch (IOException ignored) {
+                            // Never opened
+                        }
+                    }
+                }
+            }
+        }.start();
+    }
+
+    // Feeds one session's L2CAP link back into the same paths as the GATT callbacks
+    private class L2capListener implements L2capLink.Listener {
+        private final GattSession mSession;
+        volatile L2capLink link;
+
+        L2capListener(GattSession session) {
+            mSession = session;
+        }
+
+        @Override
+        public void onWriteComplete(boolean success) {
+            final CommandScheduler scheduler = mSession.scheduler;
+            if (scheduler != null) {
+                scheduler.onWriteComplete(success);
+            }
+        }
+
+        @Override
+        public void onPacket(byte[] packet) {
+            onRobotData(mSession, packet);
+        }
+
+        @Override
+        public void onClosed(IOException cause) {
+            if (mSession.l2cap != link) return;
+            mSession.l2cap = null;
+            if (cause != null) {
+                Log.w(TAG, mSession.address + " lost its L2CAP channel, back on GATT", cause);
+            }
+            final CommandScheduler scheduler = mSession.scheduler;
+            if (scheduler != null) {
+                scheduler.pump();
+            }
+        }
+    }
+
+    // Maps a callback's client back to the session that owns it, null if it was already closed
+    private GattSession sessionFor(BluetoothGatt gatt) {
+        final GattSession session = mSessions.get(gatt.getDevice().getAddress());
+        return session != null && session.gatt == gatt ? session : null;
+    }
+
+    private boolean isActive(BluetoothGatt gatt) {
+        final GattSession active = mActive;
+        return active != null && active.gatt == gatt;
+    }
+
+    private static BluetoothGattCharacteristic findCharacteristic(BluetoothGatt gatt, UUID uuid) {
+        for (BluetoothGattService gattService : gatt.getServices()) {
+            final BluetoothGattCharacteristic characteristic = gattService.getCharacteristic(uuid);
+            if (characteristic != null) return characteristic;
+        }
+        return null;
+    }
+
+    // Picks the session's codec and finishes discovery
+    private void onProtocolNegotiated(GattSession session, int version) {
+        session.codec = ProtocolCodecs.forVersion(version);
+        session.motorFrames = ProtocolCodecs.supportsMotors(version)
+                && session.codec.encodeMotors(0, 0) != null;
+        Log.i(TAG, session.address + " speaks protocol " + session.codec.getName()
+                + (ProtocolCodecs.isReliable(version) ? " with reliable framing" : "")
+                + (ProtocolCodecs.supportsRequests(version) ? " and requests" : "")
+                + (session.motorFrames ? " and motor levels" : ""));
+        if (session.tx != null) {
+            createScheduler(session, ProtocolCodecs.isReliable(version),
+                    ProtocolCodecs.supportsRequests(version));
+        }
+        if (!enableNotifications(session)) {
+            onSetupComplete(session);
+        }
+    }
+
+    /**
+     * Turns on RX notifications, once per connection rather than with every command, so a command
+     * costs exactly one GATT operation.
+     *
+     * @return true if a descriptor write was started; the link is ready once it completes.
+     */
+    private boolean enableNotifications(GattSession session) {
+        final BluetoothGatt gatt = session.gatt;
+        final BluetoothGattCharacteristic rx = session.rx;
+        if (gatt == null || rx == null) {
+            return false;
+        }
+        gatt.setCharacteristicNotification(rx, true);
+        final BluetoothGattDescriptor config = rx.getDescriptor(UUID_CLIENT_CHARACTERISTIC_CONFIG);
+        if (config == null) {
+            return false;
+        }
+        config.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+        return gatt.writeDescriptor(config);
+    }
+
+    // Discovery, protocol negotiation and notification setup are done: the link can be driven
+    private void onSetupComplete(GattSession session) {
+        if (session.stateMachine.transition(ConnectionStateMachine.State.DISCOVERING,
+                ConnectionStateMachine.State.READY)) {
+            broadcastUpdate(session, ACTION_GATT_SERVICES_DISCOVERED);
+        }
+    }
+
+    // Finds the UART characteristics; without TX the session can connect but not be driven
+    private void findUartCharacteristics(GattSession session) {
+        session.tx = findCharacteristic(session.gatt, UUID_TX);
+        session.rx = findCharacteristic(session.gatt, UUID_RX);
+        session.codec = ProtocolCodecs.ascii();
+        session.scheduler = null;
+        session.reliable = null;
+        if (session.tx == null) {
+            Log.w(TAG, session.address + " has no TX characteristic, commands are disabled.");
+        }
+    }
+
+    /**
+     * Sets up the command pipeline that writes to the session's TX characteristic, optionally
+     * through a {@link ReliableLink} when the firmware acknowledges frames, and with
+     * {@link RobotRequests} filling idle time when it answers queries.
+     */
+    private void createScheduler(final GattSession session, boolean reliable, boolean requests) {
+        final Runnable pump = new Runnable() {
+            @Override
+            public void run() {
+                final CommandScheduler scheduler = session.scheduler;
+                if (scheduler != null) scheduler.pump();
+            }
+        };
+        final CommandScheduler.Transport gattTransport = new CommandScheduler.Transport() {
+            @Override
+            public boolean write(byte[] frame) {
+                final BluetoothGatt gatt = session.gatt;
+                final BluetoothGattCharacteristic tx = session.tx;
+                if (gatt == null || tx == null || !session.stateMachine.isReady()) {
+                    return false;
+                }
+                // An open L2CAP channel carries the same frames; its completion comes from
+                // L2capListener instead of onCharacteristicWrite
+                final L2capLink l2cap = session.l2cap;
+                if (l2cap != null) {
+                    return l2cap.write(frame);
+                }
+                // The frame is a prebuilt codec frame or a reused ReliableLink buffer, and the
+                // write is the only GATT operation a command costs
+                tx.setValue(frame);
+                return gatt.writeCharacteristic(tx);
+            }
+        };
+        final FakeRadio fake = session.fake;
+        final Runnable fakeWriteComplete = new Runnable() {
+            @Override
+            public void run() {
+                final CommandScheduler scheduler = session.scheduler;
+                if (scheduler != null) scheduler.onWriteComplete(true);
+            }
+        };
+        final CommandScheduler.Transport radio = fake == null ? gattTransport
+                : new CommandScheduler.Transport() {
+            @Override
+            public boolean write(byte[] frame) {
+                if (!session.stateMachine.isReady() || !fake.write(session.address, frame)) {
+                    return false;
+                }
+                mHandler.post(fakeWriteComplete);
+                return true;
+            }
+        };
+        final ReliableLink link = reliable ? new ReliableLink(radio, Clock.SYSTEM) : null;
+        final CommandScheduler scheduler = new CommandScheduler(
+                link != null ? link : radio, new CommandScheduler.Waker() {
+            @Override
+            public void wakeUpIn(long delayMillis) {
+                mHandler.removeCallbacks(pump);
+                mHandler.postDelayed(pump, delayMillis);
+            }
+        }, Clock.SYSTEM);
+        scheduler.setRetransmitter(link);
+        // Starts from the pace this robot's link settled on last time
+        session.rateController = new SendRateController(
+                SendRatePrefs.load(this, session.address));
+        scheduler.setRateController(session.rateController);
+        session.quality = new LinkQualityMonitor();
+        scheduler.setLinkQuality(session.quality);
+        session.reliable = link;
+        session.requests = requests ? new RobotRequests(Clock.SYSTEM, mMainExecutor) : null;
+        scheduler.setBackgroundSource(session.requests);
+        applyCommandGroups(scheduler);
+        session.scheduler = scheduler;
+    }
+
+    private void applyCommandGroups(CommandScheduler scheduler) {
+        final int[] channelGroups = mChannelGroups;
+        final int[] groupWeights = mGroupWeights;
+        for (int channel = 0; channel < channelGroups.length; channel++) {
+            scheduler.setChannelGroup(channel, channelGroups[channel]);
+        }
+        for (int group = 0; group < groupWeights.length; group++) {
+            scheduler.setGroupWeight(group, groupWeights[group]);
+        }
+    }
+
+    /**
+     * Splits the link between groups of channels, e.g. one per player when two share the phone,
+     * so that neither can starve the other. Applies to every session, current and future.
+     *
+     * @param channelGroups Group per channel, {@link CommandScheduler#CHANNEL_SLOTS} entries.
+     * @param groupWeights Frames per round per group, {@link CommandScheduler#MAX_GROUPS} entries.
+     */
+    public void setCommandGroups(int[] channelGroups, int[] groupWeights) {
+        mChannelGroups = channelGroups.clone();
+        mGroupWeights = groupWeights.clone();
+        for (GattSession session : mSessions.values()) {
+            final CommandScheduler scheduler = session.scheduler;
+            if (scheduler != null) {
+                applyCommandGroups(scheduler);
+            }
+        }
+    }
+
+    // Warm sessions change state silently; only the active one is reported to the UI
+    private void broadcastUpdate(GattSession session, final String action) {
+        if (session == mActive) {
+            broadcastUpdate(action);
+        }
+    }
+
     private void broadcastUpdate(final String action) {
         final Intent intent = new Intent(action);
         sendBroadcast(intent);
     }
 
-    private void broadcastUpdate(final String action,final BluetoothGattCharacteristic characteristic) {
+    private void broadcastUpdate(final String action, final byte[] data) {
         final Intent intent = new Intent(action);
 
-        // For all other profiles, writes the data formatted in HEX.
-        final byte[] data = characteristic.getValue();
-        Log.i(TAG, "data"+characteristic.getValue());
+        if (RingLog.isLoggable(LOG_NOTIFICATION)) {
+            RingLog.record(LOG_NOTIFICATION, data == null ? 0 : data.length, head(data));
+        }
 
         if (data != null && data.length > 0) {
-            final StringBuilder stringBuilder = new StringBuilder(data.length);
-            for(byte byteChar : data)
-                stringBuilder.append(String.format("%02X ", byteChar));
-            Log.d(TAG, String.format("%s", new String(data)));
             // getting cut off when longer, need to push on new line, 0A
-            intent.putExtra(EXTRA_DATA,String.format("%s", new String(data)));
-
+            intent.putExtra(EXTRA_DATA, new String(data));
         }
         sendBroadcast(intent);
     }
 
+    // Up to the first eight bytes, packed big-endian for a log argument
+    private static long head(byte[] data) {
+        long head = 0;
+        for (int i = 0; data != null && i < Math.min(8, data.length); i++) {
+            head = head << 8 | (data[i] & 0xFF);
+        }
+        return head;
+    }
+
 
 
     public class LocalBinder extends Binder {
@@ -159,18 +660,164 @@ public class BluetoothLeService extends Service {
         }
     }
 
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // Lets a cold start get the connection going while the UI is still being inflated
+        final String address = intent == null ? null : intent.getStringExtra(EXTRA_CONNECT_ADDRESS);
+        if (address != null && initialize()) {
+            connect(address);
+        }
+        return START_NOT_STICKY;
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
+        mHandler.removeCallbacks(mIdleDisconnect);
         return mBinder;
     }
 
+    @Override
+    public void onRebind(Intent intent) {
+        mHandler.removeCallbacks(mIdleDisconnect);
+    }
+
     @Override
     public boolean onUnbind(Intent intent) {
-        // After using a given device, you should make sure that BluetoothGatt.close() is called
-        // such that resources are cleaned up properly.  In this particular example, close() is
-        // invoked when the UI is disconnected from the Service.
-        close();
-        return super.onUnbind(intent);
+        // The session no longer ends when the UI goes away. Rotation, backgrounding or a trip to
+        // DeviceScanActivity keep the link up, and it is only closed if nobody binds again within
+        // IDLE_DISCONNECT_MS. Returning true gets us onRebind() when an activity comes back.
+        mHandler.removeCallbacks(mIdleDisconnect);
+        mHandler.postDelayed(mIdleDisconnect, IDLE_DISCONNECT_MS);
+        return true;
+    }
+
+    @Override
+    public void onDestroy() {
+        mHandler.removeCallbacks(mIdleDisconnect);
+        for (GattSession session : mSessions.values()) {
+            closeSession(session);
+        }
+        super.onDestroy();
+    }
+
+    // Creates a session whose transient states are guarded by timeouts
+    private GattSession newSession(final String address) {
+        final GattSession session = new GattSession(address, Clock.SYSTEM);
+        session.stateMachine.setListener(new ConnectionStateMachine.Listener() {
+            @Override
+            public void onStateChanged(ConnectionStateMachine.State from,
+                                       final ConnectionStateMachine.State to, final int epoch) {
+                Log.d(TAG, address + " connection state " + from + " -> " + to);
+                final CommandScheduler scheduler = session.scheduler;
+                if (scheduler != null && to != ConnectionStateMachine.State.READY) {
+                    // Nothing queued for a link that is going away should go out on the next one
+                    scheduler.clear();
+                    saveSendRate(session);
+                    final RobotRequests requests = session.requests;
+                    if (requests != null) {
+                        requests.failAll(RobotRequests.REASON_LINK_LOST);
+                    }
+                    final L2capLink l2cap = session.l2cap;
+                    if (l2cap != null) {
+                        session.l2cap = null;
+                        l2cap.close();
+                    }
+                    Log.i(TAG, address + " stop latency avg="
+                            + scheduler.getAverageStopLatencyMillis() + "ms max="
+                            + scheduler.getMaxStopLatencyMillis() + "ms over "
+                            + scheduler.getStopCount() + " stops");
+                }
+                if (to == ConnectionStateMachine.State.CONNECTING) {
+                    session.connectStartedAt = Clock.SYSTEM.nowMillis();
+                } else if (to == ConnectionStateMachine.State.READY) {
+                    LinkMetrics.CONNECT_LATENCY.record(
+                            Clock.SYSTEM.nowMillis() - session.connectStartedAt);
+                    if (session == mActive) {
+                        StartupTrace.mark(StartupTrace.LINK_READY);
+                    }
+                    mHandler.removeCallbacks(mRssiPoll);
+                    mHandler.post(mRssiPoll);
+                }
+                final long timeout = ConnectionStateMachine.timeoutFor(to);
+                if (timeout <= 0) return;
+                mHandler.postDelayed(new Runnable() {
+                    @Override
+                    public void run() {
+                        // Only fires if nothing has happened since the state was entered
+                        if (session.stateMachine.getEpoch() == epoch) {
+                            onStateTimeout(session, to);
+                        }
+                    }
+                }, timeout);
+            }
+        });
+        return session;
+    }
+
+    // Remembers the pace the link learned, for the next session with this robot
+    private void saveSendRate(GattSession session) {
+        final CommandScheduler scheduler = session.scheduler;
+        final SendRateController rateController = session.rateController;
+        if (scheduler == null || rateController == null) return;
+        // What the link learned, without the slow-down for a weak signal at the end
+        final long interval;
+        synchronized (scheduler) {
+            interval = rateController.getIntervalMillis();
+        }
+        SendRatePrefs.save(this, session.address, interval);
+        Log.i(TAG, session.address + " learned a command interval of " + interval + " ms");
+    }
+
+    // Samples the RSSI of every ready link for its quality score, while there is one
+    private final Runnable mRssiPoll = new Runnable() {
+        @Override
+        public void run() {
+            boolean any = false;
+            for (GattSession session : mSessions.values()) {
+                final BluetoothGatt gatt = session.gatt;
+                if (gatt == null || !session.stateMachine.isReady()) continue;
+                gatt.readRemoteRssi();
+                any = true;
+            }
+            if (any) {
+                mHandler.postDelayed(this, LinkQualityMonitor.RSSI_POLL_MS);
+            }
+        }
+    };
+
+    // A connect, discovery or disconnect took too long: give up on the link
+    private void onStateTimeout(GattSession session, ConnectionStateMachine.State state) {
+        Log.w(TAG, "Timed out in " + state + "\n" + session.stateMachine.describe());
+        LinkMetrics.STATE_TIMEOUTS.inc();
+        final BluetoothGatt gatt = session.gatt;
+        if (gatt != null && state != ConnectionStateMachine.State.DISCONNECTING) {
+            gatt.disconnect();
+        }
+        closeSession(session);
+        broadcastUpdate(session, ACTION_GATT_DISCONNECTED);
+    }
+
+    // Closes the session once no activity has used it for IDLE_DISCONNECT_MS
+    private final Runnable mIdleDisconnect = new Runnable() {
+        @Override
+        public void run() {
+            Log.i(TAG, "No client for " + IDLE_DISCONNECT_MS + " ms, closing the session.");
+            endSession();
+        }
+    };
+
+    // Ongoing notification shown while the service holds a session in the foreground
+    private Notification buildNotification() {
+        final Intent launch = new Intent(this, DeviceScanActivity.class);
+        launch.addFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
+        final PendingIntent contentIntent = PendingIntent.getActivity(this, 0, launch, 0);
+        return new Notification.Builder(this)
+                .setSmallIcon(R.mipmap.robots4uicon)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText(getString(R.string.session_active))
+                .setContentIntent(contentIntent)
+                .setOngoing(true)
+                .build();
     }
 
     private final IBinder mBinder = new LocalBinder();
@@ -181,6 +828,9 @@ public class BluetoothLeService extends Service {
      * @return Return true if the initialization is successful.
      */
     public boolean initialize() {
+        if (sFakeRadio != null) {
+            return true;
+        }
         // For API level 18 and above, get a reference to BluetoothAdapter through
         // BluetoothManager.
         if (mBluetoothManager == null) {
@@ -211,37 +861,174 @@ public class BluetoothLeService extends Service {
      *         callback.
      */
     public boolean connect(final String address) {
-        if (mBluetoothAdapter == null || address == null) {
+        if ((mBluetoothAdapter == null && sFakeRadio == null) || address == null) {
             Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");
             return false;
         }
 
+        GattSession session = mSessions.get(address);
+        if (session == null) {
+            session = newSession(address);
+            mSessions.put(address, session);
+        }
+
+        // Switching robots is a pointer swap. Unless warm sessions are wanted, the old one goes.
+        final GattSession previous = mActive;
+        mActive = session;
+        if (previous != null && previous != session && !mKeepWarm) {
+            closeSession(previous);
+        }
+
+        // Already connected to this device, so the caller just reattaches to the live link.
+        if (session.stateMachine.isReady()) {
+            Log.d(TAG, "Reusing the live connection to " + address);
+            return true;
+        }
+        final FakeRadio fake = sFakeRadio;
+        if (fake != null) {
+            final boolean opened = openFakeSession(session, fake);
+            updateForeground();
+            return opened;
+        }
+
+        // The active session always gets a slot, even if that costs a warm one
+        if (!session.isOpen() && openSessionCount() >= MAX_OPEN_SESSIONS) {
+            for (GattSession other : mSessions.values()) {
+                if (other != session && other.isOpen()) {
+                    closeSession(other);
+                    break;
+                }
+            }
+        }
+        final boolean opened = openSession(session);
+        updateForeground();
+        return opened;
+    }
+
+    /**
+     * Opens a warm session to a known robot without making it active, so a later
+     * {@link #connect(String)} to it is instant. Nothing happens when pre-connection is disabled,
+     * the device already has a session, or all connection slots are in use.
+     *
+     * @param address The device address of the robot seen while scanning.
+     * @return true if a connection attempt was started.
+     */
+    public boolean preconnect(final String address) {
+        if (!mKeepWarm || mBluetoothAdapter == null || address == null) {
+            return false;
+        }
+        final GattSession existing = mSessions.get(address);
+        if ((existing != null && existing.isOpen()) || openSessionCount() >= MAX_OPEN_SESSIONS) {
+            return false;
+        }
+        final GattSession session = existing != null ? existing : newSession(address);
+        mSessions.put(address, session);
+        Log.d(TAG, "Pre-connecting to " + address);
+        final boolean opened = openSession(session);
+        updateForeground();
+        return opened;
+    }
+
+    /**
+     * Enables or disables warm sessions. Disabling closes every session but the active one.
+     */
+    public void setKeepWarm(boolean keepWarm) {
+        mKeepWarm = keepWarm;
+        if (!keepWarm) {
+            for (GattSession session : mSessions.values()) {
+                if (session != mActive) {
+                    closeSession(session);
+                }
+            }
+        }
+    }
+
+    private int openSessionCount() {
+        int count = 0;
+        for (GattSession session : mSessions.values()) {
+            if (session.isOpen()) count++;
+        }
+        return count;
+    }
+
+    // Keeps the process and the connections alive while the user is in another app, but only
+    // while there is a connection to keep; a fake radio's ready session counts as one
+    private void updateForeground() {
+        boolean open = false;
+        for (GattSession session : mSessions.values()) {
+            if (session.isOpen() || (session.fake != null && session.stateMachine.isReady())) {
+                open = true;
+                break;
+            }
+        }
+        if (open && !mForeground) {
+            startForeground(NOTIFICATION_ID, buildNotification());
+            mForeground = true;
+        } else if (!open && mForeground) {
+            stopForeground(true);
+            mForeground = false;
+        }
+    }
+
+    // Starts or resumes the connection of a session, without changing which one is active
+    private boolean openSession(GattSession session) {
+        // A connect is already under way, nothing to start
+        final ConnectionStateMachine.State state = session.stateMachine.getState();
+        if (state == ConnectionStateMachine.State.CONNECTING
+                || state == ConnectionStateMachine.State.DISCOVERING) {
+            return true;
+        }
+        if (session.stateMachine.getTransitionCount(ConnectionStateMachine.State.DISCOVERING,
+                ConnectionStateMachine.State.READY) > 0) {
+            LinkMetrics.RECONNECTS.inc();
+        }
+
         // Previously connected device.  Try to reconnect.
-        if (mBluetoothDeviceAddress != null && address.equals(mBluetoothDeviceAddress)
-                && mBluetoothGatt != null) {
-            Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
-            if (mBluetoothGatt.connect()) {
-                mConnectionState = STATE_CONNECTING;
+        final BluetoothGatt existing = session.gatt;
+        if (existing != null) {
+            Log.d(TAG, "Trying to use an existing BluetoothGatt for connection.");
+            if (!session.stateMachine.moveTo(ConnectionStateMachine.State.CONNECTING)) {
+                return false;
+            }
+            if (existing.connect()) {
                 return true;
             } else {
-                final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
-                mBluetoothGatt = device.connectGatt(this, false, mGattCallback);
-                mBluetoothDeviceAddress = address;
+                final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(session.address);
+                existing.close();
+                session.gatt = device.connectGatt(this, false, mGattCallback);
                 return false;
             }
         }
 
-        final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
+        final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(session.address);
         if (device == null) {
             Log.w(TAG, "Device not found.  Unable to connect.");
             return false;
         }
+        if (!session.stateMachine.moveTo(ConnectionStateMachine.State.CONNECTING)) {
+            return false;
+        }
         // We want to directly connect to the device, so we are setting the autoConnect
         // parameter to false.
-        mBluetoothGatt = device.connectGatt(this, false, mGattCallback);
+        session.gatt = device.connectGatt(this, false, mGattCallback);
         Log.d(TAG, "Trying to create a new connection.");
-        mBluetoothDeviceAddress = address;
-        mConnectionState = STATE_CONNECTING;
+        return true;
+    }
+
+    // Brings a session straight to READY on a fake radio, as if connect and discovery were instant
+    private boolean openFakeSession(GattSession session, FakeRadio fake) {
+        if (!session.stateMachine.moveTo(ConnectionStateMachine.State.CONNECTING)
+                || !session.stateMachine.moveTo(ConnectionStateMachine.State.DISCOVERING)) {
+            return false;
+        }
+        session.fake = fake;
+        final int version = fake.getProtocolVersion();
+        session.codec = ProtocolCodecs.forVersion(version);
+        session.motorFrames = ProtocolCodecs.supportsMotors(version)
+                && session.codec.encodeMotors(0, 0) != null;
+        // The fake neither acknowledges frames nor answers requests
+        createScheduler(session, false, false);
+        onSetupComplete(session);
         return true;
     }
 
@@ -252,11 +1039,13 @@ public class BluetoothLeService extends Service {
      * callback.
      */
     public void disconnect() {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+        final GattSession active = mActive;
+        if (mBluetoothAdapter == null || active == null || active.gatt == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.disconnect();
+        active.stateMachine.moveTo(ConnectionStateMachine.State.DISCONNECTING);
+        active.gatt.disconnect();
     }
 
     /**
@@ -264,11 +1053,66 @@ public class BluetoothLeService extends Service {
      * released properly.
      */
     public void close() {
-        if (mBluetoothGatt == null) {
+        final GattSession active = mActive;
+        if (active == null) {
             return;
         }
-        mBluetoothGatt.close();
-        mBluetoothGatt = null;
+        closeSession(active);
+    }
+
+    private void closeSession(GattSession session) {
+        final BluetoothGatt gatt = session.gatt;
+        if (gatt == null) {
+            return;
+        }
+        session.gatt = null;
+        final L2capLink l2cap = session.l2cap;
+        if (l2cap != null) {
+            session.l2cap = null;
+            l2cap.close();
+        }
+        gatt.close();
+        session.stateMachine.moveTo(ConnectionStateMachine.State.DISCONNECTED);
+        updateForeground();
+    }
+
+    /**
+     * Ends the session explicitly: drops the connection, releases the GATT client and takes the
+     * service out of the foreground so it can stop once the last activity unbinds.
+     */
+    public void endSession() {
+        mHandler.removeCallbacks(mIdleDisconnect);
+        for (GattSession session : mSessions.values()) {
+            final BluetoothGatt gatt = session.gatt;
+            if (gatt != null) {
+                session.stateMachine.moveTo(ConnectionStateMachine.State.DISCONNECTING);
+                gatt.disconnect();
+            }
+            closeSession(session);
+        }
+        mSessions.clear();
+        mActive = null;
+        broadcastUpdate(ACTION_GATT_DISCONNECTED);
+        updateForeground();
+        stopSelf();
+    }
+
+    /**
+     * Whether the session is connected to the given device with its services already discovered,
+     * in which case an activity can start sending commands without waiting for any callback.
+     *
+     * @param address The device address to check.
+     */
+    public boolean isConnectedTo(String address) {
+        final GattSession active = mActive;
+        return address != null && active != null && address.equals(active.address)
+                && active.stateMachine.isReady();
+    }
+
+    // State of the active session, or null if there is none
+    public ConnectionStateMachine getStateMachine() {
+        final GattSession active = mActive;
+        return active == null ? null : active.stateMachine;
     }
 
     /**
@@ -279,24 +1123,329 @@ public class BluetoothLeService extends Service {
      * @param characteristic The characteristic to read from.
      */
     public void readCharacteristic(BluetoothGattCharacteristic characteristic) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+        final GattSession active = mActive;
+        final BluetoothGatt gatt = active == null ? null : active.gatt;
+        if (mBluetoothAdapter == null || gatt == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.readCharacteristic(characteristic);
+        gatt.readCharacteristic(characteristic);
     }
 
     /**
-     * Write to a given char
+     * Write to a given char. Writes are refused unless the link is ready, so a command can never
+     * go out on a connection that is still being set up or already torn down.
+     *
      * @param characteristic The characteristic to write to
+     * @return true if the write was handed to the stack.
      */
-    public void writeCharacteristic(BluetoothGattCharacteristic characteristic) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+    public boolean writeCharacteristic(BluetoothGattCharacteristic characteristic) {
+        final GattSession active = mActive;
+        final BluetoothGatt gatt = active == null ? null : active.gatt;
+        if (mBluetoothAdapter == null || gatt == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
+            return false;
+        }
+        if (!active.stateMachine.isReady()) {
+            return false;
+        }
+
+        return gatt.writeCharacteristic(characteristic);
+    }
+
+    /**
+     * Sends a control's new state to the active robot, encoded with the protocol negotiated for
+     * it. Releases go out in the stop lane, presses in the motion lane.
+     *
+     * @param channel The control that changed.
+     * @param pressed Whether it is now on.
+     * @return false if there is no ready link to send it on.
+     */
+    public boolean sendButton(int channel, boolean pressed) {
+        return sendButton(channel, pressed,
+                pressed ? CommandScheduler.PRIORITY_MOTION : CommandScheduler.PRIORITY_STOP);
+    }
+
+    /**
+     * Like {@link #sendButton(int, boolean)}, in a lane picked by the caller, e.g. from a
+     * {@link ControllerProfile}.
+     */
+    public boolean sendButton(int channel, boolean pressed, int priority) {
+        final GattSession active = mActive;
+        if (active == null) return false;
+        final ProtocolCodec codec = active.codec;
+        if (channel >= codec.getChannelCount()) return false;
+        final int mask = pressed
+                ? active.pressedMask | (1 << channel) : active.pressedMask & ~(1 << channel);
+
+        // On a weak link one full-state frame replaces the per-control ones, so whichever frame
+        // gets through leaves the robot right. Stay with it while one is still queued or waiting
+        // to be acknowledged, so an older full state can never undo a newer single event.
+        final CommandScheduler scheduler = active.scheduler;
+        final LinkQualityMonitor quality = active.quality;
+        byte[] state = null;
+        if (scheduler != null && quality != null && (quality.isDegraded()
+                || scheduler.isPending(CommandScheduler.STATE_CHANNEL)
+                || isStateUnacknowledged(active, scheduler))) {
+            state = codec.encodeFullState(mask);
+        }
+        final boolean sent = state != null
+                ? sendCommand(CommandScheduler.STATE_CHANNEL, priority, state)
+                : sendCommand(channel, priority, codec.encodeButton(channel, pressed));
+        if (sent) {
+            active.pressedMask = mask;
+        }
+        return sent;
+    }
+
+    private static boolean isStateUnacknowledged(GattSession session, CommandScheduler scheduler) {
+        final ReliableLink reliable = session.reliable;
+        if (reliable == null) return false;
+        synchronized (scheduler) {
+            return reliable.isOutstanding(CommandScheduler.STATE_CHANNEL);
+        }
+    }
+
+    // Whether the active robot takes motor levels, so the app should mix its drive controls
+    public boolean supportsMotorFrames() {
+        final GattSession active = mActive;
+        return active != null && active.motorFrames;
+    }
+
+    /**
+     * Sets the active robot's drive motors, as mixed by a {@link DriveMixer}. A newer setting
+     * replaces one that has not gone out yet, and stopping both motors goes in the stop lane.
+     *
+     * @param left Left motor level, from -{@link ProtocolCodec#MOTOR_STEPS} to MOTOR_STEPS.
+     * @param right Right motor level, same range.
+     * @return false if there is no ready link or the robot does not take motor levels.
+     */
+    public boolean sendMotors(int left, int right) {
+        final GattSession active = mActive;
+        if (active == null || !active.motorFrames) return false;
+        return sendCommand(CommandScheduler.DRIVE_CHANNEL, left == 0 && right == 0
+                        ? CommandScheduler.PRIORITY_STOP : CommandScheduler.PRIORITY_MOTION,
+                active.codec.encodeMotors(left, right));
+    }
+
+    /**
+     * Queues a command on the active session's pipeline. Stop frames jump ahead of motion frames,
+     * and a newer command for a channel replaces one that has not been sent yet.
+     *
+     * @param channel The control the command belongs to.
+     * @param priority {@link CommandScheduler#PRIORITY_STOP} or
+     *                 {@link CommandScheduler#PRIORITY_MOTION}.
+     * @param frame The encoded command.
+     * @return false if there is no ready link to send it on.
+     */
+    public boolean sendCommand(int channel, int priority, byte[] frame) {
+        final GattSession active = mActive;
+        final CommandScheduler scheduler = active == null ? null : active.scheduler;
+        if (scheduler == null || !active.stateMachine.isReady()) {
+            return false;
+        }
+        synchronized (active) {
+            // Nothing may follow an emergency stop onto the link before it is confirmed
+            if (active.stopFrameIndex >= 0) return false;
+        }
+        scheduler.submit(channel, priority, frame);
+        StartupTrace.mark(StartupTrace.FIRST_COMMAND);
+        return true;
+    }
+
+    /**
+     * Asks the active robot something, e.g. {@link RobotRequests#TYPE_BATTERY}. Any number of
+     * requests may be outstanding; they go out between driving commands, never ahead of them, and
+     * each is answered or failed within its timeout.
+     *
+     * @param callback Gets the result on the main thread, may be null to use the returned future.
+     * @return null if there is no ready link or the robot's firmware does not answer requests.
+     */
+    public RobotRequests.Request request(int type, byte[] payload, long timeoutMillis,
+                                         RobotRequests.Callback callback) {
+        final GattSession active = mActive;
+        final CommandScheduler scheduler = active == null ? null : active.scheduler;
+        final RobotRequests requests = active == null ? null : active.requests;
+        if (scheduler == null || requests == null || !active.stateMachine.isReady()) {
+            return null;
+        }
+        final RobotRequests.Request request =
+                requests.request(type, payload, timeoutMillis, callback);
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                requests.expire();
+            }
+        }, timeoutMillis);
+        scheduler.pump();
+        return request;
+    }
+
+    /**
+     * Stops every robot we are connected to, active or warm. Queued commands are dropped and each
+     * link's pre-encoded stop frames (from its codec) are written to all ready links at once,
+     * without going through the command pipelines. Each link confirms through its write callback,
+     * and one with nothing to write to fails at once; once every link has confirmed or
+     * {@link #EMERGENCY_STOP_TIMEOUT_MS} has passed, the outcome and the worst measured latency
+     * are broadcast as {@link #ACTION_EMERGENCY_STOP_RESULT}.
+     *
+     * @return The number of robots the stop was sent to.
+     */
+    public int emergencyStopAll() {
+        final long now = Clock.SYSTEM.nowMillis();
+        int total = 0;
+        int unreachable = 0;
+        synchronized (mStopLock) {
+            mStopTotal = 0;
+            mStopResolved = 0;
+            mStopConfirmed = 0;
+            mStopWorstMillis = 0;
+        }
+        for (GattSession session : mSessions.values()) {
+            final CommandScheduler scheduler = session.scheduler;
+            if (scheduler == null || !session.stateMachine.isReady()) continue;
+            scheduler.clear();
+            session.pressedMask = 0;
+            total++;
+            if (session.fake == null && (session.gatt == null || session.tx == null)) {
+                // Nothing to write the stop frames to, so nothing will ever confirm them
+                unreachable++;
+                continue;
+            }
+            synchronized (session) {
+                session.stopFrameIndex = 0;
+                session.stopFrameInFlight = false;
+                session.stopRequestedAt = now;
+                writeNextStopFrame(session);
+            }
+        }
+        synchronized (mStopLock) {
+            mStopTotal = total;
+        }
+        for (int i = 0; i < unreachable; i++) {
+            resolveStop(false, 0);
+        }
+        mHandler.removeCallbacks(mStopTimeout);
+        if (total == 0) {
+            broadcastStopResult();
+        } else {
+            mHandler.postDelayed(mStopTimeout, EMERGENCY_STOP_TIMEOUT_MS);
+        }
+        Log.w(TAG, "Emergency stop sent to " + total + " robot(s)");
+        return total;
+    }
+
+    // Called with the session's monitor held
+    private void writeNextStopFrame(final GattSession session) {
+        final byte[] frame = session.codec.encodeStopAll()[session.stopFrameIndex];
+        final FakeRadio fake = session.fake;
+        final BluetoothGatt gatt = session.gatt;
+        final BluetoothGattCharacteristic tx = session.tx;
+        final boolean written;
+        if (fake != null) {
+            // Completes on the main thread right after, like the fake's command writes
+            written = fake.write(session.address, frame);
+            if (written) {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onStopFrameWritten(session, true);
+                    }
+                });
+            }
+        } else if (gatt != null && tx != null) {
+            // With response, so the completion confirms the robot got it. The write type is
+            // taken when the write is queued, so the command pipeline's is restored right away.
+            final int writeType = tx.getWriteType();
+            tx.setValue(frame);
+            tx.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+            written = gatt.writeCharacteristic(tx);
+            tx.setWriteType(writeType);
+        } else {
             return;
         }
+        if (written) {
+            session.stopFrameInFlight = true;
+        } else {
+            // Another operation is still on the air; its completion or this retry picks us up
+            mHandler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (session) {
+                        if (session.stopFrameIndex >= 0 && !session.stopFrameInFlight) {
+                            writeNextStopFrame(session);
+                        }
+                    }
+                }
+            }, CommandScheduler.STOP_INTERVAL_MS);
+        }
+    }
 
-        mBluetoothGatt.writeCharacteristic(characteristic);
+    /**
+     * Advances a running emergency stop on a write completion.
+     *
+     * @return false if no emergency stop is running on this link.
+     */
+    private boolean onStopFrameWritten(GattSession session, boolean success) {
+        long latency;
+        synchronized (session) {
+            if (session.stopFrameIndex < 0) return false;
+            if (session.stopFrameInFlight) {
+                session.stopFrameInFlight = false;
+                // A failed frame is simply written again
+                if (success) session.stopFrameIndex++;
+            }
+            if (session.stopFrameIndex < session.codec.encodeStopAll().length) {
+                writeNextStopFrame(session);
+                return true;
+            }
+            session.stopFrameIndex = -1;
+            latency = Clock.SYSTEM.nowMillis() - session.stopRequestedAt;
+        }
+        Log.w(TAG, session.address + " confirmed emergency stop in " + latency + " ms");
+        resolveStop(true, latency);
+        return true;
+    }
+
+    // Gives up on robots that did not confirm in time
+    private final Runnable mStopTimeout = new Runnable() {
+        @Override
+        public void run() {
+            for (GattSession session : mSessions.values()) {
+                synchronized (session) {
+                    if (session.stopFrameIndex < 0) continue;
+                    session.stopFrameIndex = -1;
+                    session.stopFrameInFlight = false;
+                }
+                Log.e(TAG, session.address + " did not confirm the emergency stop");
+                resolveStop(false, EMERGENCY_STOP_TIMEOUT_MS);
+            }
+        }
+    };
+
+    private void resolveStop(boolean confirmed, long latency) {
+        final boolean done;
+        synchronized (mStopLock) {
+            mStopResolved++;
+            if (confirmed) mStopConfirmed++;
+            if (latency > mStopWorstMillis) mStopWorstMillis = latency;
+            done = mStopTotal > 0 && mStopResolved == mStopTotal;
+        }
+        if (done) {
+            mHandler.removeCallbacks(mStopTimeout);
+            broadcastStopResult();
+        }
+    }
+
+    private void broadcastStopResult() {
+        final Intent intent = new Intent(ACTION_EMERGENCY_STOP_RESULT);
+        synchronized (mStopLock) {
+            intent.putExtra(EXTRA_STOP_CONFIRMED, mStopConfirmed);
+            intent.putExtra(EXTRA_STOP_TOTAL, mStopTotal);
+            intent.putExtra(EXTRA_STOP_WORST_MS, mStopWorstMillis);
+            LinkMetrics.EMERGENCY_STOP.record(mStopWorstMillis);
+        }
+        sendBroadcast(intent);
     }
 
     /**
@@ -307,18 +1456,113 @@ public class BluetoothLeService extends Service {
      */
     public void setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
                                               boolean enabled) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+        final GattSession active = mActive;
+        final BluetoothGatt gatt = active == null ? null : active.gatt;
+        if (mBluetoothAdapter == null || gatt == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.setCharacteristicNotification(characteristic, enabled);
+        setCharacteristicNotification(gatt, characteristic, enabled);
+    }
+
+    private void setCharacteristicNotification(BluetoothGatt gatt,
+                                               BluetoothGattCharacteristic characteristic,
+                                               boolean enabled) {
+        gatt.setCharacteristicNotification(characteristic, enabled);
 
         // This is specific to Heart Rate Measurement.
         if (UUID_HM_RX_TX.equals(characteristic.getUuid())) {
             BluetoothGattDescriptor descriptor = characteristic.getDescriptor(
                     UUID.fromString(SampleGattAttributes.CLIENT_CHARACTERISTIC_CONFIG));
             descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-            mBluetoothGatt.writeDescriptor(descriptor);
+            gatt.writeDescriptor(descriptor);
+        }
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        if (args != null && args.length == 3 && "log".equals(args[0])) {
+            setLogLevel(writer, args[1], args[2]);
+            return;
+        }
+        if (args != null && args.length == 4 && "log".equals(args[0])
+                && "sample".equals(args[2])) {
+            setLogSample(writer, args[1], args[3]);
+            return;
+        }
+        writer.println("Metrics:");
+        writer.print(MetricsRegistry.global().describe());
+        writer.println(StartupTrace.describe());
+        final GattSession active = mActive;
+        for (GattSession session : mSessions.values()) {
+            writer.println();
+            writer.println("Session " + session.address + (session == active ? " (active)" : "")
+                    + " open=" + session.isOpen() + " codec=" + session.codec.getName()
+                    + " transport=" + (session.l2cap != null ? "l2cap" : "gatt"));
+            writer.print(session.stateMachine.describe());
+            final CommandScheduler scheduler = session.scheduler;
+            if (scheduler == null) continue;
+            synchronized (scheduler) {
+                writer.println("queue=" + scheduler.getQueueDepth()
+                        + " intervalMs=" + scheduler.getMotionIntervalMillis()
+                        + " superseded=" + scheduler.getSupersededCount()
+                        + " stops=" + scheduler.getStopCount()
+                        + " stopAvgMs=" + scheduler.getAverageStopLatencyMillis()
+                        + " stopMaxMs=" + scheduler.getMaxStopLatencyMillis());
+                final SendRateController rate = session.rateController;
+                if (rate != null) {
+                    writer.println("rate increases=" + rate.getIncreaseCount()
+                            + " backoffs=" + rate.getBackoffCount());
+                }
+                final LinkQualityMonitor quality = session.quality;
+                if (quality != null) {
+                    writer.println("quality score=" + quality.getScore()
+                            + " rssi=" + quality.getRssi());
+                }
+                final ReliableLink reliable = session.reliable;
+                if (reliable != null) {
+                    writer.println("reliable sent=" + reliable.getSentCount()
+                            + " retransmitted=" + reliable.getRetransmitCount()
+                            + " stale=" + reliable.getStaleCount()
+                            + " replaced=" + reliable.getReplacedCount());
+                }
+                final RobotRequests requests = session.requests;
+                if (requests != null) {
+                    writer.println("requests in flight=" + requests.getInFlightCount()
+                            + " waiting=" + requests.getWaitingCount());
+                }
+            }
+        }
+        writer.println();
+        writer.println("Log:");
+        RingLog.dump(writer);
+    }
+
+    private static void setLogLevel(PrintWriter writer, String tag, String name) {
+        final int index = LOG_LEVEL_NAMES.indexOf(name.toLowerCase(Locale.US));
+        if (index < 0) {
+            writer.println("Unknown level " + name + ", use one of " + LOG_LEVEL_NAMES);
+        } else if (!RingLog.setLevel(tag, LOG_LEVELS[index])) {
+            writer.println("Unknown log tag " + tag);
+        } else {
+            writer.println("Log tag " + tag + " set to " + name);
+        }
+    }
+
+    private static void setLogSample(PrintWriter writer, String tag, String every) {
+        final int n;
+        try {
+            n = Integer.parseInt(every);
+        } catch (NumberFormatException e) {
+            writer.println("Not a number: " + every);
+            return;
+        }
+        if (n < 1) {
+            writer.println("Sample must be 1 or more");
+        } else if (!RingLog.setSampleEvery(tag, n)) {
+            writer.println("Unknown log tag " + tag);
+        } else {
+            writer.println("Log tag " + tag + " keeps 1 in " + n);
         }
     }
 
@@ -329,8 +1573,28 @@ public class BluetoothLeService extends Service {
      * @return A {@code List} of supported services.
      */
     public List<BluetoothGattService> getSupportedGattServices() {
-        if (mBluetoothGatt == null) return null;
+        if (sFakeRadio != null) {
+            return fakeServices();
+        }
+        final GattSession active = mActive;
+        final BluetoothGatt gatt = active == null ? null : active.gatt;
+        if (gatt == null) return null;
+
+        return gatt.getServices();
+    }
 
-        return mBluetoothGatt.getServices();
+    // What discovery finds on a Bluefruit, for screens looking up TX and RX on a fake radio
+    private static List<BluetoothGattService> fakeServices() {
+        final BluetoothGattService uart = new BluetoothGattService(UUID_UART_SERVICE,
+                BluetoothGattService.SERVICE_TYPE_PRIMARY);
+        uart.addCharacteristic(new BluetoothGattCharacteristic(UUID_TX,
+                BluetoothGattCharacteristic.PROPERTY_WRITE,
+                BluetoothGattCharacteristic.PERMISSION_WRITE));
+        uart.addCharacteristic(new BluetoothGattCharacteristic(UUID_RX,
+                BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+                BluetoothGattCharacteristic.PERMISSION_READ));
+        final List<BluetoothGattService> services = new ArrayList<BluetoothGattService>();
+        services.add(uart);
+        return services;
     }
 }
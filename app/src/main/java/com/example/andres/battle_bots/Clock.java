@@ -0,0 +1,18 @@
+package com.example.andres.battle_bots;
+
+/**
+ * Monotonic time source. The BLE classes take one so their timing logic can be driven by a fake
+ * clock off the device.
+ */
+public interface Clock {
+
+    // Milliseconds from an arbitrary origin, never goes backwards
+    long nowMillis();
+
+    Clock SYSTEM = new Clock() {
+        @Override
+        public long nowMillis() {
+            return System.nanoTime() / 1000000L;
+        }
+    };
+}
@@ -0,0 +1,542 @@
+package com.example.andres.battle_bots;
+
+/**
+ * Outbound command pipeline for one link. Commands are submitted per channel (one channel per
+ * control, e.g. a d-pad button) in one of two lanes:
+ *
+ * - {@link #PRIORITY_STOP} for stop, off and emergency frames, which go out ahead of motion
+ *   frames and only wait for the previous write to finish.
+ * - {@link #PRIORITY_MOTION} for everything else, which is paced so the Arduino can keep up. The
+ *   pace comes from a {@link SendRateController} that learns it from write completions, or is
+ *   {@link #MOTION_INTERVAL_MS} without one.
+ *
+ * Each channel holds at most one pending frame. A newer command for the same channel replaces the
+ * pending one, so an "off" makes a queued "on" for that button obsolete instead of following it.
+ * A frame on {@link #STATE_CHANNEL} carries the state of every control at once and replaces all
+ * of them. Motor-level frames from a {@link DriveMixer} go on {@link #DRIVE_CHANNEL}, which the
+ * full state leaves alone. With a {@link LinkQualityMonitor} attached, a poor link also stretches
+ * the motion pace.
+ *
+ * Channels belong to groups, e.g. the two d-pads when a driver and a weapon operator share the
+ * phone, and each group has its own pair of lanes. The link is shared between groups by deficit
+ * round robin: every round, each group with something waiting may send as many frames as its
+ * weight (1 by default), so one player mashing buttons only ever delays the other by a frame or
+ * two. Stop frames still go ahead of motion frames, and may run a group one frame into debt so a
+ * release never waits for a whole round, but the debt is repaid from the group's next round.
+ *
+ * Below both lanes, a {@link BackgroundSource} such as {@link RobotRequests} may send its frames
+ * at the motion pace whenever no command is waiting.
+ *
+ * All methods are synchronized: commands come from the UI thread while write completions arrive
+ * on binder threads. Writes, queue depth and per-stage latencies are reported to
+ * {@link LinkMetrics}.
+ */
+public class CommandScheduler {
+
+    public static final int PRIORITY_STOP = 0;
+    public static final int PRIORITY_MOTION = 1;
+
+    public static final int MAX_CHANNELS = 16;
+
+    // Extra channel for full-state frames, which make every per-control frame obsolete
+    public static final int STATE_CHANNEL = MAX_CHANNELS;
+
+    // Extra channel for motor-level frames, each of which makes the previous one obsolete
+    public static final int DRIVE_CHANNEL = MAX_CHANNELS + 1;
+
+    public static final int CHANNEL_SLOTS = MAX_CHANNELS + 2;
+
+    public static final int MAX_GROUPS = 4;
+
+    // Frames a group's stop lane may send beyond its share of the round
+    private static final int STOP_CREDIT = 1;
+
+    // Minimum spacing between motion commands, the old hand-tuned delay
+    public static final long MOTION_INTERVAL_MS = 140;
+
+    // Stop frames only leave a short gap so the UART bridge sees separate writes
+    public static final long STOP_INTERVAL_MS = 30;
+
+    // A write that never reports completion is assumed done after this long
+    public static final long WRITE_TIMEOUT_MS = 250;
+
+    // Hands a frame to the radio; completion is reported through onWriteComplete()
+    public interface Transport {
+        boolean write(byte[] frame);
+    }
+
+    // Frames that were already sent once and must go out again before anything new
+    public interface Retransmitter {
+        // Earliest time a frame will need resending, Long.MAX_VALUE if none
+        long nextRetransmitAt(long now);
+
+        // Writes one frame that needs resending, returns true if it wrote one
+        boolean retransmit(long now);
+
+        // Called just before a new frame is written: its channel and lane, or -1 for a frame
+        // from the BackgroundSource, so a resend never overtakes a newer frame for its channel
+        void onWriting(int channel, int priority);
+    }
+
+    // Low-priority frames, e.g. status queries, sent only while both lanes are empty
+    public interface BackgroundSource {
+        // The frame to send next, or null if there is none; the same one until it is sent
+        byte[] peekBackground();
+
+        // A frame returned by peekBackground() was handed to the radio; by then the source may
+        // have dropped it, e.g. on a timeout
+        void onBackgroundSent(byte[] frame, long now);
+    }
+
+    // Asks the owner to call pump() again after the given delay
+    public interface Waker {
+        void wakeUpIn(long delayMillis);
+    }
+
+    private final Transport mTransport;
+    private final Waker mWaker;
+    private final Clock mClock;
+    private Retransmitter mRetransmitter;
+    private SendRateController mRateController;
+    private LinkQualityMonitor mQuality;
+    private BackgroundSource mBackground;
+
+    // Pending frame per channel, null when nothing is waiting
+    private final byte[][] mPendingFrame = new byte[CHANNEL_SLOTS][];
+    private final int[] mPendingPriority = new int[CHANNEL_SLOTS];
+    private final long[] mPendingSince = new long[CHANNEL_SLOTS];
+    private int mPendingCount;
+
+    // One FIFO of channel ids per lane and group; a channel sits in a lane at most once
+    private final ChannelQueue[] mStopLanes = new ChannelQueue[MAX_GROUPS];
+    private final ChannelQueue[] mMotionLanes = new ChannelQueue[MAX_GROUPS];
+
+    // Group of each channel, and of the lanes its pending frame was queued in
+    private final int[] mGroupOf = new int[CHANNEL_SLOTS];
+    private final int[] mQueuedGroup = new int[CHANNEL_SLOTS];
+
+    // Deficit round robin state: frames per round, frames left this round (negative while in
+    // debt), the group the next scan starts at, and frames sent per group
+    private final int[] mWeights = new int[MAX_GROUPS];
+    private final int[] mDeficits = new int[MAX_GROUPS];
+    private int mNextGroup;
+    private final long[] mSentByGroup = new long[MAX_GROUPS];
+
+    private boolean mInFlight;
+    private long mLastWriteAt = Long.MIN_VALUE / 2;
+    private long mInFlightSince;
+    private long mWakeUpAt = -1;
+
+    // Submit-to-write latency of stop frames
+    private long mStopCount;
+    private long mStopLatencyTotal;
+    private long mStopLatencyMax;
+    private long mSuperseded;
+
+    public CommandScheduler(Transport transport, Waker waker, Clock clock) {
+        mTransport = transport;
+        mWaker = waker;
+        mClock = clock;
+        for (int group = 0; group < MAX_GROUPS; group++) {
+            mStopLanes[group] = new ChannelQueue(CHANNEL_SLOTS);
+            mMotionLanes[group] = new ChannelQueue(CHANNEL_SLOTS);
+            mWeights[group] = 1;
+        }
+    }
+
+    // Puts a channel's future frames in a group's lanes; every channel starts in group 0
+    public synchronized void setChannelGroup(int channel, int group) {
+        if (group < 0 || group >= MAX_GROUPS) {
+            throw new IllegalArgumentException("Group " + group + " out of range");
+        }
+        mGroupOf[channel] = group;
+    }
+
+    // Frames the group may send per round while others are waiting too, at least 1
+    public synchronized void setGroupWeight(int group, int weight) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("Weight " + weight);
+        }
+        mWeights[group] = weight;
+    }
+
+    /**
+     * Sets where resends come from, typically the {@link ReliableLink} that is also this
+     * scheduler's transport. Resends go out ahead of both lanes.
+     */
+    public synchronized void setRetransmitter(Retransmitter retransmitter) {
+        mRetransmitter = retransmitter;
+    }
+
+    // Lets the motion interval adapt to how the link is doing
+    public synchronized void setRateController(SendRateController controller) {
+        mRateController = controller;
+    }
+
+    // Lets a weak link slow the motion pace and report write outcomes to the monitor
+    public synchronized void setLinkQuality(LinkQualityMonitor quality) {
+        mQuality = quality;
+    }
+
+    // Fills otherwise idle link time; call pump() when the source has something new
+    public synchronized void setBackgroundSource(BackgroundSource background) {
+        mBackground = background;
+    }
+
+    /**
+     * Queues a frame for a channel and sends it as soon as its lane allows.
+     *
+     * @param channel The control the frame belongs to, below {@link #MAX_CHANNELS},
+     *                {@link #STATE_CHANNEL} for a full-state frame or {@link #DRIVE_CHANNEL}
+     *                for a motor-level frame.
+     * @param priority {@link #PRIORITY_STOP} or {@link #PRIORITY_MOTION}.
+     * @param frame The encoded command. Not copied, so it must not change afterwards.
+     */
+    public synchronized void submit(int channel, int priority, byte[] frame) {
+        if (channel == STATE_CHANNEL) {
+            // The full state already says what every control is doing
+            for (int i = 0; i < MAX_CHANNELS; i++) {
+                if (mPendingFrame[i] == null) continue;
+                mPendingFrame[i] = null;
+                mPendingCount--;
+                mSuperseded++;
+                LinkMetrics.COMMANDS_SUPERSEDED.inc();
+            }
+        }
+        if (mPendingFrame[channel] != null) {
+            mSuperseded++;
+            LinkMetrics.COMMANDS_SUPERSEDED.inc();
+        } else {
+            mPendingSince[channel] = mClock.nowMillis();
+            mPendingCount++;
+        }
+        mPendingFrame[channel] = frame;
+        mPendingPriority[channel] = priority;
+        final int group = mGroupOf[channel];
+        mQueuedGroup[channel] = group;
+        if (priority == PRIORITY_STOP) {
+            mStopLanes[group].offer(channel);
+        } else {
+            mMotionLanes[group].offer(channel);
+        }
+        LinkMetrics.QUEUE_DEPTH.set(mPendingCount);
+        pump();
+    }
+
+    // Called by the transport owner once the radio is done with the last frame
+    public synchronized void onWriteComplete(boolean success) {
+        if (mInFlight) {
+            final long latency = mClock.nowMillis() - mInFlightSince;
+            LinkMetrics.WRITE_LATENCY.record(latency);
+            if (success) {
+                LinkMetrics.WRITES_COMPLETED.inc();
+            } else {
+                LinkMetrics.WRITES_FAILED.inc();
+            }
+            if (mRateController != null) {
+                mRateController.onWriteComplete(latency, success, mPendingCount);
+            }
+            if (mQuality != null) {
+                mQuality.onWriteResult(success);
+            }
+        }
+        mInFlight = false;
+        pump();
+    }
+
+    // Drops everything still queued, e.g. when the link goes away
+    public synchronized void clear() {
+        for (int i = 0; i < mPendingFrame.length; i++) {
+            mPendingFrame[i] = null;
+        }
+        mPendingCount = 0;
+        for (int group = 0; group < MAX_GROUPS; group++) {
+            mStopLanes[group].clear();
+            mMotionLanes[group].clear();
+            mDeficits[group] = 0;
+        }
+        mInFlight = false;
+        LinkMetrics.QUEUE_DEPTH.set(0);
+    }
+
+    /**
+     * Sends the next frame if the link is free and its lane's interval has passed, otherwise
+     * schedules a wake-up for when it will be.
+     */
+    public synchronized void pump() {
+        final long now = mClock.nowMillis();
+        if (mInFlight) {
+            if (now - mInFlightSince < WRITE_TIMEOUT_MS) {
+                requestWakeUp(now, mInFlightSince + WRITE_TIMEOUT_MS);
+                return;
+            }
+            // Never completed, which is as bad a sign as a failure
+            LinkMetrics.WRITES_FAILED.inc();
+            if (mRateController != null) {
+                mRateController.onWriteComplete(WRITE_TIMEOUT_MS, false, mPendingCount);
+            }
+            if (mQuality != null) {
+                mQuality.onWriteResult(false);
+            }
+            mInFlight = false;
+        }
+
+        if (mRetransmitter != null) {
+            final long resendAt = Math.max(mRetransmitter.nextRetransmitAt(now),
+                    mLastWriteAt + STOP_INTERVAL_MS);
+            if (resendAt <= now && mRetransmitter.retransmit(now)) {
+                LinkMetrics.WRITES_ISSUED.inc();
+                if (mQuality != null) {
+                    mQuality.onWriteIssued(true);
+                }
+                markInFlight(now);
+                return;
+            }
+            if (resendAt > now && resendAt != Long.MAX_VALUE) {
+                requestWakeUp(now, resendAt);
+            }
+        }
+
+        final int channel = nextChannel();
+        if (channel < 0) {
+            pumpBackground(now);
+            return;
+        }
+        final int priority = mPendingPriority[channel];
+        final long readyAt = mLastWriteAt
+                + (priority == PRIORITY_STOP ? STOP_INTERVAL_MS : getMotionIntervalMillis());
+        if (now < readyAt) {
+            requestWakeUp(now, readyAt);
+            return;
+        }
+
+        final byte[] frame = mPendingFrame[channel];
+        final int group = mQueuedGroup[channel];
+        final ChannelQueue lane =
+                priority == PRIORITY_STOP ? mStopLanes[group] : mMotionLanes[group];
+        lane.poll();
+        if (mRetransmitter != null) {
+            mRetransmitter.onWriting(channel, priority);
+        }
+        if (!mTransport.write(frame)) {
+            // The stack is busy; keep the frame and try again after a short pause
+            LinkMetrics.WRITES_BUSY.inc();
+            if (mRateController != null) {
+                mRateController.onBusy();
+            }
+            requestWakeUp(now, now + STOP_INTERVAL_MS);
+            lane.offerFirst(channel);
+            return;
+        }
+        mPendingFrame[channel] = null;
+        mPendingCount--;
+        mDeficits[group]--;
+        mSentByGroup[group]++;
+        mNextGroup = (group + 1) % MAX_GROUPS;
+        markInFlight(now);
+        LinkMetrics.WRITES_ISSUED.inc();
+        LinkMetrics.QUEUE_DEPTH.set(mPendingCount);
+        if (mQuality != null) {
+            mQuality.onWriteIssued(false);
+        }
+
+        final long latency = now - mPendingSince[channel];
+        LinkMetrics.QUEUE_LATENCY.record(latency);
+        if (priority == PRIORITY_STOP) {
+            LinkMetrics.STOP_QUEUE_LATENCY.record(latency);
+            mStopCount++;
+            mStopLatencyTotal += latency;
+            if (latency > mStopLatencyMax) mStopLatencyMax = latency;
+        }
+    }
+
+    // Sends a background frame, paced like motion since it costs the robot as much parsing
+    private void pumpBackground(long now) {
+        final byte[] frame = mBackground == null ? null : mBackground.peekBackground();
+        if (frame == null) {
+            return;
+        }
+        final long readyAt = mLastWriteAt + getMotionIntervalMillis();
+        if (now < readyAt) {
+            requestWakeUp(now, readyAt);
+            return;
+        }
+        if (mRetransmitter != null) {
+            mRetransmitter.onWriting(-1, PRIORITY_MOTION);
+        }
+        if (!mTransport.write(frame)) {
+            LinkMetrics.WRITES_BUSY.inc();
+            requestWakeUp(now, now + STOP_INTERVAL_MS);
+            return;
+        }
+        mBackground.onBackgroundSent(frame, now);
+        markInFlight(now);
+        LinkMetrics.WRITES_ISSUED.inc();
+        if (mQuality != null) {
+            mQuality.onWriteIssued(false);
+        }
+    }
+
+    private void markInFlight(long now) {
+        mInFlight = true;
+        mInFlightSince = now;
+        mLastWriteAt = now;
+    }
+
+    /**
+     * Picks the channel to send next: a stop frame from the first group, in round robin order,
+     * that still has its share or stop credit left, else a motion frame from the first group with
+     * its share left. When every waiting group has used its share, the next round starts.
+     *
+     * @return -1 if nothing is waiting.
+     */
+    private int nextChannel() {
+        // A group in debt is back above zero after at most two rounds
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < MAX_GROUPS; i++) {
+                final int group = (mNextGroup + i) % MAX_GROUPS;
+                if (mDeficits[group] > -STOP_CREDIT) {
+                    final int channel = headOf(group, PRIORITY_STOP);
+                    if (channel >= 0) return channel;
+                }
+            }
+            for (int i = 0; i < MAX_GROUPS; i++) {
+                final int group = (mNextGroup + i) % MAX_GROUPS;
+                if (mDeficits[group] > 0) {
+                    final int channel = headOf(group, PRIORITY_MOTION);
+                    if (channel >= 0) return channel;
+                }
+            }
+            if (!startRound()) return -1;
+        }
+        return -1;
+    }
+
+    // Gives every waiting group its weight of frames; returns false if no group is waiting
+    private boolean startRound() {
+        boolean waiting = false;
+        for (int group = 0; group < MAX_GROUPS; group++) {
+            if (headOf(group, PRIORITY_STOP) >= 0
+                    || headOf(group, PRIORITY_MOTION) >= 0) {
+                mDeficits[group] = Math.min(mDeficits[group] + mWeights[group], mWeights[group]);
+                waiting = true;
+            } else {
+                // An idle group neither saves up a burst nor keeps its debt
+                mDeficits[group] = 0;
+            }
+        }
+        return waiting;
+    }
+
+    // Returns the channel at the head of a lane, skipping entries that moved to another lane
+    private int headOf(int group, int priority) {
+        final ChannelQueue lane =
+                priority == PRIORITY_STOP ? mStopLanes[group] : mMotionLanes[group];
+        while (!lane.isEmpty()) {
+            final int channel = lane.peek();
+            if (mPendingFrame[channel] != null && mPendingPriority[channel] == priority
+                    && mQueuedGroup[channel] == group) {
+                return channel;
+            }
+            lane.poll();
+        }
+        return -1;
+    }
+
+    private void requestWakeUp(long now, long at) {
+        // A wake-up due now is the one being handled, so it cannot stand in for a later one
+        if (mWakeUpAt > now && mWakeUpAt <= at) {
+            return;
+        }
+        mWakeUpAt = at;
+        mWaker.wakeUpIn(at - now);
+    }
+
+    public synchronized long getMotionIntervalMillis() {
+        final long interval = mRateController != null
+                ? mRateController.getIntervalMillis() : MOTION_INTERVAL_MS;
+        return mQuality != null ? (long) (interval * mQuality.getIntervalScale()) : interval;
+    }
+
+    public synchronized boolean isPending(int channel) {
+        return mPendingFrame[channel] != null;
+    }
+
+    // Commands waiting to be sent
+    public synchronized int getQueueDepth() {
+        return mPendingCount;
+    }
+
+    public synchronized long getStopCount() {
+        return mStopCount;
+    }
+
+    // Average time from submitting a stop frame to handing it to the radio, -1 if none yet
+    public synchronized long getAverageStopLatencyMillis() {
+        return mStopCount == 0 ? -1 : mStopLatencyTotal / mStopCount;
+    }
+
+    public synchronized long getMaxStopLatencyMillis() {
+        return mStopLatencyMax;
+    }
+
+    // Commands replaced by a newer one for the same channel before they were sent
+    public synchronized long getSupersededCount() {
+        return mSuperseded;
+    }
+
+    // Frames sent from a group's lanes
+    public synchronized long getSentCount(int group) {
+        return mSentByGroup[group];
+    }
+
+    /**
+     * Fixed-capacity FIFO of channel ids that refuses duplicates, so queueing never allocates.
+     */
+    static class ChannelQueue {
+        private final int[] mItems;
+        private final boolean[] mQueued;
+        private int mHead;
+        private int mSize;
+
+        ChannelQueue(int capacity) {
+            mItems = new int[capacity];
+            mQueued = new boolean[capacity];
+        }
+
+        void offer(int channel) {
+            if (mQueued[channel]) return;
+            mItems[(mHead + mSize) % mItems.length] = channel;
+            mQueued[channel] = true;
+            mSize++;
+        }
+
+        void offerFirst(int channel) {
+            if (mQueued[channel]) return;
+            mHead = (mHead - 1 + mItems.length) % mItems.length;
+            mItems[mHead] = channel;
+            mQueued[channel] = true;
+            mSize++;
+        }
+
+        int peek() {
+            return mItems[mHead];
+        }
+
+        int poll() {
+            final int channel = mItems[mHead];
+            mHead = (mHead + 1) % mItems.length;
+            mSize--;
+            mQueued[channel] = false;
+            return channel;
+        }
+
+        boolean isEmpty() {
+            return mSize == 0;
+        }
+
+        void clear() {
+            while (mSize > 0) poll();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.example.andres.battle_bots;
+
+/**
+ * Single-byte framing for newer firmware. The high bit keeps every frame outside the ASCII range,
+ * so firmware can accept both protocols on the same UART.
+ *
+ *   100p cccc  button event: p = 1 for pressed, cccc = channel
+ *   1010 0000  every control off
+ *   1011 0000  full state, followed by the pressed bits of channels 0-7, then 8-15
+ *   1100 000x  request and response frames, see {@link RobotRequests}
+ *   1101 0000  motor levels, followed by left then right as signed bytes from -127 to 127
+ */
+public class CompactProtocolCodec implements ProtocolCodec {
+
+    private static final int BUTTON_EVENT = 0x80;
+    private static final int PRESSED = 0x10;
+    private static final int STOP_ALL = 0xA0;
+    private static final int FULL_STATE = 0xB0;
+    private static final int MOTORS = 0xD0;
+
+    // Full scale of a motor byte on the wire
+    private static final int MOTOR_FULL_SCALE = 127;
+    private static final int MOTOR_LEVELS = 2 * MOTOR_STEPS + 1;
+
+    private static final int CHANNELS = 16;
+
+    private final byte[][] mOnFrames = new byte[CHANNELS][];
+    private final byte[][] mOffFrames = new byte[CHANNELS][];
+    private final byte[][] mStopAllFrames = {{(byte) STOP_ALL}};
+    // Every pair of motor levels, so driving never builds a frame
+    private final byte[][] mMotorFrames = new byte[MOTOR_LEVELS * MOTOR_LEVELS][];
+
+    public CompactProtocolCodec() {
+        for (int i = 0; i < CHANNELS; i++) {
+            mOnFrames[i] = new byte[] {(byte) (BUTTON_EVENT | PRESSED | i)};
+            mOffFrames[i] = new byte[] {(byte) (BUTTON_EVENT | i)};
+        }
+        for (int left = 0; left < MOTOR_LEVELS; left++) {
+            for (int right = 0; right < MOTOR_LEVELS; right++) {
+                mMotorFrames[left * MOTOR_LEVELS + right] = new byte[] {(byte) MOTORS,
+                        (byte) motorByte(left - MOTOR_STEPS), (byte) motorByte(right - MOTOR_STEPS)};
+            }
+        }
+    }
+
+    private static int motorByte(int level) {
+        return level * MOTOR_FULL_SCALE / MOTOR_STEPS;
+    }
+
+    @Override
+    public String getName() {
+        return "compact";
+    }
+
+    @Override
+    public int getChannelCount() {
+        return CHANNELS;
+    }
+
+    @Override
+    public byte[] encodeButton(int channel, boolean pressed) {
+        return pressed ? mOnFrames[channel] : mOffFrames[channel];
+    }
+
+    @Override
+    public byte[][] encodeStopAll() {
+        return mStopAllFrames;
+    }
+
+    @Override
+    public byte[] encodeFullState(int pressedMask) {
+        return new byte[] {(byte) FULL_STATE, (byte) pressedMask, (byte) (pressedMask >> 8)};
+    }
+
+    @Override
+    public byte[] encodeMotors(int left, int right) {
+        return mMotorFrames[(left + MOTOR_STEPS) * MOTOR_LEVELS + right + MOTOR_STEPS];
+    }
+}
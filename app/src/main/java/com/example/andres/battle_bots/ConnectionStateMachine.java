@@ -0,0 +1,171 @@
+package com.example.andres.battle_bots;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Single source of truth for the state of a GATT connection. GATT callbacks arrive on binder
+ * threads while commands come from the UI, so every transition is a compare-and-set on one
+ * atomic reference, and only the transitions listed in {@link #isAllowed(State, State)} succeed.
+ *
+ * Commands may only be written while the link is {@link State#READY}. The time spent in a state
+ * before leaving it is accumulated per transition, so slow connects or discoveries show up in
+ * {@link #describe()}.
+ */
+public class ConnectionStateMachine {
+
+    public enum State {
+        DISCONNECTED,
+        CONNECTING,
+        DISCOVERING,
+        READY,
+        DISCONNECTING
+    }
+
+    // How long each transient state may last before the service gives up on it
+    public static final long CONNECTING_TIMEOUT_MS = 10000;
+    public static final long DISCOVERING_TIMEOUT_MS = 8000;
+    public static final long DISCONNECTING_TIMEOUT_MS = 3000;
+
+    // Notified after every successful transition, on the thread that made it
+    public interface Listener {
+        void onStateChanged(State from, State to, int epoch);
+    }
+
+    private static final int STATE_COUNT = State.values().length;
+
+    private final Clock mClock;
+    private final AtomicReference<State> mState = new AtomicReference<State>(State.DISCONNECTED);
+
+    // Bumped on every transition, lets a timeout tell whether the state it guards is still current
+    private final AtomicInteger mEpoch = new AtomicInteger();
+    private volatile long mEnteredAt;
+    private volatile Listener mListener;
+
+    // Indexed by from * STATE_COUNT + to
+    private final AtomicLongArray mTransitionCount = new AtomicLongArray(STATE_COUNT * STATE_COUNT);
+    private final AtomicLongArray mTransitionMillis = new AtomicLongArray(STATE_COUNT * STATE_COUNT);
+
+    public ConnectionStateMachine(Clock clock) {
+        mClock = clock;
+        mEnteredAt = clock.nowMillis();
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public State getState() {
+        return mState.get();
+    }
+
+    public int getEpoch() {
+        return mEpoch.get();
+    }
+
+    // Commands are only accepted once the link is connected and its services are known
+    public boolean isReady() {
+        return mState.get() == State.READY;
+    }
+
+    /**
+     * Moves to {@code to} from whatever the current state is, if that transition is allowed.
+     *
+     * @return true if the transition happened.
+     */
+    public boolean moveTo(State to) {
+        while (true) {
+            final State from = mState.get();
+            if (!isAllowed(from, to)) {
+                return false;
+            }
+            if (transition(from, to)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Moves from {@code from} to {@code to} only if the machine is still in {@code from}.
+     *
+     * @return true if the transition happened.
+     */
+    public boolean transition(State from, State to) {
+        if (!isAllowed(from, to) || !mState.compareAndSet(from, to)) {
+            return false;
+        }
+        final long now = mClock.nowMillis();
+        final int index = from.ordinal() * STATE_COUNT + to.ordinal();
+        mTransitionCount.incrementAndGet(index);
+        mTransitionMillis.addAndGet(index, now - mEnteredAt);
+        mEnteredAt = now;
+        final int epoch = mEpoch.incrementAndGet();
+
+        final Listener listener = mListener;
+        if (listener != null) {
+            listener.onStateChanged(from, to, epoch);
+        }
+        return true;
+    }
+
+    public static boolean isAllowed(State from, State to) {
+        if (from == to) return false;
+        // The link can drop at any point
+        if (to == State.DISCONNECTED) return true;
+        switch (from) {
+            case DISCONNECTED:
+                return to == State.CONNECTING;
+            case CONNECTING:
+                return to == State.DISCOVERING || to == State.DISCONNECTING;
+            case DISCOVERING:
+                return to == State.READY || to == State.DISCONNECTING;
+            case READY:
+                return to == State.DISCONNECTING;
+            default:
+                return false;
+        }
+    }
+
+    // Returns 0 for states that may last indefinitely
+    public static long timeoutFor(State state) {
+        switch (state) {
+            case CONNECTING:
+                return CONNECTING_TIMEOUT_MS;
+            case DISCOVERING:
+                return DISCOVERING_TIMEOUT_MS;
+            case DISCONNECTING:
+                return DISCONNECTING_TIMEOUT_MS;
+            default:
+                return 0;
+        }
+    }
+
+    public long getTransitionCount(State from, State to) {
+        return mTransitionCount.get(from.ordinal() * STATE_COUNT + to.ordinal());
+    }
+
+    // Average time spent in {@code from} before moving to {@code to}, or -1 if never seen
+    public long getAverageTransitionMillis(State from, State to) {
+        final int index = from.ordinal() * STATE_COUNT + to.ordinal();
+        final long count = mTransitionCount.get(index);
+        return count == 0 ? -1 : mTransitionMillis.get(index) / count;
+    }
+
+    // One line per transition that has happened at least once, for logs and dumps
+    public String describe() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("state=").append(mState.get()).append('\n');
+        for (State from : State.values()) {
+            for (State to : State.values()) {
+                final long count = getTransitionCount(from, to);
+                if (count == 0) continue;
+                sb.append(from).append(" -> ").append(to)
+                        .append(" count=").append(count)
+                        .append(" avgMs=").append(getAverageTransitionMillis(from, to))
+                        .append('\n');
+            }
+        }
+        return sb.toString();
+    }
+}
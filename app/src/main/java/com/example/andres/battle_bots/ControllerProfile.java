@@ -0,0 +1,433 @@
+package com.example.andres.battle_bots;
+
+import android.content.Context;
+import android.util.Log;
+import android.view.KeyEvent;
+import android.view.MotionEvent;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Which on-screen control sends which command, declared in a JSON asset instead of code:
+ *
+ *   assets/profiles/<robot name>.json, falling back to assets/profiles/default.json
+ *
+ * Each entry of "controls" names a view id, the command channel it drives, its group (e.g. the
+ * d-pad it belongs to) and the lane ("motion" or "stop") its press and release go out in:
+ *
+ *   {"view": "up_btn1", "channel": 0, "group": 0, "press": "motion", "release": "stop"}
+ *
+ * Groups share the link fairly (see {@link CommandScheduler}), so two players on one phone
+ * cannot starve each other. An optional "group_weights" array gives a group a larger share, e.g.
+ * [2, 1] lets group 0 send two frames for every one of group 1 while both are busy.
+ *
+ * An optional "gamepad" section binds physical controllers to the same controls, by the names of
+ * the KeyEvent and MotionEvent constants:
+ *
+ *   "gamepad": {
+ *     "keys": [{"key": "KEYCODE_DPAD_UP", "control": "up_btn1"}],
+ *     "axes": [{"axis": "AXIS_Y", "negative": "up_btn1", "positive": "down_btn1",
+ *               "threshold": 0.5}],
+ *     "estop": ["KEYCODE_BUTTON_SELECT"]
+ *   }
+ *
+ * and an optional "tilt" section names the controls that tilt steering holds:
+ *
+ *   "tilt": {"forward": "up_btn1", "back": "down_btn1", "left": "left_btn1", "right": "right_btn1"}
+ *
+ * An optional "drive" section is used with firmware that takes motor levels: it names the controls
+ * and gamepad axes that feed the {@link DriveMixer} instead of going out as buttons, and tunes its
+ * curves. Pushing the throttle axis up, which gamepads report as negative, drives forward:
+ *
+ *   "drive": {"forward": "up_btn1", "back": "down_btn1", "left": "left_btn1",
+ *             "right": "right_btn1", "throttle_axis": "AXIS_Y", "steer_axis": "AXIS_X",
+ *             "throttle_expo": 0.3, "steer_expo": 0.5, "deadband": 0.08, "steer_rate": 0.7,
+ *             "max_output": 1.0}
+ *
+ * The profile is compiled once into flat arrays indexed by control, so handling a touch or a key
+ * is a single array lookup with no parsing, boxing or allocation. The bytes themselves come from
+ * the codec's prebuilt frames for the channel.
+ */
+public class ControllerProfile {
+    private final static String TAG = ControllerProfile.class.getSimpleName();
+
+    public static final String ASSET_DIR = "profiles";
+    public static final String DEFAULT_PROFILE = "default";
+
+    // Key codes at or above this cannot be bound
+    public static final int KEY_TABLE_SIZE = 512;
+
+    // Tilt directions, in the order of the "tilt" section's keys
+    public static final int TILT_FORWARD = 0;
+    public static final int TILT_BACK = 1;
+    public static final int TILT_LEFT = 2;
+    public static final int TILT_RIGHT = 3;
+    private static final String[] TILT_KEYS = {"forward", "back", "left", "right"};
+
+    // Drive inputs of the "drive" section
+    public static final int DRIVE_THROTTLE = 0;
+    public static final int DRIVE_STEER = 1;
+    private static final String[] DRIVE_AXIS_KEYS = {"throttle_axis", "steer_axis"};
+
+    // Turns a view name from the profile into a view id, 0 if there is no such view
+    public interface ViewIdResolver {
+        int resolve(String viewName);
+    }
+
+    private final String mName;
+
+    // Compiled tables, indexed by control
+    private final int[] mViewIds;
+    private final int[] mChannels;
+    private final int[] mGroups;
+    private final int[] mPressPriority;
+    private final int[] mReleasePriority;
+    private final int[] mGroupWeights = new int[CommandScheduler.MAX_GROUPS];
+
+    // Gamepad bindings: the control for each key code (-1 if unbound), and per axis binding the
+    // axis, the controls for either direction (-1 if none) and the threshold
+    private final int[] mControlByKey = new int[KEY_TABLE_SIZE];
+    private final boolean[] mEstopKey = new boolean[KEY_TABLE_SIZE];
+    private int[] mAxes = new int[0];
+    private int[] mNegativeControls = new int[0];
+    private int[] mPositiveControls = new int[0];
+    private float[] mThresholds = new float[0];
+
+    // Control held by tilting in each direction, -1 if none
+    private final int[] mTiltControls = {-1, -1, -1, -1};
+
+    // Drive section: controls per tilt direction and axis per drive input (-1 if none), and the
+    // mixer tuning, null without a drive section
+    private final int[] mDriveControls = {-1, -1, -1, -1};
+    private final int[] mDriveAxes = {-1, -1};
+    private final boolean[] mIsDriveControl;
+    private DriveMixer.Tuning mDriveTuning;
+
+    private ControllerProfile(String name, int count) {
+        mName = name;
+        mViewIds = new int[count];
+        mChannels = new int[count];
+        mGroups = new int[count];
+        mPressPriority = new int[count];
+        mReleasePriority = new int[count];
+        mIsDriveControl = new boolean[count];
+        Arrays.fill(mControlByKey, -1);
+        Arrays.fill(mGroupWeights, 1);
+    }
+
+    /**
+     * Loads the profile for a robot, or the default one if it has none or its profile is broken.
+     *
+     * @param robotName The advertised device name, may be null.
+     */
+    public static ControllerProfile load(final Context context, String robotName) {
+        final ViewIdResolver resolver = new ViewIdResolver() {
+            @Override
+            public int resolve(String viewName) {
+                return context.getResources().getIdentifier(viewName, "id",
+                        context.getPackageName());
+            }
+        };
+        if (robotName != null && robotName.length() > 0) {
+            try {
+                return compile(readAsset(context, robotName), resolver);
+            } catch (IOException e) {
+                // No profile of its own, the usual case
+            } catch (JSONException | IllegalArgumentException e) {
+                Log.e(TAG, "Broken profile for " + robotName + ", using the default", e);
+            }
+        }
+        try {
+            return compile(readAsset(context, DEFAULT_PROFILE), resolver);
+        } catch (IOException | JSONException e) {
+            // Ships with the app, so this is a build problem rather than something to recover from
+            throw new IllegalStateException("Default controller profile is missing or broken", e);
+        }
+    }
+
+    private static String readAsset(Context context, String profileName) throws IOException {
+        final InputStream in = context.getAssets().open(ASSET_DIR + "/" + profileName + ".json");
+        try {
+            final Reader reader = new InputStreamReader(in, "UTF-8");
+            final StringBuilder sb = new StringBuilder();
+            final char[] buffer = new char[1024];
+            int n;
+            while ((n = reader.read(buffer)) > 0) {
+                sb.append(buffer, 0, n);
+            }
+            return sb.toString();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Compiles a profile's JSON into lookup tables.
+     *
+     * @throws JSONException If the JSON is malformed or misses a field.
+     * @throws IllegalArgumentException If a view, channel or lane does not exist.
+     */
+    static ControllerProfile compile(String json, ViewIdResolver resolver) throws JSONException {
+        final JSONObject root = new JSONObject(json);
+        final JSONArray controls = root.getJSONArray("controls");
+        final ControllerProfile profile =
+                new ControllerProfile(root.optString("name", "unnamed"), controls.length());
+        final HashMap<String, Integer> controlByView = new HashMap<String, Integer>();
+        for (int i = 0; i < controls.length(); i++) {
+            final JSONObject control = controls.getJSONObject(i);
+            final String view = control.getString("view");
+            final int viewId = resolver.resolve(view);
+            if (viewId == 0) {
+                throw new IllegalArgumentException("No view named " + view);
+            }
+            final int channel = control.getInt("channel");
+            if (channel < 0 || channel >= CommandScheduler.MAX_CHANNELS) {
+                throw new IllegalArgumentException("Channel " + channel + " out of range");
+            }
+            profile.mViewIds[i] = viewId;
+            profile.mChannels[i] = channel;
+            profile.mGroups[i] = control.optInt("group", 0);
+            if (profile.mGroups[i] < 0 || profile.mGroups[i] >= CommandScheduler.MAX_GROUPS) {
+                throw new IllegalArgumentException("Group " + profile.mGroups[i] + " out of range");
+            }
+            profile.mPressPriority[i] = parseLane(control.optString("press", "motion"));
+            profile.mReleasePriority[i] = parseLane(control.optString("release", "stop"));
+            controlByView.put(view, i);
+        }
+        final JSONArray weights = root.optJSONArray("group_weights");
+        for (int group = 0; weights != null && group < weights.length(); group++) {
+            if (group >= CommandScheduler.MAX_GROUPS || weights.getInt(group) < 1) {
+                throw new IllegalArgumentException("Bad weight for group " + group);
+            }
+            profile.mGroupWeights[group] = weights.getInt(group);
+        }
+        final JSONObject gamepad = root.optJSONObject("gamepad");
+        if (gamepad != null) {
+            compileGamepad(profile, gamepad, controlByView);
+        }
+        final JSONObject tilt = root.optJSONObject("tilt");
+        for (int direction = 0; tilt != null && direction < TILT_KEYS.length; direction++) {
+            if (tilt.has(TILT_KEYS[direction])) {
+                profile.mTiltControls[direction] =
+                        parseControl(tilt.getString(TILT_KEYS[direction]), controlByView);
+            }
+        }
+        final JSONObject drive = root.optJSONObject("drive");
+        if (drive != null) {
+            compileDrive(profile, drive, controlByView);
+        }
+        return profile;
+    }
+
+    private static void compileDrive(ControllerProfile profile, JSONObject drive,
+                                     HashMap<String, Integer> controlByView)
+            throws JSONException {
+        for (int direction = 0; direction < TILT_KEYS.length; direction++) {
+            if (drive.has(TILT_KEYS[direction])) {
+                final int control =
+                        parseControl(drive.getString(TILT_KEYS[direction]), controlByView);
+                profile.mDriveControls[direction] = control;
+                profile.mIsDriveControl[control] = true;
+            }
+        }
+        for (int input = 0; input < DRIVE_AXIS_KEYS.length; input++) {
+            if (drive.has(DRIVE_AXIS_KEYS[input])) {
+                final String name = drive.getString(DRIVE_AXIS_KEYS[input]);
+                profile.mDriveAxes[input] = MotionEvent.axisFromString(name);
+                if (profile.mDriveAxes[input] < 0) {
+                    throw new IllegalArgumentException("Unknown axis " + name);
+                }
+            }
+        }
+        final DriveMixer.Tuning tuning = new DriveMixer.Tuning();
+        tuning.throttleExpo = (float) drive.optDouble("throttle_expo", tuning.throttleExpo);
+        tuning.steerExpo = (float) drive.optDouble("steer_expo", tuning.steerExpo);
+        tuning.deadband = (float) drive.optDouble("deadband", tuning.deadband);
+        tuning.steerRate = (float) drive.optDouble("steer_rate", tuning.steerRate);
+        tuning.maxOutput = (float) drive.optDouble("max_output", tuning.maxOutput);
+        // Builds the tables once so bad values fail here rather than at connect time
+        new DriveMixer(tuning);
+        profile.mDriveTuning = tuning;
+    }
+
+    private static void compileGamepad(ControllerProfile profile, JSONObject gamepad,
+                                       HashMap<String, Integer> controlByView)
+            throws JSONException {
+        final JSONArray keys = gamepad.optJSONArray("keys");
+        for (int i = 0; keys != null && i < keys.length(); i++) {
+            final JSONObject key = keys.getJSONObject(i);
+            profile.mControlByKey[parseKey(key.getString("key"))] =
+                    parseControl(key.getString("control"), controlByView);
+        }
+
+        final JSONArray estop = gamepad.optJSONArray("estop");
+        for (int i = 0; estop != null && i < estop.length(); i++) {
+            profile.mEstopKey[parseKey(estop.getString(i))] = true;
+        }
+
+        final JSONArray axes = gamepad.optJSONArray("axes");
+        final int count = axes == null ? 0 : axes.length();
+        if (count > ControllerState.MAX_SOURCES - ControllerState.SOURCE_FIRST_AXIS) {
+            throw new IllegalArgumentException("Too many axis bindings: " + count);
+        }
+        profile.mAxes = new int[count];
+        profile.mNegativeControls = new int[count];
+        profile.mPositiveControls = new int[count];
+        profile.mThresholds = new float[count];
+        for (int i = 0; i < count; i++) {
+            final JSONObject axis = axes.getJSONObject(i);
+            final String name = axis.getString("axis");
+            profile.mAxes[i] = MotionEvent.axisFromString(name);
+            if (profile.mAxes[i] < 0) {
+                throw new IllegalArgumentException("Unknown axis " + name);
+            }
+            profile.mNegativeControls[i] = axis.has("negative")
+                    ? parseControl(axis.getString("negative"), controlByView) : -1;
+            profile.mPositiveControls[i] = axis.has("positive")
+                    ? parseControl(axis.getString("positive"), controlByView) : -1;
+            profile.mThresholds[i] = (float) axis.optDouble("threshold", 0.5);
+        }
+    }
+
+    private static int parseKey(String name) {
+        final int keyCode = KeyEvent.keyCodeFromString(name);
+        if (keyCode <= KeyEvent.KEYCODE_UNKNOWN || keyCode >= KEY_TABLE_SIZE) {
+            throw new IllegalArgumentException("Unknown key " + name);
+        }
+        return keyCode;
+    }
+
+    private static int parseControl(String view, HashMap<String, Integer> controlByView) {
+        final Integer control = controlByView.get(view);
+        if (control == null) {
+            throw new IllegalArgumentException("No control bound to view " + view);
+        }
+        return control;
+    }
+
+    private static int parseLane(String lane) {
+        if ("motion".equals(lane)) return CommandScheduler.PRIORITY_MOTION;
+        if ("stop".equals(lane)) return CommandScheduler.PRIORITY_STOP;
+        throw new IllegalArgumentException("Unknown lane " + lane);
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public int getControlCount() {
+        return mViewIds.length;
+    }
+
+    public int getViewId(int control) {
+        return mViewIds[control];
+    }
+
+    public int getChannel(int control) {
+        return mChannels[control];
+    }
+
+    public int getGroup(int control) {
+        return mGroups[control];
+    }
+
+    /**
+     * The group of every scheduler channel: each control's channel is in the control's group,
+     * motor frames are in the group of the drive controls, and full-state frames in group 0.
+     */
+    public int[] getChannelGroups() {
+        final int[] groups = new int[CommandScheduler.CHANNEL_SLOTS];
+        for (int control = 0; control < mChannels.length; control++) {
+            groups[mChannels[control]] = mGroups[control];
+            if (mIsDriveControl[control]) {
+                groups[CommandScheduler.DRIVE_CHANNEL] = mGroups[control];
+            }
+        }
+        return groups;
+    }
+
+    // Share of the link per group, in frames per round
+    public int getGroupWeight(int group) {
+        return mGroupWeights[group];
+    }
+
+    // The lane a press or a release of the control goes out in
+    public int getPriority(int control, boolean pressed) {
+        return pressed ? mPressPriority[control] : mReleasePriority[control];
+    }
+
+    // The control a gamepad key drives, -1 if the key is not bound
+    public int getControlForKey(int keyCode) {
+        return keyCode >= 0 && keyCode < KEY_TABLE_SIZE ? mControlByKey[keyCode] : -1;
+    }
+
+    public boolean isEmergencyStopKey(int keyCode) {
+        return keyCode >= 0 && keyCode < KEY_TABLE_SIZE && mEstopKey[keyCode];
+    }
+
+    public int getAxisBindingCount() {
+        return mAxes.length;
+    }
+
+    public int getAxis(int binding) {
+        return mAxes[binding];
+    }
+
+    // Control driven by pushing the axis below -threshold, -1 if none
+    public int getNegativeControl(int binding) {
+        return mNegativeControls[binding];
+    }
+
+    // Control driven by pushing the axis above threshold, -1 if none
+    public int getPositiveControl(int binding) {
+        return mPositiveControls[binding];
+    }
+
+    public float getThreshold(int binding) {
+        return mThresholds[binding];
+    }
+
+    // Control held by tilting in a direction, -1 if tilt does not drive one
+    public int getTiltControl(int direction) {
+        return mTiltControls[direction];
+    }
+
+    public boolean hasTiltControls() {
+        for (int control : mTiltControls) {
+            if (control >= 0) return true;
+        }
+        return false;
+    }
+
+    // Mixer tuning from the "drive" section, null if the profile has none
+    public DriveMixer.Tuning getDriveTuning() {
+        return mDriveTuning;
+    }
+
+    // Control that drives in a tilt direction when mixing on the phone, -1 if none
+    public int getDriveControl(int direction) {
+        return mDriveControls[direction];
+    }
+
+    public boolean isDriveControl(int control) {
+        return mIsDriveControl[control];
+    }
+
+    // Gamepad axis for DRIVE_THROTTLE or DRIVE_STEER, -1 if none
+    public int getDriveAxis(int input) {
+        return mDriveAxes[input];
+    }
+
+    public boolean isDriveAxis(int axis) {
+        return axis >= 0 && (axis == mDriveAxes[DRIVE_THROTTLE] || axis == mDriveAxes[DRIVE_STEER]);
+    }
+}
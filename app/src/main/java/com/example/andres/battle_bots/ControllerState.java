@@ -0,0 +1,64 @@
+package com.example.andres.battle_bots;
+
+/**
+ * Which profile controls are on, merged from every input that can hold them: the on-screen pad,
+ * gamepad keys, tilt steering and each bound gamepad axis. A control is on while any source holds
+ * it, and the listener only hears about a control when that merged state flips. A d-pad that
+ * reports both a key and a hat axis, or a finger on the screen while the stick points the same
+ * way, therefore costs no extra commands.
+ *
+ * Only used from the main thread, where all input events arrive.
+ */
+public class ControllerState {
+
+    public static final int SOURCE_TOUCH = 0;
+    public static final int SOURCE_GAMEPAD_KEYS = 1;
+    public static final int SOURCE_TILT = 2;
+    // Axis binding i of the profile is source SOURCE_FIRST_AXIS + i
+    public static final int SOURCE_FIRST_AXIS = 3;
+    public static final int MAX_SOURCES = 32;
+
+    public interface Listener {
+        void onControlChanged(int control, boolean pressed);
+    }
+
+    private final int[] mHeldBy;
+    private final Listener mListener;
+
+    public ControllerState(int controlCount, Listener listener) {
+        mHeldBy = new int[controlCount];
+        mListener = listener;
+    }
+
+    /**
+     * Records what one source is doing with a control.
+     *
+     * @return true if this changed whether the control is on.
+     */
+    public boolean set(int control, int source, boolean held) {
+        final int before = mHeldBy[control];
+        final int after = held ? before | (1 << source) : before & ~(1 << source);
+        if (after == before) return false;
+        mHeldBy[control] = after;
+        if ((before == 0) == (after == 0)) return false;
+        mListener.onControlChanged(control, after != 0);
+        return true;
+    }
+
+    public boolean isPressed(int control) {
+        return mHeldBy[control] != 0;
+    }
+
+    public boolean isHeldBy(int control, int source) {
+        return (mHeldBy[control] & (1 << source)) != 0;
+    }
+
+    // Lets go of everything, e.g. when the screen loses input focus
+    public void releaseAll() {
+        for (int control = 0; control < mHeldBy.length; control++) {
+            if (mHeldBy[control] == 0) continue;
+            mHeldBy[control] = 0;
+            mListener.onControlChanged(control, false);
+        }
+    }
+}
@@ -27,14 +27,19 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.ServiceConnection;
+import android.hardware.SensorManager;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.MessageQueue;
 import android.util.Log;
+import android.view.KeyEvent;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.MotionEvent;
 import android.view.View;
+import android.widget.Button;
 import android.widget.ExpandableListView;
 import android.widget.ImageButton;
 import android.widget.SeekBar;
@@ -53,6 +58,18 @@ public class DeviceControlActivity extends Activity {
     // TAG will be referenced when printing logs to the Android Monitor
     private final static String TAG = DeviceControlActivity.class.getSimpleName();
 
+    // Per-command and discovery diagnostics go to the RingLog, dumped with the service
+    private static final RingLog.Tag LOG_CONTROL = RingLog.tag("control");
+    private static final RingLog.Event LOG_SEND =
+            RingLog.event(LOG_CONTROL, RingLog.DEBUG, "channel %d pressed=%d queued=%d");
+    private static final RingLog.Event LOG_MOTORS =
+            RingLog.event(LOG_CONTROL, RingLog.DEBUG, "motors left=%d right=%d queued=%d");
+    private static final RingLog.Tag LOG_GATT = RingLog.tag("gatt");
+    private static final RingLog.Event LOG_SERVICE =
+            RingLog.event(LOG_GATT, RingLog.INFO, "service %016x%016x");
+    private static final RingLog.Event LOG_CHARACTERISTIC =
+            RingLog.event(LOG_GATT, RingLog.INFO, "  characteristic %016x%016x");
+
     // Used to receive extras from the Intent in the OnCreate method
     public static final String EXTRAS_DEVICE_NAME = "DEVICE_NAME";
     public static final String EXTRAS_DEVICE_ADDRESS = "DEVICE_ADDRESS";
@@ -60,21 +77,35 @@ public class DeviceControlActivity extends Activity {
     // These variables are used in the Bluetooth connection UI
     private TextView mConnectionState;
     private TextView mDataField;
+    private FramePacedText mDataText;
+
+    // Link metrics drawn over the controls while enabled from the menu
+    private TextView mMetricsOverlay;
+    private boolean mShowMetrics;
+    private final Handler mHandler = new Handler();
+    private static final long METRICS_REFRESH_MS = 500;
     private String mDeviceName;
     private String mDeviceAddress;
 
+    // Which control sends what, compiled from the robot's profile asset
+    private ControllerProfile mProfile;
+
+    // What the driver holds, from the screen and any gamepad; commands go out on changes only
+    private ControllerState mControllerState;
+    private GamepadInput mGamepad;
+
+    // Drive controls mixed into motor levels on the phone, when profile and robot both support it
+    private DriveInput mDrive;
+
+    // Steering by tilting the phone, toggled from the menu
+    private TiltSteering mTiltSteering;
+    private boolean mTiltEnabled;
+
     // Instantiating the BLE service and the necessary characteristics to perform communication
     private BluetoothLeService mBluetoothLeService;
-    private boolean mConnected = false;
     private BluetoothGattCharacteristic characteristicTX;
     private BluetoothGattCharacteristic characteristicRX;
 
-    /*
-    This boolean is used in order to implement a delay between uses of the TX characteristic, since
-     the Arduino has a hard time catching inputs if they come in on a small time interval
-     */
-    private boolean inUse = false;
-
     // Used to catalog service data
     private final String LIST_NAME = "NAME";
     private final String LIST_UUID = "UUID";
@@ -89,8 +120,29 @@ public class DeviceControlActivity extends Activity {
                 Log.e(TAG, "Unable to initialize Bluetooth");
                 finish();
             }
+
+            mBluetoothLeService.setKeepWarm(
+                    KnownRobots.isPreconnectEnabled(DeviceControlActivity.this));
+
+            // Each profile group, e.g. driver and weapon d-pads, gets its own share of the link
+            final int[] weights = new int[CommandScheduler.MAX_GROUPS];
+            for (int group = 0; group < weights.length; group++) {
+                weights[group] = mProfile.getGroupWeight(group);
+            }
+            mBluetoothLeService.setCommandGroups(mProfile.getChannelGroups(), weights);
+
             // Automatically connects to the device upon successful start-up initialization.
             mBluetoothLeService.connect(mDeviceAddress);
+
+            // The service keeps its sessions across activities. If our device already has a live,
+            // discovered one, pick up its services right away instead of waiting for callbacks.
+            if (mBluetoothLeService.isConnectedTo(mDeviceAddress)) {
+                updateConnectionState(R.string.connected);
+                invalidateOptionsMenu();
+                displayGattServices(mBluetoothLeService.getSupportedGattServices());
+                rememberRobot();
+                updateDriveMode();
+            }
         }
 
         // Clears the BLE Service
@@ -111,24 +163,35 @@ public class DeviceControlActivity extends Activity {
         public void onReceive(Context context, Intent intent) {
             final String action = intent.getAction();
             if (BluetoothLeService.ACTION_GATT_CONNECTED.equals(action)) {
-                mConnected = true;
                 updateConnectionState(R.string.connected);
                 invalidateOptionsMenu();
             } else if (BluetoothLeService.ACTION_GATT_DISCONNECTED.equals(action)) {
-                mConnected = false;
                 updateConnectionState(R.string.disconnected);
                 invalidateOptionsMenu();
                 clearUI();
+                updateDriveMode();
             } else if (BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED.equals(action)) {
                 // Show all the supported services and characteristics on the user interface.
                 displayGattServices(mBluetoothLeService.getSupportedGattServices());
+                invalidateOptionsMenu();
+                rememberRobot();
+                updateDriveMode();
             } else if (BluetoothLeService.ACTION_DATA_AVAILABLE.equals(action)) {
                 displayData(intent.getStringExtra(mBluetoothLeService.EXTRA_DATA));
+            } else if (BluetoothLeService.ACTION_EMERGENCY_STOP_RESULT.equals(action)) {
+                // Shows how many robots confirmed the stop and the slowest confirmation
+                displayData(getString(R.string.estop_result,
+                        intent.getIntExtra(BluetoothLeService.EXTRA_STOP_CONFIRMED, 0),
+                        intent.getIntExtra(BluetoothLeService.EXTRA_STOP_TOTAL, 0),
+                        intent.getLongExtra(BluetoothLeService.EXTRA_STOP_WORST_MS, 0)));
             }
         }
     };
 
     private void clearUI() {
+        // Characteristics belong to the old connection and are looked up again after discovery
+        characteristicTX = null;
+        characteristicRX = null;
 //        mDataField.setText(R.string.no_data);
     }
 
@@ -136,479 +199,199 @@ public class DeviceControlActivity extends Activity {
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-        setContentView(R.layout.activity_main);
+        StartupTrace.mark(StartupTrace.CONTROL_CREATED);
 
         // Receiving connected device data from DeviceScanActivity
         final Intent intent = getIntent();
         mDeviceName = intent.getStringExtra(EXTRAS_DEVICE_NAME);
         mDeviceAddress = intent.getStringExtra(EXTRAS_DEVICE_ADDRESS);
 
-        // Sets some UI data
-        getActionBar().setTitle(mDeviceName);
-        getActionBar().setDisplayHomeAsUpEnabled(true);
+        // Started as well as bound, so the BLE session survives this activity going away. The
+        // address goes along so the service connects while the layout below is being inflated.
         Intent gattServiceIntent = new Intent(this, BluetoothLeService.class);
+        startService(new Intent(gattServiceIntent)
+                .putExtra(BluetoothLeService.EXTRA_CONNECT_ADDRESS, mDeviceAddress));
         bindService(gattServiceIntent, mServiceConnection, BIND_AUTO_CREATE);
 
-        // Instantiates an image button and associates it with its graphic through its ID
-        ImageButton U1 = (ImageButton) findViewById(R.id.up_btn1);
+        setContentView(R.layout.activity_main);
+        StartupTrace.mark(StartupTrace.CONTENT_INFLATED);
+
+        // Robot data is drawn at most once per frame, no matter how fast notifications arrive
+        mDataField = (TextView) findViewById(R.id.data_value);
+        if (mDataField != null) {
+            mDataText = new FramePacedText(mDataField);
+        }
+        mMetricsOverlay = (TextView) findViewById(R.id.metrics_overlay);
+
+        // Sets some UI data
+        getActionBar().setTitle(mDeviceName);
+        getActionBar().setDisplayHomeAsUpEnabled(true);
 
         /*
-        This defines the button's behavior when touched. Each button has an on and off code
-        associated with it. For button U1, the on code would be u1n and the off code would be u1f.
-        The other buttons follow the same pattern
+        Each arrow button is a channel with an on and an off state, as declared in the robot's
+        controller profile. How a state change looks on the wire is up to the protocol codec the
+        service negotiated with the robot. Every button gets its own channel in the command
+        pipeline, so a release can overtake a press of the same button that has not gone out yet.
          */
-        U1.setOnTouchListener(new View.OnTouchListener() {
-            @Override
-            public boolean onTouch(View v, MotionEvent event) {
-                Handler handler = new Handler();
-
-                // setting on and off codes
-                final String codeOn = "u1n";
-                final String codeOff = "u1f";
-
-                switch (event.getAction()) {
-
-                    // This case is for when the user presses down on the button: send on signal
-                    case MotionEvent.ACTION_DOWN:
-                        /*
-                        If the TX characteristic has been used recently, implement a delay on the
-                        next command that is sent
-                        */
-                        if (inUse){
-                        handler.postDelayed(new Runnable() {
-
-                            @Override
-                            public void run() {
-                                makeChange(codeOn);
-                            }
-                        }, 140);
-                        inUse = false;
+        mProfile = ControllerProfile.load(this, mDeviceName);
+        mControllerState = new ControllerState(mProfile.getControlCount(),
+                new ControllerState.Listener() {
+                    @Override
+                    public void onControlChanged(int control, boolean pressed) {
+                        makeChange(control, pressed);
                     }
-                    /*
-                     TX characteristic has not been used, or a delay has been implemented recently.
-                     We send the next signal right away
-                    */
-                    else
-                    {
-                        makeChange(codeOn);
-                        inUse = true;
-                    }
-
-                        return false;
-
-                    // This case is for when the user lets go of the button: send off signal
-                    case MotionEvent.ACTION_UP:
-
-                        // Using the same logic as with ACTION_DOWN
-                        if (inUse){
-                            handler.postDelayed(new Runnable() {
-
-                                @Override
-                                public void run() {
-                                    makeChange(codeOff);
-                                }
-                            }, 190);
-                            inUse = false;
-                        }
-
-                        else
-                        {
-                            makeChange(codeOff);
-                            inUse = true;
+                });
+        if (mProfile.getDriveTuning() != null) {
+            mDrive = new DriveInput(new DriveMixer(mProfile.getDriveTuning()),
+                    new DriveInput.Listener() {
+                        @Override
+                        public void onMotorsChanged(int left, int right) {
+                            final boolean queued = mBluetoothLeService != null
+                                    && mBluetoothLeService.sendMotors(left, right);
+                            RingLog.log(LOG_MOTORS, left, right, queued ? 1 : 0);
                         }
-
-                        return false;
-                }
-                return true;
-
-            }
-        });
-
-        // The rest of the arrow buttons follow the same logic as U1 with their corresponding on/off codes
-
-        ImageButton R1 = (ImageButton) findViewById(R.id.right_btn1);
-        R1.setOnTouchListener(new View.OnTouchListener() {
+                    });
+        }
+        mGamepad = new GamepadInput(mProfile, mControllerState, mDrive, new Runnable() {
             @Override
-            public boolean onTouch(View v, MotionEvent event) {
-                Handler handler = new Handler();
-                final String codeOn = "r1n";
-                final String codeOff = "r1f";
-                switch (event.getAction()) {
-                    case MotionEvent.ACTION_DOWN:
-                        if (inUse) {
-                            handler.postDelayed(new Runnable() {
-
-                                @Override
-                                public void run() {
-                                    makeChange(codeOn);
-                                }
-                            }, 140);
-                            inUse = false;
-                        } else {
-                            makeChange(codeOn);
-                            inUse = true;
-                        }
-
-                        return false;
-
-
-                    case MotionEvent.ACTION_UP:
-
-                        if (inUse) {
-                            handler.postDelayed(new Runnable() {
-                                @Override
-                                public void run() {
-                                    makeChange(codeOff);
-                                }
-
-                            }, 190);
-                            inUse = false;
-                        } else {
-                            makeChange(codeOff);
-                            inUse = true;
-                        }
-
-
-                        return false;
-                }
-                return true;
-
+            public void run() {
+                emergencyStop();
             }
         });
+        mTiltSteering = new TiltSteering((SensorManager) getSystemService(SENSOR_SERVICE),
+                getWindowManager().getDefaultDisplay(), mProfile, mControllerState, mDrive);
+        for (int control = 0; control < mProfile.getControlCount(); control++) {
+            final View button = findViewById(mProfile.getViewId(control));
+            button.setTag(R.id.control_index, control);
+            button.setOnTouchListener(mControlTouchListener);
+        }
 
-
-        ImageButton D1 = (ImageButton) findViewById(R.id.down_btn1);
-        D1.setOnTouchListener(new View.OnTouchListener() {
+        // Stops every connected robot at once, bypassing the normal command queues
+        Button estop = (Button) findViewById(R.id.estop_btn);
+        estop.setOnTouchListener(new View.OnTouchListener() {
             @Override
             public boolean onTouch(View v, MotionEvent event) {
-                Handler handler = new Handler();
-                final String codeOn = "d1n";
-                final String codeOff = "d1f";
-                switch (event.getAction()) {
-                    case MotionEvent.ACTION_DOWN:
-                        if (inUse){
-                            handler.postDelayed(new Runnable() {
-
-                                @Override
-                                public void run() {
-                                    makeChange(codeOn);
-                                }
-                            }, 140);
-                            inUse = false;
-                        }
-
-                        else
-                        {
-                            makeChange(codeOn);
-                            inUse = true;
-                        }
-
-                        return false;
-
-
-                    case MotionEvent.ACTION_UP:
-
-                        if (inUse){
-                            handler.postDelayed(new Runnable() {
-
-                                @Override
-                                public void run() {
-                                    makeChange(codeOff);
-                                }
-                            }, 190);
-                            inUse = false;
-                        }
-
-                        else
-                        {
-                            makeChange(codeOff);
-                            inUse = true;
-                        }
-
-
-                        return false;
+                // Fires on touch down rather than on click, every millisecond counts here
+                if (event.getAction() == MotionEvent.ACTION_DOWN) {
+                    emergencyStop();
                 }
-                return true;
-
+                return false;
             }
         });
 
-
-        ImageButton L1 = (ImageButton) findViewById(R.id.left_btn1);
-        L1.setOnTouchListener(new View.OnTouchListener() {
+        // This button is the bluetooth logo and allows the user to select a device to connect to
+        ImageButton BLE = (ImageButton) findViewById(R.id.ble_btn);
+        BLE.setOnClickListener(new View.OnClickListener() {
             @Override
-            public boolean onTouch(View v, MotionEvent event) {
-                Handler handler = new Handler();
-                final String codeOn = "l1n";
-                final String codeOff = "l1f";
-                switch (event.getAction()) {
-                    case MotionEvent.ACTION_DOWN:
-                        if(inUse) {
-                            handler.postDelayed(new Runnable() {
-
-                                @Override
-                                public void run(){
-                                    makeChange(codeOn);
-                                }
-                            },140);
-                            inUse = false;
-                        }
-
-
-                        else{
-                            makeChange(codeOn);
-                            inUse = true;
-                        }
-
-                        return false;
-
-
-                    case MotionEvent.ACTION_UP:
-
-                        if(inUse) {
-                            handler.postDelayed(new Runnable() {
-                                @Override
-                                public void run(){
-                                    makeChange(codeOff);
-                                }
-
-                            },190);
-                            inUse = false;
-                        }
-
-                        else {
-                            makeChange(codeOff);
-                            inUse = true;
-                        }
-
-
-                        return false;
-                }
-                return true;
-
+            public void onClick(View view) {
+                // Starts DeviceScanActivity in order to find a device to connect to. The session
+                // stays open in the service, so picking the same robot again reattaches instantly.
+                Intent intent = new Intent(DeviceControlActivity.this, com.example.andres.battle_bots.DeviceScanActivity.class);
+                startActivity(intent);
+                finish();
             }
         });
 
+    }
 
-        ImageButton U2 = (ImageButton) findViewById(R.id.up_btn2);
-        U2.setOnTouchListener(new View.OnTouchListener() {
+    /*
+    A robot we managed to drive is worth pre-connecting to next time, and is the one a cold start
+    goes straight to. None of that is needed to send the first command, so the preference writes
+    wait until the main thread has nothing else to do.
+     */
+    private void rememberRobot() {
+        runWhenIdle(new Runnable() {
             @Override
-            public boolean onTouch(View v, MotionEvent event) {
-                Handler handler = new Handler();
-                final String codeOn = "u2n";
-                final String codeOff = "u2f";
-                switch (event.getAction()) {
-                    case MotionEvent.ACTION_DOWN:
-                        if (inUse) {
-                            handler.postDelayed(new Runnable() {
-
-                                @Override
-                                public void run() {
-                                    makeChange(codeOn);
-                                }
-                            }, 140);
-                            inUse = false;
-                        } else {
-                            makeChange(codeOn);
-                            inUse = true;
-                        }
-
-                        return false;
-
-
-                    case MotionEvent.ACTION_UP:
-
-                        if (inUse) {
-                            handler.postDelayed(new Runnable() {
-                                @Override
-                                public void run() {
-                                    makeChange(codeOff);
-                                }
-
-                            }, 190);
-                            inUse = false;
-                        } else {
-                            makeChange(codeOff);
-                            inUse = true;
-                        }
-
-
-                        return false;
-                }
-                return true;
-
+            public void run() {
+                KnownRobots.remember(DeviceControlActivity.this, mDeviceAddress);
+                KnownRobots.rememberLast(DeviceControlActivity.this, mDeviceAddress, mDeviceName);
             }
         });
+    }
 
-        ImageButton R2 = (ImageButton) findViewById(R.id.right_btn2);
-        R2.setOnTouchListener(new View.OnTouchListener() {
+    // Defers work that the first command does not depend on
+    private static void runWhenIdle(final Runnable work) {
+        Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
             @Override
-            public boolean onTouch(View v, MotionEvent event) {
-                Handler handler = new Handler();
-                final String codeOn = "r2n";
-                final String codeOff = "r2f";
-                switch (event.getAction()) {
-                    case MotionEvent.ACTION_DOWN:
-                        if (inUse) {
-                            handler.postDelayed(new Runnable() {
-
-                                @Override
-                                public void run() {
-                                    makeChange(codeOn);
-                                }
-                            }, 140);
-                            inUse = false;
-                        } else {
-                            makeChange(codeOn);
-                            inUse = true;
-                        }
-
-                        return false;
-
-
-                    case MotionEvent.ACTION_UP:
-
-                        if (inUse) {
-                            handler.postDelayed(new Runnable() {
-                                @Override
-                                public void run() {
-                                    makeChange(codeOff);
-                                }
-
-                            }, 190);
-                            inUse = false;
-                        } else {
-                            makeChange(codeOff);
-                            inUse = true;
-                        }
-
-
-                        return false;
-                }
-                return true;
-
+            public boolean queueIdle() {
+                work.run();
+                return false;
             }
         });
+    }
 
-        ImageButton D2 = (ImageButton) findViewById(R.id.down_btn2);
-        D2.setOnTouchListener(new View.OnTouchListener() {
-            @Override
-            public boolean onTouch(View v, MotionEvent event) {
-                Handler handler = new Handler();
-                final String codeOn = "d2n";
-                final String codeOff = "d2f";
-                switch (event.getAction()) {
-                    case MotionEvent.ACTION_DOWN:
-                        if (inUse) {
-                            handler.postDelayed(new Runnable() {
-
-                                @Override
-                                public void run() {
-                                    makeChange(codeOn);
-                                }
-                            }, 140);
-                            inUse = false;
-                        } else {
-                            makeChange(codeOn);
-                            inUse = true;
-                        }
-
-                        return false;
-
-
-                    case MotionEvent.ACTION_UP:
-
-                        if (inUse) {
-                            handler.postDelayed(new Runnable() {
-                                @Override
-                                public void run() {
-                                    makeChange(codeOff);
-                                }
-
-                            }, 190);
-                            inUse = false;
-                        } else {
-                            makeChange(codeOff);
-                            inUse = true;
-                        }
-
-
-                        return false;
-                }
-                return true;
-
+    // Shared by every profile control; the view's tag says which control it is
+    private final View.OnTouchListener mControlTouchListener = new View.OnTouchListener() {
+        @Override
+        public boolean onTouch(View v, MotionEvent event) {
+            final int control = (Integer) v.getTag(R.id.control_index);
+            switch (event.getAction()) {
+
+                // This case is for when the user presses down on the button: send on signal
+                case MotionEvent.ACTION_DOWN:
+                    mControllerState.set(control, ControllerState.SOURCE_TOUCH, true);
+                    return false;
+
+                // The user lets go of the button, or the gesture is taken away from it: send
+                // the off signal, which goes out in the lane the profile gave releases
+                case MotionEvent.ACTION_UP:
+                case MotionEvent.ACTION_CANCEL:
+                    mControllerState.set(control, ControllerState.SOURCE_TOUCH, false);
+                    return false;
             }
-        });
-
-        ImageButton L2 = (ImageButton) findViewById(R.id.left_btn2);
-        L2.setOnTouchListener(new View.OnTouchListener() {
-            @Override
-            public boolean onTouch(View v, MotionEvent event) {
-                Handler handler = new Handler();
-                final String codeOn = "l2n";
-                final String codeOff = "l2f";
-                switch (event.getAction()) {
-                    case MotionEvent.ACTION_DOWN:
-                        if (inUse) {
-                            handler.postDelayed(new Runnable() {
-
-                                @Override
-                                public void run() {
-                                    makeChange(codeOn);
-                                }
-                            }, 140);
-                            inUse = false;
-                        } else {
-                            makeChange(codeOn);
-                            inUse = true;
-                        }
-
-                        return false;
-
-
-                    case MotionEvent.ACTION_UP:
-
-                        if (inUse) {
-                            handler.postDelayed(new Runnable() {
-                                @Override
-                                public void run() {
-                                    makeChange(codeOff);
-                                }
-
-                            }, 190);
-                            inUse = false;
-                        } else {
-                            makeChange(codeOff);
-                            inUse = true;
-                        }
-
-
-                        return false;
-                }
-                return true;
+            return true;
+        }
+    };
 
+    // The volume keys double as a hardware emergency stop
+    @Override
+    public boolean onKeyDown(int keyCode, KeyEvent event) {
+        if (keyCode == KeyEvent.KEYCODE_VOLUME_DOWN || keyCode == KeyEvent.KEYCODE_VOLUME_UP) {
+            if (event.getRepeatCount() == 0) {
+                emergencyStop();
             }
-        });
+            return true;
+        }
+        if (mGamepad != null && mGamepad.onKey(event)) {
+            return true;
+        }
+        return super.onKeyDown(keyCode, event);
+    }
 
-        // This button is the bluetooth logo and allows the user to select a device to connect to
-        ImageButton BLE = (ImageButton) findViewById(R.id.ble_btn);
-        BLE.setOnClickListener(new View.OnClickListener() {
-            @Override
-            public void onClick(View view) {
-                // Starts DeviceScanActivity in order to find a device to connect to
-                mBluetoothLeService.close();
-                Intent intent = new Intent(DeviceControlActivity.this, com.example.andres.battle_bots.DeviceScanActivity.class);
-                startActivity(intent);
-            }
-        });
+    @Override
+    public boolean onKeyUp(int keyCode, KeyEvent event) {
+        if (mGamepad != null && mGamepad.onKey(event)) {
+            return true;
+        }
+        return super.onKeyUp(keyCode, event);
+    }
+
+    // Joystick axes of a connected gamepad
+    @Override
+    public boolean onGenericMotionEvent(MotionEvent event) {
+        if (mGamepad != null && mGamepad.onGenericMotion(event)) {
+            return true;
+        }
+        return super.onGenericMotionEvent(event);
+    }
 
+    private void emergencyStop() {
+        if (mBluetoothLeService != null) {
+            mBluetoothLeService.emergencyStopAll();
+        }
     }
 
     @Override
     protected void onResume() {
         super.onResume();
         registerReceiver(mGattUpdateReceiver, makeGattUpdateIntentFilter());
-        if (mBluetoothLeService != null) {
+        if (mShowMetrics) {
+            mHandler.post(mRefreshMetrics);
+        }
+        if (mTiltEnabled) {
+            mTiltSteering.start();
+        }
+        if (mBluetoothLeService != null && !mBluetoothLeService.isConnectedTo(mDeviceAddress)) {
             final boolean result = mBluetoothLeService.connect(mDeviceAddress);
             Log.d(TAG, "Connect request result=" + result);
         }
@@ -619,12 +402,22 @@ public class DeviceControlActivity extends Activity {
     protected void onPause() {
         super.onPause();
         unregisterReceiver(mGattUpdateReceiver);
+        mHandler.removeCallbacks(mRefreshMetrics);
+        mTiltSteering.stop();
+        // Nothing can be released once we stop getting input, so let go of everything now
+        mControllerState.releaseAll();
+        if (mDrive != null) {
+            mDrive.reset();
+        }
     }
 
     // Handles app destruction
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        if (mDataText != null) {
+            mDataText.cancel();
+        }
         unbindService(mServiceConnection);
         mBluetoothLeService = null;
     }
@@ -632,13 +425,19 @@ public class DeviceControlActivity extends Activity {
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.gatt_services, menu);
-        if (mConnected) {
+        if (isConnected()) {
             menu.findItem(R.id.menu_connect).setVisible(false);
             menu.findItem(R.id.menu_disconnect).setVisible(true);
         } else {
             menu.findItem(R.id.menu_connect).setVisible(true);
             menu.findItem(R.id.menu_disconnect).setVisible(false);
         }
+        menu.findItem(R.id.menu_metrics)
+                .setVisible(mMetricsOverlay != null)
+                .setChecked(mShowMetrics);
+        menu.findItem(R.id.menu_tilt)
+                .setVisible(mTiltSteering.isAvailable())
+                .setChecked(mTiltEnabled);
         return true;
     }
 
@@ -649,13 +448,29 @@ public class DeviceControlActivity extends Activity {
                 mBluetoothLeService.connect(mDeviceAddress);
                 return true;
             case R.id.menu_disconnect:
-                mBluetoothLeService.disconnect();
+                // An explicit disconnect ends the session and lets the service stop
+                mBluetoothLeService.endSession();
                 mBluetoothLeService = null;
                 Intent i = getBaseContext().getPackageManager()
                         .getLaunchIntentForPackage( getBaseContext().getPackageName() );
                 i.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
+                // The user wants to pick another robot, so no fast start back into this one
+                i.putExtra(DeviceScanActivity.EXTRA_SKIP_FAST_START, true);
                 startActivity(i);
                 return true;
+            case R.id.menu_metrics:
+                setShowMetrics(!mShowMetrics);
+                item.setChecked(mShowMetrics);
+                return true;
+            case R.id.menu_tilt:
+                mTiltEnabled = !mTiltEnabled;
+                if (mTiltEnabled) {
+                    mTiltSteering.start();
+                } else {
+                    mTiltSteering.stop();
+                }
+                item.setChecked(mTiltEnabled);
+                return true;
             case android.R.id.home:
                 onBackPressed();
                 return true;
@@ -663,6 +478,28 @@ public class DeviceControlActivity extends Activity {
         return super.onOptionsItemSelected(item);
     }
 
+    private void setShowMetrics(boolean show) {
+        mShowMetrics = show;
+        mMetricsOverlay.setVisibility(show ? View.VISIBLE : View.GONE);
+        mHandler.removeCallbacks(mRefreshMetrics);
+        if (show) {
+            mHandler.post(mRefreshMetrics);
+        }
+    }
+
+    private final Runnable mRefreshMetrics = new Runnable() {
+        @Override
+        public void run() {
+            mMetricsOverlay.setText(MetricsRegistry.global().describe());
+            mHandler.postDelayed(this, METRICS_REFRESH_MS);
+        }
+    };
+
+    // The service's state machine is the only source of truth for whether the link is usable
+    private boolean isConnected() {
+        return mBluetoothLeService != null && mBluetoothLeService.isConnectedTo(mDeviceAddress);
+    }
+
     private void updateConnectionState(final int resourceId) {
         runOnUiThread(new Runnable() {
             @Override
@@ -672,19 +509,49 @@ public class DeviceControlActivity extends Activity {
         });
     }
 
+    // Hands the value to the frame-paced holder; only the latest value per frame gets drawn
     private void displayData(String data) {
 
-        if (data != null) {
-            mDataField.setText(data);
+        if (data != null && mDataText != null) {
+            mDataText.post(data);
         }
     }
 
 
+    // Finds the UART characteristics the first command needs right away; cataloguing every
+    // service for the log is left until the main thread is idle.
+    private void displayGattServices(final List<BluetoothGattService> gattServices) {
+        if (gattServices == null) return;
+
+        // Instantiates characteristic when device's UUIDs match our expected RX/TX UUIDs
+        for (BluetoothGattService gattService : gattServices) {
+            if(characteristicTX == null) {
+                /*
+                 characteristicTX will continue to be null unless the device's Gatt service's characteristic
+                 contains the UUID we want
+                  */
+                characteristicTX = gattService.getCharacteristic(BluetoothLeService.UUID_TX);
+            }
+
+            if(characteristicRX == null) {
+                // same as with TX
+                characteristicRX = gattService.getCharacteristic(BluetoothLeService.UUID_RX);
+            }
+        }
+        Log.d(TAG, "Found TX=" + (characteristicTX != null) + " RX=" + (characteristicRX != null));
+
+        runWhenIdle(new Runnable() {
+            @Override
+            public void run() {
+                logGattServices(gattServices);
+            }
+        });
+    }
+
     // Demonstrates how to iterate through the supported GATT Services/Characteristics.
     // In this sample, we populate the data structure that is bound to the ExpandableListView
     // on the UI.
-    private void displayGattServices(List<BluetoothGattService> gattServices) {
-        if (gattServices == null) return;
+    private void logGattServices(List<BluetoothGattService> gattServices) {
         String uuid = null;
         String unknownServiceString = getResources().getString(R.string.unknown_service);
         ArrayList<HashMap<String, String>> gattServiceData = new ArrayList<HashMap<String, String>>();
@@ -697,44 +564,21 @@ public class DeviceControlActivity extends Activity {
             currentServiceData.put(
                     LIST_NAME, SampleGattAttributes.lookup(uuid, unknownServiceString));
 
+            if (RingLog.isLoggable(LOG_SERVICE)) {
+                RingLog.record(LOG_SERVICE, gattService.getUuid().getMostSignificantBits(),
+                        gattService.getUuid().getLeastSignificantBits());
+            }
             for (BluetoothGattCharacteristic mCharacteristic : gattService.getCharacteristics()) {
-                Log.i(TAG, "Found Characteristic: " + mCharacteristic.getUuid().toString());
+                if (RingLog.isLoggable(LOG_CHARACTERISTIC)) {
+                    RingLog.record(LOG_CHARACTERISTIC,
+                            mCharacteristic.getUuid().getMostSignificantBits(),
+                            mCharacteristic.getUuid().getLeastSignificantBits());
+                }
             }
-            Log.i(TAG, "onServicesDiscovered UUID: " + gattService.getUuid().toString());
 
 
             currentServiceData.put(LIST_UUID, uuid);
             gattServiceData.add(currentServiceData);
-
-            Log.d(TAG, LIST_UUID);
-
-            // Instantiates characteristic when device's UUIDs match our expected RX/TX UUIDs
-
-            if(characteristicTX == null) {
-                Log.d(TAG, "Looking for RX");
-
-                /*
-                 characteristicTX will continue to be null unless the device's Gatt service's characteristic
-                 contains the UUID we want
-                  */
-                characteristicTX = gattService.getCharacteristic(BluetoothLeService.UUID_TX);
-                if(characteristicTX != null)
-                {
-                    Log.d(TAG, "Found TX");
-                }
-            }
-
-            if(characteristicRX == null) {
-                Log.d(TAG, "Looking for RX");
-
-                // same as with TX
-                characteristicRX = gattService.getCharacteristic(BluetoothLeService.UUID_RX);
-                if(characteristicRX != null)
-                {
-                    Log.d(TAG, "Found RX");
-                }
-            }
-
         }
 
     }
@@ -746,32 +590,55 @@ public class DeviceControlActivity extends Activity {
         intentFilter.addAction(BluetoothLeService.ACTION_GATT_DISCONNECTED);
         intentFilter.addAction(BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED);
         intentFilter.addAction(BluetoothLeService.ACTION_DATA_AVAILABLE);
+        intentFilter.addAction(BluetoothLeService.ACTION_EMERGENCY_STOP_RESULT);
         return intentFilter;
     }
 
 
-    // Function sends data to Arduino through the TX characteristic by converting input string to bytes
-    private void makeChange(String str) {
-        if (characteristicTX != null) {
+    // Mixes on the phone while the connected robot takes motor levels, sends buttons otherwise
+    private void updateDriveMode() {
+        if (mDrive == null) return;
+        mDrive.setEnabled(mBluetoothLeService != null
+                && mBluetoothLeService.isConnectedTo(mDeviceAddress)
+                && mBluetoothLeService.supportsMotorFrames());
+        updateDriveControls();
+    }
 
-            Log.d(TAG, "Sending result " + str);
-            // Converting string to output byte array
+    // The drive controls as digital throttle and steering, from whichever sources hold them
+    private void updateDriveControls() {
+        mDrive.set(DriveInput.SOURCE_CONTROLS,
+                driveDirection(ControllerProfile.TILT_FORWARD, ControllerProfile.TILT_BACK),
+                driveDirection(ControllerProfile.TILT_RIGHT, ControllerProfile.TILT_LEFT));
+    }
 
-            final byte[] tx = str.getBytes();
+    private int driveDirection(int positive, int negative) {
+        return (isDrivePressed(positive) ? DriveMixer.INPUT_MAX : 0)
+                - (isDrivePressed(negative) ? DriveMixer.INPUT_MAX : 0);
+    }
 
-            // Sends data if the device is connected
-            if (mConnected) {
+    private boolean isDrivePressed(int direction) {
+        final int control = mProfile.getDriveControl(direction);
+        return control >= 0 && mControllerState.isPressed(control);
+    }
 
-                // characteristicTX is set to our output value
-                characteristicTX.setValue(tx);
+    /*
+    Function sends a profile control's new state to the Arduino through the TX characteristic.
+    Encoding and pacing are left to the service, since the Arduino has a hard time catching inputs
+    if they come in on a small time interval.
+     */
+    private void makeChange(int control, boolean pressed) {
+        if (mDrive != null && mDrive.isEnabled() && mProfile.isDriveControl(control)) {
+            updateDriveControls();
+            return;
+        }
+        if (characteristicTX != null) {
+            final int channel = mProfile.getChannel(control);
 
-                // Sends data and enables RX notifications
-                mBluetoothLeService.writeCharacteristic(characteristicTX);
-                mBluetoothLeService.setCharacteristicNotification(characteristicRX, true);
-                Log.d(TAG, "Success");
-            } else {
-                Log.d(TAG, "Failed");
-            }
+            // Queues data if the device is connected. The service re-checks the state atomically
+            // and refuses the command unless the link is ready.
+            final boolean queued = mBluetoothLeService != null && mBluetoothLeService.sendButton(
+                    channel, pressed, mProfile.getPriority(control, pressed));
+            RingLog.log(LOG_SEND, channel, pressed ? 1 : 0, queued ? 1 : 0);
         }
         else
         {
@@ -785,6 +652,7 @@ public class DeviceControlActivity extends Activity {
                     Intent i = getBaseContext().getPackageManager()
                             .getLaunchIntentForPackage( getBaseContext().getPackageName() );
                     i.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
+                    i.putExtra(DeviceScanActivity.EXTRA_SKIP_FAST_START, true);
                     startActivity(i);
                 }
             });
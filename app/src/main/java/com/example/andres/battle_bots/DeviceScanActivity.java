@@ -22,11 +22,14 @@ import android.app.ListActivity;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.IBinder;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -45,21 +48,35 @@ import java.util.ArrayList;
 public class DeviceScanActivity extends ListActivity {
     private LeDeviceListAdapter mLeDeviceListAdapter;
     private BluetoothAdapter mBluetoothAdapter;
-    private boolean mScanning;
+    private ScanEngine mScanEngine;
     private Handler mHandler;
+    // Set while the aggressive phase runs on its own, so the backed-off one follows it
+    private boolean mBackoffNext;
+
+    // Bound only to hand known robots to the service for background pre-connection
+    private BluetoothLeService mBluetoothLeService;
 
     private static final int REQUEST_ENABLE_BT = 1;
-    // Stops scanning after 7 seconds.
-    private static final long SCAN_PERIOD = 7000;
+
+    // Set on launch intents that must show the device list, e.g. after an explicit disconnect
+    public static final String EXTRA_SKIP_FAST_START = "SKIP_FAST_START";
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        final boolean launched = savedInstanceState == null
+                && Intent.ACTION_MAIN.equals(getIntent().getAction());
+        if (launched) {
+            StartupTrace.begin();
+        }
         mHandler = new Handler();
 
+        // With a fake radio installed (benchmarks on an emulator) there is no adapter to check,
+        // and scans simply find nothing
+        final boolean fake = BluetoothLeService.hasFakeRadio();
 
         // Use this check to determine whether BLE is supported on the device.
-        if (!getPackageManager().hasSystemFeature(PackageManager.FEATURE_BLUETOOTH_LE)) {
+        if (!fake && !getPackageManager().hasSystemFeature(PackageManager.FEATURE_BLUETOOTH_LE)) {
             Toast.makeText(this, R.string.ble_not_supported, Toast.LENGTH_SHORT).show();
             finish();
         }
@@ -68,21 +85,105 @@ public class DeviceScanActivity extends ListActivity {
         // BluetoothAdapter through BluetoothManager.
         final BluetoothManager bluetoothManager =
                 (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE);
-        mBluetoothAdapter = bluetoothManager.getAdapter();
+        mBluetoothAdapter = fake ? null : bluetoothManager.getAdapter();
 
         // Checks if Bluetooth is supported on the device.
-        if (mBluetoothAdapter == null) {
+        if (!fake && mBluetoothAdapter == null) {
             Toast.makeText(this, R.string.error_bluetooth_not_supported, Toast.LENGTH_SHORT).show();
             finish();
             return;
         }
+
+        // Straight back to the robot driven last time, without scanning or inflating the list
+        if (launched && !getIntent().getBooleanExtra(EXTRA_SKIP_FAST_START, false)
+                && (fake || mBluetoothAdapter.isEnabled()) && fastStart()) {
+            finish();
+            return;
+        }
+
+        mScanEngine = new ScanEngine(new ScanEngine.Radio() {
+            @Override
+            public void startScan() {
+                if (mBluetoothAdapter != null) mBluetoothAdapter.startLeScan(mLeScanCallback);
+            }
+
+            @Override
+            public void stopScan() {
+                if (mBluetoothAdapter != null) mBluetoothAdapter.stopLeScan(mLeScanCallback);
+            }
+        }, new ScanEngine.Timer() {
+            @Override
+            public void postDelayed(Runnable task, long delayMillis) {
+                mHandler.postDelayed(task, delayMillis);
+            }
+
+            @Override
+            public void removeCallbacks(Runnable task) {
+                mHandler.removeCallbacks(task);
+            }
+        }, Clock.SYSTEM, new ScanEngine.Listener() {
+            @Override
+            public void onScanStateChanged(boolean active) {
+                if (!active && mBackoffNext) {
+                    mBackoffNext = false;
+                    mHandler.post(mStartBackoff);
+                }
+                invalidateOptionsMenu();
+            }
+        });
+
+        bindService(new Intent(this, BluetoothLeService.class), mServiceConnection,
+                BIND_AUTO_CREATE);
     }
 
+    private boolean fastStart() {
+        final String address = KnownRobots.getLastAddress(this);
+        if (address == null) return false;
+
+        // The service starts connecting now, so the link comes up while the control screen
+        // is being created and inflated
+        startService(new Intent(this, BluetoothLeService.class)
+                .putExtra(BluetoothLeService.EXTRA_CONNECT_ADDRESS, address));
+
+        final Intent intent = new Intent(this, DeviceControlActivity.class);
+        intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_NAME, KnownRobots.getLastName(this));
+        intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_ADDRESS, address);
+        startActivity(intent);
+        return true;
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mBluetoothLeService != null) {
+            unbindService(mServiceConnection);
+            mBluetoothLeService = null;
+        }
+    }
+
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName componentName, IBinder service) {
+            mBluetoothLeService = ((BluetoothLeService.LocalBinder) service).getService();
+            if (!mBluetoothLeService.initialize()) {
+                mBluetoothLeService = null;
+                return;
+            }
+            mBluetoothLeService.setKeepWarm(KnownRobots.isPreconnectEnabled(DeviceScanActivity.this));
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName componentName) {
+            mBluetoothLeService = null;
+        }
+    };
+
     // Sets up UI with layouts
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.menu_main, menu);
-        if (!mScanning) {
+        menu.findItem(R.id.menu_preconnect).setChecked(KnownRobots.isPreconnectEnabled(this));
+        if (mScanEngine == null || !mScanEngine.isActive()) {
 
             //R.id.x calls are referencing items within resource files
             menu.findItem(R.id.menu_stop).setVisible(false);
@@ -111,6 +212,15 @@ public class DeviceScanActivity extends ListActivity {
             case R.id.menu_stop:
                 scanLeDevice(false);
                 break;
+            // Toggles keeping warm connections to known robots seen while scanning
+            case R.id.menu_preconnect:
+                final boolean enabled = !item.isChecked();
+                item.setChecked(enabled);
+                KnownRobots.setPreconnectEnabled(this, enabled);
+                if (mBluetoothLeService != null) {
+                    mBluetoothLeService.setKeepWarm(enabled);
+                }
+                break;
         }
         return true;
     }
@@ -121,7 +231,7 @@ public class DeviceScanActivity extends ListActivity {
 
         // Ensures Bluetooth is enabled on the device.  If Bluetooth is not currently enabled,
         // fire an intent to display a dialog asking the user to grant permission to enable it.
-        if (!mBluetoothAdapter.isEnabled()) {
+        if (mBluetoothAdapter != null && !mBluetoothAdapter.isEnabled()) {
             if (!mBluetoothAdapter.isEnabled()) {
                 Intent enableBtIntent = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE);
                 startActivityForResult(enableBtIntent, REQUEST_ENABLE_BT);
@@ -166,37 +276,43 @@ public class DeviceScanActivity extends ListActivity {
         intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_ADDRESS, device.getAddress());
 
         // Stops scanning since device has been found
-        if (mScanning) {
-            mBluetoothAdapter.stopLeScan(mLeScanCallback);
-            mScanning = false;
-        }
+        scanLeDevice(false);
 
         // Starts DeviceControlActivity
         startActivity(intent);
     }
 
-    // Scans for devices that are advertising
+    // Scans for devices that are advertising. The aggressive phase ends as soon as every known
+    // robot was seen; the backed-off phase still follows, since the list is also where new robots
+    // are found. Fast start connects by address and needs no scan at all.
     private void scanLeDevice(final boolean enable) {
+        mBackoffNext = false;
+        mHandler.removeCallbacks(mStartBackoff);
         if (enable) {
-            // Stops scanning after a pre-defined scan period.
-            mHandler.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    mScanning = false;
-                    mBluetoothAdapter.stopLeScan(mLeScanCallback);
-                    invalidateOptionsMenu();
-                }
-            }, SCAN_PERIOD);
-
-            mScanning = true;
-            mBluetoothAdapter.startLeScan(mLeScanCallback);
+            // While a robot is being driven the scan only gets a small share of the radio
+            final ConnectionStateMachine link = mBluetoothLeService != null
+                    ? mBluetoothLeService.getStateMachine() : null;
+            final int known = KnownRobots.count(this);
+            if (link != null && link.isReady()) {
+                mScanEngine.start(ScanEngine.BACKGROUND, 0);
+            } else if (known == 0) {
+                mScanEngine.start(ScanEngine.AGGRESSIVE_THEN_BACKOFF, 0);
+            } else {
+                mScanEngine.start(ScanEngine.AGGRESSIVE, known);
+                mBackoffNext = true;
+            }
         } else {
-            mScanning = false;
-            mBluetoothAdapter.stopLeScan(mLeScanCallback);
+            mScanEngine.stop();
         }
-        invalidateOptionsMenu();
     }
 
+    private final Runnable mStartBackoff = new Runnable() {
+        @Override
+        public void run() {
+            mScanEngine.start(ScanEngine.BACKOFF, 0);
+        }
+    };
+
     // Adapter for holding devices found through scanning.
     private class LeDeviceListAdapter extends BaseAdapter {
         private ArrayList<BluetoothDevice> mLeDevices;
@@ -280,6 +396,14 @@ public class DeviceScanActivity extends ListActivity {
                 public void run() {
                     mLeDeviceListAdapter.addDevice(device);
                     mLeDeviceListAdapter.notifyDataSetChanged();
+
+                    // Robots we have driven before get a warm session, so picking one is instant
+                    final boolean known =
+                            KnownRobots.isKnown(DeviceScanActivity.this, device.getAddress());
+                    if (mBluetoothLeService != null && known) {
+                        mBluetoothLeService.preconnect(device.getAddress());
+                    }
+                    mScanEngine.onDeviceSeen(device.getAddress(), known);
                 }
             });
         }
@@ -0,0 +1,81 @@
+package com.example.andres.battle_bots;
+
+/**
+ * Merges everything that can drive into one throttle and steering pair for a {@link DriveMixer},
+ * and reports the motor levels whenever they change. Each source sets its own throttle and
+ * steering, from -INPUT_MAX to INPUT_MAX; per axis the source pushed furthest wins, so a finger on
+ * the pad overrides a phone held almost level, and releasing it hands control straight back.
+ *
+ * Does nothing while disabled, i.e. while the robot's firmware does not take motor frames and
+ * the profile's drive controls go out as plain buttons instead.
+ *
+ * Only used from the main thread, where all input events arrive.
+ */
+public class DriveInput {
+
+    // The profile's drive controls, from the pad, keys or thresholded axes
+    public static final int SOURCE_CONTROLS = 0;
+    public static final int SOURCE_TILT = 1;
+    public static final int SOURCE_STICK = 2;
+    private static final int SOURCES = 3;
+
+    public interface Listener {
+        // Levels from -ProtocolCodec.MOTOR_STEPS to MOTOR_STEPS
+        void onMotorsChanged(int left, int right);
+    }
+
+    private final DriveMixer mMixer;
+    private final Listener mListener;
+    private final int[] mThrottle = new int[SOURCES];
+    private final int[] mSteer = new int[SOURCES];
+    private boolean mEnabled;
+
+    public DriveInput(DriveMixer mixer, Listener listener) {
+        mMixer = mixer;
+        mListener = listener;
+    }
+
+    // Turned on and off as robots with and without motor frames come and go
+    public void setEnabled(boolean enabled) {
+        if (enabled == mEnabled) return;
+        mEnabled = enabled;
+        // A new link starts from stopped motors, whatever the last one was told
+        mMixer.mix(0, 0);
+        update();
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    public void set(int source, int throttle, int steer) {
+        if (mThrottle[source] == throttle && mSteer[source] == steer) return;
+        mThrottle[source] = throttle;
+        mSteer[source] = steer;
+        update();
+    }
+
+    // Lets go of every source, e.g. when the screen loses input focus
+    public void reset() {
+        for (int source = 0; source < SOURCES; source++) {
+            mThrottle[source] = 0;
+            mSteer[source] = 0;
+        }
+        update();
+    }
+
+    private void update() {
+        if (!mEnabled) return;
+        if (mMixer.mix(strongest(mThrottle), strongest(mSteer))) {
+            mListener.onMotorsChanged(mMixer.getLeft(), mMixer.getRight());
+        }
+    }
+
+    private static int strongest(int[] values) {
+        int strongest = 0;
+        for (int value : values) {
+            if (Math.abs(value) > Math.abs(strongest)) strongest = value;
+        }
+        return strongest;
+    }
+}
@@ -0,0 +1,115 @@
+package com.example.andres.battle_bots;
+
+/**
+ * Differential-drive mixing on the phone, for firmware that takes motor levels instead of button
+ * codes (see {@link ProtocolCodecs#FLAG_MOTORS}). Throttle and steering, each from -INPUT_MAX to
+ * INPUT_MAX, go through:
+ *
+ * 1. a response curve per input: a deadband around center, then expo, which flattens the middle
+ *    of the range for fine control and still reaches full output at full deflection,
+ * 2. the mix: left = throttle + steering, right = throttle - steering, with steering scaled by
+ *    the steering rate,
+ * 3. clipping to the output limit and quantization to {@link ProtocolCodec#MOTOR_STEPS} levels.
+ *
+ * All of it is worked out once per {@link Tuning} into integer tables, so mixing is three table
+ * lookups and two adds, with no floating point or allocation. Retuning means building a new mixer.
+ *
+ * Pure Java, so it can be checked on the JVM.
+ */
+public class DriveMixer {
+
+    public static final int INPUT_MAX = 127;
+
+    // Fixed-point full scale of a shaped input
+    private static final int UNIT = 1024;
+
+    // What a profile can tune, see ControllerProfile's "drive" section
+    public static class Tuning {
+        // 0 is linear, 1 is fully cubic
+        public float throttleExpo = 0.3f;
+        public float steerExpo = 0.5f;
+        // Fraction of either input's range around center that counts as zero
+        public float deadband = 0.05f;
+        // Steering at full deflection, as a fraction of full throttle
+        public float steerRate = 0.7f;
+        // Cap on either motor, as a fraction of full power
+        public float maxOutput = 1f;
+    }
+
+    private final int[] mThrottle = new int[2 * INPUT_MAX + 1];
+    private final int[] mSteer = new int[2 * INPUT_MAX + 1];
+    // Motor level for a mixed value from -2 UNIT to 2 UNIT
+    private final int[] mLevel = new int[4 * UNIT + 1];
+
+    private int mLeft;
+    private int mRight;
+
+    /**
+     * @throws IllegalArgumentException If a tuning value is out of range.
+     */
+    public DriveMixer(Tuning tuning) {
+        check("throttle expo", tuning.throttleExpo, 0f, 1f);
+        check("steering expo", tuning.steerExpo, 0f, 1f);
+        check("deadband", tuning.deadband, 0f, 0.9f);
+        check("steering rate", tuning.steerRate, 0f, 1f);
+        check("max output", tuning.maxOutput, 0.05f, 1f);
+        for (int input = -INPUT_MAX; input <= INPUT_MAX; input++) {
+            mThrottle[input + INPUT_MAX] = shape(input, tuning.deadband, tuning.throttleExpo, 1f);
+            mSteer[input + INPUT_MAX] =
+                    shape(input, tuning.deadband, tuning.steerExpo, tuning.steerRate);
+        }
+        final int limit = Math.round(UNIT * tuning.maxOutput);
+        for (int mixed = -2 * UNIT; mixed <= 2 * UNIT; mixed++) {
+            final int clipped = Math.max(-limit, Math.min(limit, mixed));
+            mLevel[mixed + 2 * UNIT] =
+                    Math.round((float) clipped * ProtocolCodec.MOTOR_STEPS / UNIT);
+        }
+    }
+
+    private static void check(String name, float value, float min, float max) {
+        if (!(value >= min && value <= max)) {
+            throw new IllegalArgumentException(name + " " + value + " outside " + min + "-" + max);
+        }
+    }
+
+    // Response curve in fixed point: 0 inside the deadband, expo-shaped from there to full scale
+    static int shape(int input, float deadband, float expo, float scale) {
+        final float magnitude = Math.abs(input) / (float) INPUT_MAX;
+        if (magnitude <= deadband) return 0;
+        final float x = (magnitude - deadband) / (1f - deadband);
+        final float shaped = (1f - expo) * x + expo * x * x * x;
+        return (int) Math.signum(input) * Math.round(shaped * scale * UNIT);
+    }
+
+    /**
+     * Mixes one pair of inputs.
+     *
+     * @param throttle Forward positive, from -INPUT_MAX to INPUT_MAX.
+     * @param steer Right positive, same range.
+     * @return true if either motor level changed.
+     */
+    public boolean mix(int throttle, int steer) {
+        final int t = mThrottle[throttle + INPUT_MAX];
+        final int s = mSteer[steer + INPUT_MAX];
+        final int left = mLevel[t + s + 2 * UNIT];
+        final int right = mLevel[t - s + 2 * UNIT];
+        if (left == mLeft && right == mRight) return false;
+        mLeft = left;
+        mRight = right;
+        return true;
+    }
+
+    // Motor levels from the last mix, from -MOTOR_STEPS to MOTOR_STEPS
+    public int getLeft() {
+        return mLeft;
+    }
+
+    public int getRight() {
+        return mRight;
+    }
+
+    // Input for an analog reading from -1 to 1, e.g. a stick axis; out of range readings are clipped
+    public static int toInput(float value) {
+        return Math.max(-INPUT_MAX, Math.min(INPUT_MAX, Math.round(value * INPUT_MAX)));
+    }
+}
@@ -0,0 +1,73 @@
+package com.example.andres.battle_bots;
+
+import android.view.Choreographer;
+import android.widget.TextView;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the latest value destined for a {@code TextView} and applies it at most once per display
+ * frame. Values posted between two frames overwrite each other, so a burst of notifications from
+ * the robot only costs a single text update.
+ */
+public class FramePacedText implements Choreographer.FrameCallback {
+
+    private final TextView mView;
+    private final Choreographer mChoreographer;
+
+    // Latest value posted since the last frame, null when there is nothing to draw
+    private final AtomicReference<CharSequence> mPending = new AtomicReference<CharSequence>();
+
+    // Set while a frame callback is outstanding so bursts only schedule one callback
+    private final AtomicBoolean mScheduled = new AtomicBoolean(false);
+
+    // Reused between frames so drawing a value does not allocate a new String for the view
+    private char[] mBuffer = new char[64];
+
+    /**
+     * Must be created on the UI thread, since the {@code Choreographer} is per-looper.
+     *
+     * @param view The view that will display the values.
+     */
+    public FramePacedText(TextView view) {
+        mView = view;
+        mChoreographer = Choreographer.getInstance();
+    }
+
+    /**
+     * Records a new value to display on the next frame. Safe to call from any thread.
+     *
+     * @param value The text to display. Any value not yet drawn is dropped.
+     */
+    public void post(CharSequence value) {
+        if (value == null) return;
+        mPending.set(value);
+        if (mScheduled.compareAndSet(false, true)) {
+            mChoreographer.postFrameCallback(this);
+        }
+    }
+
+    // Stops any pending update, used when the owning activity goes away
+    public void cancel() {
+        mChoreographer.removeFrameCallback(this);
+        mPending.set(null);
+        mScheduled.set(false);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        mScheduled.set(false);
+        final CharSequence value = mPending.getAndSet(null);
+        if (value == null) return;
+
+        final int length = value.length();
+        if (length > mBuffer.length) {
+            mBuffer = new char[Math.max(length, mBuffer.length * 2)];
+        }
+        for (int i = 0; i < length; i++) {
+            mBuffer[i] = value.charAt(i);
+        }
+        mView.setText(mBuffer, 0, length);
+    }
+}
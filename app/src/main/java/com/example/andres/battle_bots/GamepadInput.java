@@ -0,0 +1,113 @@
+package com.example.andres.battle_bots;
+
+import android.view.InputDevice;
+import android.view.KeyEvent;
+import android.view.MotionEvent;
+
+/**
+ * Feeds Bluetooth and USB gamepads into the {@link ControllerState}, using the key and axis
+ * bindings of the {@link ControllerProfile}.
+ *
+ * Joystick events arrive batched, so every historical sample in a batch is applied in order and
+ * a quick flick between two frames is not lost. Axes have hysteresis: a control turns on past the
+ * binding's threshold and only turns off again below {@link #RELEASE_FRACTION} of it, so a stick
+ * resting near the threshold does not chatter commands onto the link.
+ *
+ * While the {@link DriveInput} is enabled, the profile's drive axes skip all that and go to it as
+ * analog throttle and steering instead.
+ */
+public class GamepadInput {
+
+    public static final float RELEASE_FRACTION = 0.75f;
+
+    private final ControllerProfile mProfile;
+    private final ControllerState mState;
+    private final Runnable mEmergencyStop;
+    private final DriveInput mDrive;
+
+    /**
+     * @param drive Where drive axes go when mixing on the phone, null if the profile has none.
+     */
+    public GamepadInput(ControllerProfile profile, ControllerState state, DriveInput drive,
+                        Runnable emergencyStop) {
+        mProfile = profile;
+        mState = state;
+        mDrive = drive;
+        mEmergencyStop = emergencyStop;
+    }
+
+    private static boolean isGamepad(int source) {
+        return (source & InputDevice.SOURCE_GAMEPAD) == InputDevice.SOURCE_GAMEPAD
+                || (source & InputDevice.SOURCE_DPAD) == InputDevice.SOURCE_DPAD
+                || (source & InputDevice.SOURCE_JOYSTICK) == InputDevice.SOURCE_JOYSTICK;
+    }
+
+    /**
+     * @return true if the key is bound and was consumed.
+     */
+    public boolean onKey(KeyEvent event) {
+        if (!isGamepad(event.getSource())) return false;
+        final int keyCode = event.getKeyCode();
+        final boolean down = event.getAction() == KeyEvent.ACTION_DOWN;
+        if (mProfile.isEmergencyStopKey(keyCode)) {
+            if (down && event.getRepeatCount() == 0) {
+                mEmergencyStop.run();
+            }
+            return true;
+        }
+        final int control = mProfile.getControlForKey(keyCode);
+        if (control < 0) return false;
+        // Auto-repeat changes nothing, the set below simply finds the key already held
+        mState.set(control, ControllerState.SOURCE_GAMEPAD_KEYS, down);
+        return true;
+    }
+
+    /**
+     * @return true if the event came from a joystick and was consumed.
+     */
+    public boolean onGenericMotion(MotionEvent event) {
+        if ((event.getSource() & InputDevice.SOURCE_JOYSTICK) != InputDevice.SOURCE_JOYSTICK
+                || event.getAction() != MotionEvent.ACTION_MOVE) {
+            return false;
+        }
+        final boolean mixing = mDrive != null && mDrive.isEnabled();
+        if (mixing) {
+            // Only where the stick is now matters to the mixer, so the history is skipped
+            mDrive.set(DriveInput.SOURCE_STICK,
+                    driveAxis(event, ControllerProfile.DRIVE_THROTTLE, -1),
+                    driveAxis(event, ControllerProfile.DRIVE_STEER, 1));
+        }
+        final int history = event.getHistorySize();
+        for (int binding = 0; binding < mProfile.getAxisBindingCount(); binding++) {
+            final int axis = mProfile.getAxis(binding);
+            if (mixing && mProfile.isDriveAxis(axis)) continue;
+            for (int pos = 0; pos < history; pos++) {
+                applyAxis(binding, event.getHistoricalAxisValue(axis, pos));
+            }
+            applyAxis(binding, event.getAxisValue(axis));
+        }
+        return true;
+    }
+
+    private int driveAxis(MotionEvent event, int input, int sign) {
+        final int axis = mProfile.getDriveAxis(input);
+        return axis < 0 ? 0 : DriveMixer.toInput(sign * event.getAxisValue(axis));
+    }
+
+    private void applyAxis(int binding, float value) {
+        final int source = ControllerState.SOURCE_FIRST_AXIS + binding;
+        final int negative = mProfile.getNegativeControl(binding);
+        final int positive = mProfile.getPositiveControl(binding);
+        final float threshold = mProfile.getThreshold(binding);
+        final float release = threshold * RELEASE_FRACTION;
+
+        if (negative >= 0) {
+            final boolean held = mState.isHeldBy(negative, source);
+            mState.set(negative, source, held ? value < -release : value < -threshold);
+        }
+        if (positive >= 0) {
+            final boolean held = mState.isHeldBy(positive, source);
+            mState.set(positive, source, held ? value > release : value > threshold);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.example.andres.battle_bots;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+/**
+ * One GATT connection owned by {@link BluetoothLeService}. The service can hold several of these
+ * at once: the active one that receives commands, and warm ones that are already connected and
+ * discovered so that switching robots is only a matter of changing which session is active.
+ */
+class GattSession {
+
+    final String address;
+    final ConnectionStateMachine stateMachine;
+
+    // Null until the first connect and after the session is closed
+    volatile BluetoothGatt gatt;
+
+    // Bluefruit UART characteristics and the command pipeline writing to them, set once ready
+    volatile BluetoothGattCharacteristic tx;
+    volatile BluetoothGattCharacteristic rx;
+    volatile CommandScheduler scheduler;
+
+    // Stands in for the radio on a session opened without Bluetooth, see
+    // BluetoothLeService#setFakeRadio
+    volatile BluetoothLeService.FakeRadio fake;
+
+    // Stream channel that takes over from TX/RX while it is open, see BluetoothLeService#openL2cap
+    volatile L2capLink l2cap;
+
+    // Set when the firmware acknowledges frames; only touched under the scheduler's monitor
+    volatile ReliableLink reliable;
+
+    // Query/response exchanges, when the firmware answers them
+    volatile RobotRequests requests;
+
+    // Learns this link's command pace; only touched under the scheduler's monitor
+    volatile SendRateController rateController;
+
+    // Scores the link from RSSI, failures and retries
+    volatile LinkQualityMonitor quality;
+
+    // Controls currently on, bit per channel, for full-state frames; only touched on the main
+    // thread
+    int pressedMask;
+
+    // When the current connect attempt started, for the connect latency metric
+    volatile long connectStartedAt;
+
+    // Wire protocol negotiated after discovery, ASCII until we know better
+    volatile ProtocolCodec codec = ProtocolCodecs.ascii();
+
+    // Whether the firmware takes motor levels mixed on the phone
+    volatile boolean motorFrames;
+
+    // Emergency stop progress, guarded by the session's monitor. stopFrameIndex is the next stop
+    // frame to write, or -1 when no emergency stop is running on this link.
+    int stopFrameIndex = -1;
+    boolean stopFrameInFlight;
+    long stopRequestedAt;
+
+    GattSession(String address, Clock clock) {
+        this.address = address;
+        this.stateMachine = new ConnectionStateMachine(clock);
+    }
+
+    // Whether this session currently holds one of the phone's limited GATT client slots
+    boolean isOpen() {
+        return gatt != null;
+    }
+}
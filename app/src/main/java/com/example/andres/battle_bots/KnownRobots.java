@@ -0,0 +1,74 @@
+package com.example.andres.battle_bots;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Remembers the robots this phone has driven before. Only these are pre-connected in the
+ * background while scanning, so the app never ties up connection slots on strangers' devices.
+ */
+public class KnownRobots {
+
+    private static final String PREFS_NAME = "known_robots";
+    private static final String KEY_ADDRESSES = "addresses";
+    private static final String KEY_PRECONNECT = "preconnect";
+    private static final String KEY_LAST_ADDRESS = "last_address";
+    private static final String KEY_LAST_NAME = "last_name";
+
+    private KnownRobots() {
+    }
+
+    private static SharedPreferences prefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    public static boolean isKnown(Context context, String address) {
+        return address != null
+                && prefs(context).getStringSet(KEY_ADDRESSES, new HashSet<String>()).contains(address);
+    }
+
+    // How many robots we have driven before, which is how many a scan looks for
+    public static int count(Context context) {
+        return prefs(context).getStringSet(KEY_ADDRESSES, new HashSet<String>()).size();
+    }
+
+    // Called once a robot reached the ready state under our control
+    public static void remember(Context context, String address) {
+        if (address == null || isKnown(context, address)) return;
+        // The set returned by getStringSet must not be modified in place
+        final Set<String> addresses = new HashSet<String>(
+                prefs(context).getStringSet(KEY_ADDRESSES, new HashSet<String>()));
+        addresses.add(address);
+        prefs(context).edit().putStringSet(KEY_ADDRESSES, addresses).apply();
+    }
+
+    // The robot driven most recently, which a cold start connects to straight away
+    public static void rememberLast(Context context, String address, String name) {
+        if (address == null) return;
+        prefs(context).edit()
+                .putString(KEY_LAST_ADDRESS, address)
+                .putString(KEY_LAST_NAME, name)
+                .apply();
+    }
+
+    // Null if no robot was ever driven
+    public static String getLastAddress(Context context) {
+        return prefs(context).getString(KEY_LAST_ADDRESS, null);
+    }
+
+    public static String getLastName(Context context) {
+        return prefs(context).getString(KEY_LAST_NAME, null);
+    }
+
+    // Whether known robots seen while scanning should be connected to in the background
+    public static boolean isPreconnectEnabled(Context context) {
+        return prefs(context).getBoolean(KEY_PRECONNECT, false);
+    }
+
+    public static void setPreconnectEnabled(Context context, boolean enabled) {
+        prefs(context).edit().putBoolean(KEY_PRECONNECT, enabled).apply();
+    }
+}
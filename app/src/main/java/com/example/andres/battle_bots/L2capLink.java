@@ -0,0 +1,168 @@
+package com.example.andres.battle_bots;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Carries the robot protocol over a stream socket, normally an LE L2CAP connection-oriented
+ * channel, instead of 20 byte GATT writes and notifications. A stream has no packet boundaries,
+ * so both directions frame every packet with a length byte:
+ *
+ *   len  packet[len]
+ *
+ * Commands, {@link ReliableLink} frames and request frames go out unchanged inside it, and each
+ * incoming packet is handled exactly like an RX notification, so nothing above the transport can
+ * tell which one is in use.
+ *
+ * Like a GATT write, a write only hands the frame over: a writer thread puts it on the stream and
+ * reports completion, and a second frame is refused until then. A reader thread delivers incoming
+ * packets. Both threads end, and the listener hears about it once, when the stream fails or the
+ * link is closed.
+ */
+public class L2capLink implements CommandScheduler.Transport {
+
+    public static final int MAX_PACKET = 255;
+
+    public interface Listener {
+        // Called on the writer thread once a frame is on the stream, or failed to get there
+        void onWriteComplete(boolean success);
+
+        // Called on the reader thread with each packet from the robot
+        void onPacket(byte[] packet);
+
+        // Called once when the link stops working; cause is null after close()
+        void onClosed(IOException cause);
+    }
+
+    private final InputStream mIn;
+    private final OutputStream mOut;
+    private final Closeable mSocket;
+    private final Listener mListener;
+
+    // The framed packet being written, mWriteLength > 0 until the writer is done with it
+    private final byte[] mWriteBuffer = new byte[MAX_PACKET + 1];
+    private int mWriteLength;
+    private boolean mClosed;
+
+    public L2capLink(InputStream in, OutputStream out, Closeable socket, Listener listener) {
+        mIn = in;
+        mOut = out;
+        mSocket = socket;
+        mListener = listener;
+    }
+
+    public void start() {
+        final Thread writer = new Thread("l2cap-writer") {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        };
+        final Thread reader = new Thread("l2cap-reader") {
+            @Override
+            public void run() {
+                readLoop();
+            }
+        };
+        writer.start();
+        reader.start();
+    }
+
+    @Override
+    public synchronized boolean write(byte[] frame) {
+        if (mClosed || mWriteLength > 0 || frame.length > MAX_PACKET) {
+            return false;
+        }
+        // Copied, since frames such as ReliableLink's are reused buffers
+        mWriteBuffer[0] = (byte) frame.length;
+        System.arraycopy(frame, 0, mWriteBuffer, 1, frame.length);
+        mWriteLength = frame.length + 1;
+        notifyAll();
+        return true;
+    }
+
+    private void writeLoop() {
+        while (true) {
+            final int length;
+            synchronized (this) {
+                while (!mClosed && mWriteLength == 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (mClosed) return;
+                length = mWriteLength;
+            }
+            IOException failure = null;
+            try {
+                mOut.write(mWriteBuffer, 0, length);
+                mOut.flush();
+            } catch (IOException e) {
+                failure = e;
+            }
+            synchronized (this) {
+                mWriteLength = 0;
+            }
+            mListener.onWriteComplete(failure == null);
+            if (failure != null) {
+                close(failure);
+                return;
+            }
+        }
+    }
+
+    private void readLoop() {
+        final byte[] packet = new byte[MAX_PACKET];
+        IOException failure = null;
+        try {
+            while (true) {
+                final int length = mIn.read();
+                if (length < 0) {
+                    throw new EOFException("Robot closed the channel");
+                }
+                int read = 0;
+                while (read < length) {
+                    final int n = mIn.read(packet, read, length - read);
+                    if (n < 0) {
+                        throw new EOFException("Channel closed inside a packet");
+                    }
+                    read += n;
+                }
+                final byte[] copy = new byte[length];
+                System.arraycopy(packet, 0, copy, 0, length);
+                mListener.onPacket(copy);
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+        close(failure);
+    }
+
+    public synchronized boolean isClosed() {
+        return mClosed;
+    }
+
+    // Closes the socket and stops both threads
+    public void close() {
+        close(null);
+    }
+
+    private void close(IOException cause) {
+        synchronized (this) {
+            if (mClosed) return;
+            mClosed = true;
+            notifyAll();
+        }
+        try {
+            mSocket.close();
+        } catch (IOException e) {
+            // Already broken, which is what we wanted
+        }
+        mListener.onClosed(cause);
+    }
+}
@@ -0,0 +1,56 @@
+package com.example.andres.battle_bots;
+
+/**
+ * The metrics the app keeps in {@link MetricsRegistry#global()}. Latencies are in milliseconds.
+ *
+ * During a match they can be read without touching the phone:
+ *
+ *   adb shell dumpsys activity service com.example.andres.battle_bots/.BluetoothLeService
+ */
+public final class LinkMetrics {
+
+    private static final MetricsRegistry REGISTRY = MetricsRegistry.global();
+
+    // Buckets for everything from a single write up to a slow connect
+    private static final long[] LATENCY_BUCKETS_MS =
+            {5, 10, 20, 30, 50, 75, 100, 150, 250, 500, 1000, 2500, 5000, 10000};
+
+    public static final MetricsRegistry.Counter WRITES_ISSUED = REGISTRY.counter("writes.issued");
+    public static final MetricsRegistry.Counter WRITES_COMPLETED =
+            REGISTRY.counter("writes.completed");
+    public static final MetricsRegistry.Counter WRITES_FAILED = REGISTRY.counter("writes.failed");
+    public static final MetricsRegistry.Counter WRITES_BUSY = REGISTRY.counter("writes.busy");
+    public static final MetricsRegistry.Counter COMMANDS_SUPERSEDED =
+            REGISTRY.counter("commands.superseded");
+    public static final MetricsRegistry.Gauge QUEUE_DEPTH = REGISTRY.gauge("queue.depth");
+    public static final MetricsRegistry.Meter NOTIFICATIONS = REGISTRY.meter("notifications");
+    public static final MetricsRegistry.Counter RECONNECTS = REGISTRY.counter("reconnects");
+    public static final MetricsRegistry.Counter STATE_TIMEOUTS = REGISTRY.counter("state.timeouts");
+    public static final MetricsRegistry.Gauge RSSI = REGISTRY.gauge("rssi.dbm");
+    public static final MetricsRegistry.Gauge LINK_QUALITY = REGISTRY.gauge("link.quality");
+
+    // Per stage of a command: waiting in the pipeline, then on the radio
+    public static final MetricsRegistry.Histogram QUEUE_LATENCY =
+            REGISTRY.histogram("latency.queue", LATENCY_BUCKETS_MS);
+    public static final MetricsRegistry.Histogram STOP_QUEUE_LATENCY =
+            REGISTRY.histogram("latency.queue.stop", LATENCY_BUCKETS_MS);
+    public static final MetricsRegistry.Histogram WRITE_LATENCY =
+            REGISTRY.histogram("latency.write", LATENCY_BUCKETS_MS);
+
+    // Per stage of getting a link up
+    public static final MetricsRegistry.Histogram SCAN_TO_TARGET =
+            REGISTRY.histogram("latency.scan", LATENCY_BUCKETS_MS);
+    public static final MetricsRegistry.Histogram SCAN_TO_ALL_TARGETS =
+            REGISTRY.histogram("latency.scan_all", LATENCY_BUCKETS_MS);
+    public static final MetricsRegistry.Histogram CONNECT_LATENCY =
+            REGISTRY.histogram("latency.connect", LATENCY_BUCKETS_MS);
+    public static final MetricsRegistry.Histogram LAUNCH_TO_FIRST_COMMAND =
+            REGISTRY.histogram("latency.startup", LATENCY_BUCKETS_MS);
+
+    // Slowest confirmation of each emergency stop
+    public static final MetricsRegistry.Histogram EMERGENCY_STOP =
+            REGISTRY.histogram("latency.estop", LATENCY_BUCKETS_MS);
+
+    private LinkMetrics() {
+    }
+}
@@ -0,0 +1,83 @@
+package com.example.andres.battle_bots;
+
+/**
+ * Rates how well one link is doing, from 0 (unusable) to 100 (perfect), out of three signals:
+ *
+ * - the connection RSSI, polled by the service every {@link #RSSI_POLL_MS}
+ * - the share of writes that fail or never complete
+ * - the share of writes that are retransmissions (reliable framing only)
+ *
+ * Rates are exponentially weighted so the score follows a robot driving away within a few dozen
+ * writes. Below {@link #GOOD_SCORE} the {@link CommandScheduler} stretches its motion interval,
+ * and below {@link #DEGRADED_SCORE} the service sends full-state frames where the codec has them,
+ * so the link slows down step by step instead of dropping commands all at once.
+ *
+ * Methods are synchronized: RSSI arrives on a binder thread, write results under the scheduler's
+ * monitor.
+ */
+public class LinkQualityMonitor {
+
+    public static final long RSSI_POLL_MS = 2000;
+
+    // Signal strength treated as perfect and as hopeless
+    public static final int RSSI_GOOD_DBM = -65;
+    public static final int RSSI_LOST_DBM = -95;
+
+    public static final int GOOD_SCORE = 70;
+    public static final int DEGRADED_SCORE = 40;
+
+    // Slowest the motion interval gets, as a multiple of the learned one, at a score of 0
+    public static final double MAX_INTERVAL_SCALE = 3.0;
+
+    // Weight of the newest sample in the failure and retry rates
+    private static final double ALPHA = 0.1;
+
+    private int mRssi;
+    private boolean mHaveRssi;
+    private double mFailureRate;
+    private double mRetryRate;
+
+    public synchronized void onRssi(int rssi) {
+        mRssi = rssi;
+        mHaveRssi = true;
+    }
+
+    // A frame was handed to the radio, either for the first time or as a retransmission
+    public synchronized void onWriteIssued(boolean retransmission) {
+        mRetryRate += ALPHA * ((retransmission ? 1 : 0) - mRetryRate);
+    }
+
+    // A write completed, failed or timed out
+    public synchronized void onWriteResult(boolean success) {
+        mFailureRate += ALPHA * ((success ? 0 : 1) - mFailureRate);
+    }
+
+    public synchronized int getScore() {
+        double score = 1.0;
+        if (mHaveRssi) {
+            score = Math.min(score,
+                    (double) (mRssi - RSSI_LOST_DBM) / (RSSI_GOOD_DBM - RSSI_LOST_DBM));
+        }
+        // Failures hurt twice as much as retries, which at least still get through
+        score = Math.min(score, 1.0 - 2.0 * mFailureRate);
+        score = Math.min(score, 1.0 - mRetryRate);
+        return (int) Math.round(100 * Math.max(0.0, Math.min(1.0, score)));
+    }
+
+    // Whether commands should switch to full-state frames
+    public boolean isDegraded() {
+        return getScore() < DEGRADED_SCORE;
+    }
+
+    // How much to stretch the motion interval: 1 down to GOOD_SCORE, then up to MAX_INTERVAL_SCALE
+    public double getIntervalScale() {
+        final int score = getScore();
+        if (score >= GOOD_SCORE) return 1.0;
+        return 1.0 + (MAX_INTERVAL_SCALE - 1.0) * (GOOD_SCORE - score) / GOOD_SCORE;
+    }
+
+    // Last RSSI sample, 0 if none yet
+    public synchronized int getRssi() {
+        return mHaveRssi ? mRssi : 0;
+    }
+}
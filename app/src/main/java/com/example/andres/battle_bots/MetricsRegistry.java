@@ -0,0 +1,277 @@
+package com.example.andres.battle_bots;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Runtime numbers for the BLE link, cheap enough to update on every command and notification.
+ * Metrics are created once, normally as constants in {@link LinkMetrics}, and updated through the
+ * returned object with plain atomic operations: no locks, no allocation and no map lookups on the
+ * hot path. Only creating a metric and rendering the registry take a lock.
+ */
+public class MetricsRegistry {
+
+    private static final MetricsRegistry GLOBAL = new MetricsRegistry(Clock.SYSTEM);
+
+    // The registry shared by the service, the activities and dumpsys
+    public static MetricsRegistry global() {
+        return GLOBAL;
+    }
+
+    private final Clock mClock;
+    private final ArrayList<Metric> mMetrics = new ArrayList<Metric>();
+
+    public MetricsRegistry(Clock clock) {
+        mClock = clock;
+    }
+
+    public Counter counter(String name) {
+        return register(new Counter(name));
+    }
+
+    public Gauge gauge(String name) {
+        return register(new Gauge(name));
+    }
+
+    public Meter meter(String name) {
+        return register(new Meter(name, mClock));
+    }
+
+    /**
+     * @param bounds Inclusive upper bounds of the buckets, ascending. Values above the last bound
+     *               go into an overflow bucket.
+     */
+    public Histogram histogram(String name, long... bounds) {
+        return register(new Histogram(name, bounds));
+    }
+
+    private synchronized <T extends Metric> T register(T metric) {
+        mMetrics.add(metric);
+        return metric;
+    }
+
+    // One line per metric, in registration order, for the overlay and dumps
+    public synchronized String describe() {
+        final StringBuilder sb = new StringBuilder();
+        for (Metric metric : mMetrics) {
+            sb.append(metric.name).append(' ');
+            metric.describeTo(sb);
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    public synchronized void reset() {
+        for (Metric metric : mMetrics) {
+            metric.reset();
+        }
+    }
+
+    public abstract static class Metric {
+        final String name;
+
+        Metric(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        abstract void describeTo(StringBuilder sb);
+
+        abstract void reset();
+    }
+
+    // A total that only goes up
+    public static final class Counter extends Metric {
+        private final AtomicLong mValue = new AtomicLong();
+
+        Counter(String name) {
+            super(name);
+        }
+
+        public void inc() {
+            mValue.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            mValue.addAndGet(delta);
+        }
+
+        public long get() {
+            return mValue.get();
+        }
+
+        @Override
+        void describeTo(StringBuilder sb) {
+            sb.append(mValue.get());
+        }
+
+        @Override
+        void reset() {
+            mValue.set(0);
+        }
+    }
+
+    // The latest value of something, e.g. a queue depth
+    public static final class Gauge extends Metric {
+        private final AtomicLong mValue = new AtomicLong();
+
+        Gauge(String name) {
+            super(name);
+        }
+
+        public void set(long value) {
+            mValue.set(value);
+        }
+
+        public long get() {
+            return mValue.get();
+        }
+
+        @Override
+        void describeTo(StringBuilder sb) {
+            sb.append(mValue.get());
+        }
+
+        @Override
+        void reset() {
+            mValue.set(0);
+        }
+    }
+
+    /**
+     * Counts events and reports the rate over the last complete second. Marks racing with the
+     * roll-over to a new second may land in either one, which is fine for a rate display.
+     */
+    public static final class Meter extends Metric {
+        private final Clock mClock;
+        private final AtomicLong mTotal = new AtomicLong();
+        private final AtomicLong mWindowStart = new AtomicLong();
+        private final AtomicLong mWindowCount = new AtomicLong();
+        private final AtomicLong mLastRate = new AtomicLong();
+
+        Meter(String name, Clock clock) {
+            super(name);
+            mClock = clock;
+        }
+
+        public void mark() {
+            mTotal.incrementAndGet();
+            roll(mClock.nowMillis());
+            mWindowCount.incrementAndGet();
+        }
+
+        private void roll(long now) {
+            final long start = mWindowStart.get();
+            if (now - start < 1000 || !mWindowStart.compareAndSet(start, now)) return;
+            final long count = mWindowCount.getAndSet(0);
+            // More than a second since the window ended means the last second was empty
+            mLastRate.set(now - start < 2000 ? count : 0);
+        }
+
+        // Events in the last complete second
+        public long perSecond() {
+            roll(mClock.nowMillis());
+            return mLastRate.get();
+        }
+
+        public long getTotal() {
+            return mTotal.get();
+        }
+
+        @Override
+        void describeTo(StringBuilder sb) {
+            sb.append(perSecond()).append("/s total=").append(mTotal.get());
+        }
+
+        @Override
+        void reset() {
+            mTotal.set(0);
+            mWindowCount.set(0);
+            mLastRate.set(0);
+        }
+    }
+
+    /**
+     * Distribution of a value, typically a latency in milliseconds, over fixed buckets. Percentiles
+     * are reported as the upper bound of the bucket they fall in.
+     */
+    public static final class Histogram extends Metric {
+        private final long[] mBounds;
+        private final AtomicLongArray mCounts;
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mSum = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong(Long.MIN_VALUE);
+
+        Histogram(String name, long[] bounds) {
+            super(name);
+            mBounds = bounds.clone();
+            mCounts = new AtomicLongArray(bounds.length + 1);
+        }
+
+        public void record(long value) {
+            int bucket = 0;
+            while (bucket < mBounds.length && value > mBounds[bucket]) bucket++;
+            mCounts.incrementAndGet(bucket);
+            mCount.incrementAndGet();
+            mSum.addAndGet(value);
+            long max;
+            while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value)) {
+                // Lost a race with another record, try again
+            }
+        }
+
+        public long getCount() {
+            return mCount.get();
+        }
+
+        // -1 if nothing was recorded
+        public long getMean() {
+            final long count = mCount.get();
+            return count == 0 ? -1 : mSum.get() / count;
+        }
+
+        public long getMax() {
+            return mCount.get() == 0 ? -1 : mMax.get();
+        }
+
+        /**
+         * @param fraction e.g. 0.99 for the 99th percentile.
+         * @return The upper bound of the bucket holding it, but never more than the maximum, the
+         *         maximum for the overflow bucket, or -1 if nothing was recorded.
+         */
+        public long getPercentile(double fraction) {
+            final long count = mCount.get();
+            if (count == 0) return -1;
+            final long rank = (long) Math.ceil(fraction * count);
+            long seen = 0;
+            for (int i = 0; i < mBounds.length; i++) {
+                seen += mCounts.get(i);
+                if (seen >= rank) return Math.min(mBounds[i], getMax());
+            }
+            return getMax();
+        }
+
+        @Override
+        void describeTo(StringBuilder sb) {
+            sb.append("n=").append(getCount())
+                    .append(" mean=").append(getMean())
+                    .append(" p50=").append(getPercentile(0.5))
+                    .append(" p99=").append(getPercentile(0.99))
+                    .append(" max=").append(getMax());
+        }
+
+        @Override
+        void reset() {
+            for (int i = 0; i < mCounts.length(); i++) {
+                mCounts.set(i, 0);
+            }
+            mCount.set(0);
+            mSum.set(0);
+            mMax.set(Long.MIN_VALUE);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.example.andres.battle_bots;
+
+/**
+ * Turns control events into the bytes a robot's firmware understands. Each session picks its
+ * codec after service discovery (see {@link ProtocolCodecs}), so robots running newer firmware
+ * can use a faster framing while older ones keep the legacy ASCII codes.
+ *
+ * Frames are built once up front; callers get shared arrays back and must not modify them.
+ */
+public interface ProtocolCodec {
+
+    // Motor levels each way in encodeMotors(), so -MOTOR_STEPS is full reverse
+    int MOTOR_STEPS = 15;
+
+    // Short name for logs
+    String getName();
+
+    // Number of control channels this protocol can address
+    int getChannelCount();
+
+    /**
+     * Frame for a control changing state.
+     *
+     * @param channel The control, below {@link #getChannelCount()}.
+     * @param pressed true for the "on" frame, false for the "off" frame.
+     */
+    byte[] encodeButton(int channel, boolean pressed);
+
+    // Frames that turn every control off, each small enough for a single ATT write
+    byte[][] encodeStopAll();
+
+    /**
+     * One frame carrying the state of every control, used on weak links where a lost frame must
+     * be repaired by whichever one makes it next. Unlike the other frames this one is built per
+     * call.
+     *
+     * @param pressedMask Bit i set if channel i is on.
+     * @return The frame, or null if the protocol has no such frame.
+     */
+    byte[] encodeFullState(int pressedMask);
+
+    /**
+     * Frame setting both drive motors directly, for firmware that leaves mixing to the phone
+     * (see {@link DriveMixer}).
+     *
+     * @param left Left motor level, from -{@link #MOTOR_STEPS} to {@link #MOTOR_STEPS}.
+     * @param right Right motor level, same range.
+     * @return The frame, or null if the protocol has no such frame.
+     */
+    byte[] encodeMotors(int left, int right);
+}
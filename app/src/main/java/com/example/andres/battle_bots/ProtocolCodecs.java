@@ -0,0 +1,58 @@
+package com.example.andres.battle_bots;
+
+/**
+ * Picks the codec for a robot. Firmware that supports something newer than the legacy ASCII
+ * protocol exposes {@link SampleGattAttributes#UUID_PROTOCOL_VERSION} next to the UART
+ * characteristics; its first byte is the protocol version. Robots without it speak ASCII.
+ *
+ * The three high bits of the version byte are flags: {@link #FLAG_RELIABLE} when the firmware also
+ * understands the acknowledged framing of {@link ReliableLink}, {@link #FLAG_REQUESTS} when it
+ * answers the queries of {@link RobotRequests}, {@link #FLAG_MOTORS} when it takes motor levels
+ * mixed on the phone by {@link DriveMixer}.
+ *
+ * An optional second byte is the PSM of an LE L2CAP channel the robot listens on; when it is
+ * present and the phone supports it, {@link L2capLink} carries the same frames instead of TX/RX.
+ */
+public class ProtocolCodecs {
+
+    public static final int VERSION_ASCII = 1;
+    public static final int VERSION_COMPACT = 2;
+
+    public static final int FLAG_RELIABLE = 0x80;
+    public static final int FLAG_REQUESTS = 0x40;
+    public static final int FLAG_MOTORS = 0x20;
+
+    // Codecs hold no per-link state, so one instance of each is shared by all sessions
+    private static final ProtocolCodec ASCII = new AsciiProtocolCodec();
+    private static final ProtocolCodec COMPACT = new CompactProtocolCodec();
+
+    private ProtocolCodecs() {
+    }
+
+    public static ProtocolCodec ascii() {
+        return ASCII;
+    }
+
+    // Falls back to ASCII for versions this build does not know about
+    public static ProtocolCodec forVersion(int version) {
+        switch (version & ~(FLAG_RELIABLE | FLAG_REQUESTS | FLAG_MOTORS)) {
+            case VERSION_COMPACT:
+                return COMPACT;
+            default:
+                return ASCII;
+        }
+    }
+
+    public static boolean isReliable(int version) {
+        return (version & FLAG_RELIABLE) != 0;
+    }
+
+    public static boolean supportsRequests(int version) {
+        return (version & FLAG_REQUESTS) != 0;
+    }
+
+    // Whether the firmware drives its motors from encodeMotors() frames
+    public static boolean supportsMotors(int version) {
+        return (version & FLAG_MOTORS) != 0;
+    }
+}
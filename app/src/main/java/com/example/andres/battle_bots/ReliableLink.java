@@ -0,0 +1,266 @@
+package com.example.andres.battle_bots;
+
+/**
+ * Optional reliability layer for robots whose firmware supports it (see {@link ProtocolCodecs}).
+ * It wraps every frame from the command pipeline with a sequence number and a CRC:
+ *
+ *   0xA5  seq  len  payload[len]  crc8(seq, len, payload)
+ *
+ * The robot answers on the RX characteristic with a compact acknowledgement:
+ *
+ *   0xA6  base  bitmap  crc8(base, bitmap)
+ *
+ * where bit i of the bitmap is set if frame base + i arrived intact. The magic is outside ASCII
+ * and the CRC must match, so telemetry is never mistaken for an acknowledgement. A clear bit below
+ * the highest set bit means that frame was lost or corrupted, and only those frames are sent
+ * again. Frames that stay unacknowledged for {@link #ACK_TIMEOUT_MS} are resent as well.
+ *
+ * The scheduler says which channel and lane each frame belongs to. A frame is never resent once
+ * a newer one for the same channel has been written, since it would land after the newer one and
+ * undo it; a full-state frame replaces every per-control frame. Motion frames left unacknowledged
+ * for {@link #STALE_AFTER_MS} are given up on. Stop frames never are: they are resent until
+ * acknowledged or replaced, and while one holds the window slot a new frame needs, new frames
+ * are refused as if the radio were busy.
+ *
+ * Unframed bytes are still accepted by such firmware, so the emergency stop stays unframed.
+ *
+ * Not thread-safe; the owning {@link CommandScheduler} serializes all calls.
+ */
+public class ReliableLink implements CommandScheduler.Transport, CommandScheduler.Retransmitter {
+
+    public static final int FRAME_MAGIC = 0xA5;
+    public static final int ACK_MAGIC = 0xA6;
+    public static final int ACK_LENGTH = 4;
+
+    // Outstanding frames; also the width of the acknowledgement bitmap
+    public static final int WINDOW = 8;
+
+    // Frame overhead on top of the payload: magic, seq, len, crc
+    public static final int OVERHEAD = 4;
+
+    public static final long ACK_TIMEOUT_MS = 80;
+    // Motion frames only; stop frames are resent for as long as it takes
+    public static final long STALE_AFTER_MS = 300;
+
+    // Channel of frames that belong to no command, e.g. requests; never replaced
+    private static final int NO_CHANNEL = -1;
+
+    private static final byte[] CRC8_TABLE = new byte[256];
+
+    static {
+        // CRC-8, polynomial x^8 + x^2 + x + 1 (0x07), same as the firmware side
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x80) != 0 ? (crc << 1) ^ 0x07 : crc << 1;
+            }
+            CRC8_TABLE[i] = (byte) crc;
+        }
+    }
+
+    private final CommandScheduler.Transport mInner;
+    private final Clock mClock;
+
+    // Per window slot: the framed bytes, their sequence number and delivery state
+    private final byte[][] mFrames = new byte[WINDOW][];
+    private final int[] mSeq = new int[WINDOW];
+    private final boolean[] mOutstanding = new boolean[WINDOW];
+    private final boolean[] mNacked = new boolean[WINDOW];
+    private final long[] mFirstSentAt = new long[WINDOW];
+    private final long[] mLastSentAt = new long[WINDOW];
+    private final int[] mChannel = new int[WINDOW];
+    private final int[] mPriority = new int[WINDOW];
+
+    private int mNextSeq;
+
+    // What the next write carries, as told by the scheduler
+    private int mNextChannel = NO_CHANNEL;
+    private int mNextPriority = CommandScheduler.PRIORITY_MOTION;
+
+    private long mSent;
+    private long mRetransmitted;
+    private long mStale;
+    private long mReplaced;
+
+    // Buffer for the next frame; swapped with a slot's once the radio has taken the frame
+    private byte[] mSpare = new byte[0];
+
+    public ReliableLink(CommandScheduler.Transport inner, Clock clock) {
+        mInner = inner;
+        mClock = clock;
+    }
+
+    @Override
+    public void onWriting(int channel, int priority) {
+        mNextChannel = channel;
+        mNextPriority = priority;
+    }
+
+    /**
+     * Wraps a new frame and sends it. If the window is full, the oldest frame's slot is reused
+     * once the radio takes the new frame, unless it holds a stop frame the new one does not
+     * replace; then nothing is written until that stop frame is acknowledged.
+     */
+    @Override
+    public boolean write(byte[] payload) {
+        final long now = mClock.nowMillis();
+        final int channel = mNextChannel;
+        final int priority = mNextPriority;
+        mNextChannel = NO_CHANNEL;
+        mNextPriority = CommandScheduler.PRIORITY_MOTION;
+
+        final int seq = mNextSeq & 0xFF;
+        final int slot = seq % WINDOW;
+        final boolean evicting = mOutstanding[slot] && !replaces(channel, mChannel[slot]);
+        if (evicting && mPriority[slot] == CommandScheduler.PRIORITY_STOP) {
+            return false;
+        }
+
+        // The slot's previous frame may still need resending, so only a frame the radio took
+        // may overwrite it
+        final byte[] previous = mFrames[slot];
+        byte[] frame = mSpare.length == payload.length + OVERHEAD
+                ? mSpare : new byte[payload.length + OVERHEAD];
+        frame[0] = (byte) FRAME_MAGIC;
+        frame[1] = (byte) seq;
+        frame[2] = (byte) payload.length;
+        System.arraycopy(payload, 0, frame, 3, payload.length);
+        frame[frame.length - 1] = crc8(frame, 1, frame.length - 2);
+
+        if (!mInner.write(frame)) {
+            mSpare = frame;
+            return false;
+        }
+        if (evicting) {
+            // Its sequence number came around again before it was acknowledged
+            mStale++;
+        } else if (mOutstanding[slot]) {
+            mReplaced++;
+        }
+        // Older frames this one replaces must never be resent after it
+        for (int other = 0; other < WINDOW; other++) {
+            if (mOutstanding[other] && other != slot && replaces(channel, mChannel[other])) {
+                mOutstanding[other] = false;
+                mReplaced++;
+            }
+        }
+        mFrames[slot] = frame;
+        mSpare = previous != null ? previous : new byte[0];
+        mNextSeq++;
+        mSeq[slot] = seq;
+        mChannel[slot] = channel;
+        mPriority[slot] = priority;
+        mOutstanding[slot] = true;
+        mNacked[slot] = false;
+        mFirstSentAt[slot] = now;
+        mLastSentAt[slot] = now;
+        mSent++;
+        return true;
+    }
+
+    // Whether a frame for the channel makes an older one for the other channel obsolete
+    private static boolean replaces(int channel, int older) {
+        if (channel == NO_CHANNEL || older == NO_CHANNEL) return false;
+        return channel == older || (channel == CommandScheduler.STATE_CHANNEL
+                && older < CommandScheduler.MAX_CHANNELS);
+    }
+
+    // Whether a frame for the channel was sent and is still waiting to be acknowledged
+    public boolean isOutstanding(int channel) {
+        for (int slot = 0; slot < WINDOW; slot++) {
+            if (mOutstanding[slot] && mChannel[slot] == channel) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Applies an acknowledgement received from the robot.
+     *
+     * @return false if the data is not an acknowledgement and should be handled as telemetry.
+     */
+    public boolean onReceive(byte[] data) {
+        if (data == null || data.length != ACK_LENGTH || (data[0] & 0xFF) != ACK_MAGIC
+                || crc8(data, 1, 2) != data[3]) {
+            return false;
+        }
+        final int base = data[1] & 0xFF;
+        final int bitmap = data[2] & 0xFF;
+        final int highest = 31 - Integer.numberOfLeadingZeros(bitmap);
+        for (int i = 0; i < WINDOW; i++) {
+            final int seq = (base + i) & 0xFF;
+            final int slot = seq % WINDOW;
+            if (!mOutstanding[slot] || mSeq[slot] != seq) continue;
+            if ((bitmap & (1 << i)) != 0) {
+                mOutstanding[slot] = false;
+                mNacked[slot] = false;
+            } else if (i < highest) {
+                // A later frame made it, so this one was lost or failed its CRC
+                mNacked[slot] = true;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public long nextRetransmitAt(long now) {
+        long next = Long.MAX_VALUE;
+        for (int slot = 0; slot < WINDOW; slot++) {
+            if (!mOutstanding[slot]) continue;
+            final long at = mNacked[slot] ? now : mLastSentAt[slot] + ACK_TIMEOUT_MS;
+            if (at < next) next = at;
+        }
+        return next;
+    }
+
+    // Resends the oldest frame that needs it, dropping motion frames that went stale on the way
+    @Override
+    public boolean retransmit(long now) {
+        int oldest = -1;
+        for (int slot = 0; slot < WINDOW; slot++) {
+            if (!mOutstanding[slot]) continue;
+            if (mPriority[slot] != CommandScheduler.PRIORITY_STOP
+                    && now - mFirstSentAt[slot] > STALE_AFTER_MS) {
+                mOutstanding[slot] = false;
+                mStale++;
+                continue;
+            }
+            final boolean due = mNacked[slot] || now - mLastSentAt[slot] >= ACK_TIMEOUT_MS;
+            if (due && (oldest < 0 || mFirstSentAt[slot] < mFirstSentAt[oldest])) {
+                oldest = slot;
+            }
+        }
+        if (oldest < 0 || !mInner.write(mFrames[oldest])) {
+            return false;
+        }
+        mNacked[oldest] = false;
+        mLastSentAt[oldest] = now;
+        mRetransmitted++;
+        return true;
+    }
+
+    public long getSentCount() {
+        return mSent;
+    }
+
+    public long getRetransmitCount() {
+        return mRetransmitted;
+    }
+
+    // Motion frames given up on without an acknowledgement
+    public long getStaleCount() {
+        return mStale;
+    }
+
+    // Unacknowledged frames dropped because a newer frame for their channel was written
+    public long getReplacedCount() {
+        return mReplaced;
+    }
+
+    static byte crc8(byte[] data, int offset, int length) {
+        int crc = 0;
+        for (int i = offset; i < offset + length; i++) {
+            crc = CRC8_TABLE[(crc ^ data[i]) & 0xFF] & 0xFF;
+        }
+        return (byte) crc;
+    }
+}
@@ -0,0 +1,229 @@
+package com.example.andres.battle_bots;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Structured diagnostics for the hot paths, kept in memory instead of logcat. Messages are
+ * declared once as {@link Event}s with a format string; a call site only records the event and
+ * up to three primitive arguments into a fixed ring of the last {@link #CAPACITY} records, and the
+ * text is built only when the ring is dumped (see {@link BluetoothLeService#dump}):
+ *
+ *   private static final RingLog.Tag CONTROL = RingLog.tag("control");
+ *   private static final RingLog.Event SEND =
+ *           RingLog.event(CONTROL, RingLog.DEBUG, "send channel=%d pressed=%d");
+ *   ...
+ *   RingLog.log(SEND, channel, pressed ? 1 : 0);
+ *
+ * Each tag has a level below which its events are dropped, and can keep only one in every n of
+ * the events that pass it; both are set by tag name with {@link #setLevel} and
+ * {@link #setSampleEvery}, e.g. from the service's dump arguments. Logging formats, boxes and
+ * allocates nothing, but the arguments are still computed; a call site whose arguments cost more
+ * than a field read asks {@link #isLoggable} first and then records without asking again:
+ *
+ *   if (RingLog.isLoggable(RECEIVED)) RingLog.record(RECEIVED, data.length, head(data));
+ *
+ * Lock-free: any thread may log while another dumps. A record being overwritten while it is read
+ * is left out of the dump.
+ */
+public final class RingLog {
+
+    // Same values as android.util.Log
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int OFF = Integer.MAX_VALUE;
+
+    public static final int CAPACITY = 1024;
+    private static final int MASK = CAPACITY - 1;
+    private static final int MAX_EVENTS = 256;
+
+    // Per record: time, event id and three arguments
+    private static final int FIELDS = 5;
+
+    public static final class Tag {
+        private final String mName;
+        private volatile int mLevel = DEBUG;
+        private volatile int mSampleEvery = 1;
+        private final AtomicInteger mSampleCount = new AtomicInteger();
+
+        private Tag(String name) {
+            mName = name;
+        }
+
+        public String getName() {
+            return mName;
+        }
+    }
+
+    public static final class Event {
+        private final Tag mTag;
+        private final int mLevel;
+        private final String mFormat;
+        private final int mId;
+
+        private Event(Tag tag, int level, String format, int id) {
+            mTag = tag;
+            mLevel = level;
+            mFormat = format;
+            mId = id;
+        }
+    }
+
+    private static final Event[] sEvents = new Event[MAX_EVENTS];
+    private static int sEventCount;
+    private static final List<Tag> sTags = new ArrayList<Tag>();
+
+    private static final AtomicLong sNext = new AtomicLong();
+    // Per slot: 1 + the sequence number of the complete record in it, 0 while it is written
+    private static final AtomicLongArray sSeq = new AtomicLongArray(CAPACITY);
+    private static final AtomicLongArray sData = new AtomicLongArray(CAPACITY * FIELDS);
+
+    private RingLog() {
+    }
+
+    public static synchronized Tag tag(String name) {
+        final Tag tag = new Tag(name);
+        sTags.add(tag);
+        return tag;
+    }
+
+    /**
+     * Drops the events of every tag with this name below a level; {@link #OFF} drops them all.
+     *
+     * @return false if no tag has this name.
+     */
+    public static synchronized boolean setLevel(String tagName, int level) {
+        boolean found = false;
+        for (Tag tag : sTags) {
+            if (tag.mName.equals(tagName)) {
+                tag.mLevel = level;
+                found = true;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Keeps only one in every n events of every tag with this name that pass its level.
+     *
+     * @return false if no tag has this name.
+     */
+    public static synchronized boolean setSampleEvery(String tagName, int n) {
+        boolean found = false;
+        for (Tag tag : sTags) {
+            if (tag.mName.equals(tagName)) {
+                tag.mSampleEvery = Math.max(1, n);
+                tag.mSampleCount.set(0);
+                found = true;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Decides whether this occurrence of the event is kept, counting it towards its tag's sample;
+     * a true answer must be followed by one {@link #record} call.
+     */
+    public static boolean isLoggable(Event event) {
+        final Tag tag = event.mTag;
+        if (event.mLevel < tag.mLevel) return false;
+        final int every = tag.mSampleEvery;
+        return every == 1 || tag.mSampleCount.incrementAndGet() % every == 0;
+    }
+
+    /**
+     * Declares an event, typically as a static final of the class that logs it.
+     *
+     * @param format A String.format pattern taking as many long arguments as the event is logged
+     *               with, e.g. %d or %x.
+     */
+    public static synchronized Event event(Tag tag, int level, String format) {
+        if (sEventCount == MAX_EVENTS) {
+            throw new IllegalStateException("Too many log events");
+        }
+        final Event event = new Event(tag, level, format, sEventCount);
+        sEvents[sEventCount++] = event;
+        return event;
+    }
+
+    public static void log(Event event) {
+        if (isLoggable(event)) record(event, 0, 0, 0);
+    }
+
+    public static void log(Event event, long a) {
+        if (isLoggable(event)) record(event, a, 0, 0);
+    }
+
+    public static void log(Event event, long a, long b) {
+        if (isLoggable(event)) record(event, a, b, 0);
+    }
+
+    public static void log(Event event, long a, long b, long c) {
+        if (isLoggable(event)) record(event, a, b, c);
+    }
+
+    // Records an event that isLoggable() just accepted
+    public static void record(Event event, long a, long b) {
+        record(event, a, b, 0);
+    }
+
+    public static void record(Event event, long a, long b, long c) {
+        final long seq = sNext.getAndIncrement();
+        final int slot = (int) (seq & MASK);
+        final int base = slot * FIELDS;
+        // Mark the slot as being written before touching its fields, publish it after
+        sSeq.getAndSet(slot, 0);
+        sData.lazySet(base, System.nanoTime());
+        sData.lazySet(base + 1, event.mId);
+        sData.lazySet(base + 2, a);
+        sData.lazySet(base + 3, b);
+        sData.lazySet(base + 4, c);
+        sSeq.set(slot, seq + 1);
+    }
+
+    // Number of records ever kept, including those the ring has since overwritten
+    public static long getRecordCount() {
+        return sNext.get();
+    }
+
+    // Prints the ring oldest first, with times relative to the newest record
+    public static void dump(PrintWriter writer) {
+        final long end = sNext.get();
+        final long start = Math.max(0, end - CAPACITY);
+        final long[] record = new long[FIELDS];
+        long newest = -1;
+        final StringBuilder sb = new StringBuilder();
+        for (long seq = end - 1; seq >= start && newest < 0; seq--) {
+            if (read(seq, record)) newest = record[0];
+        }
+        int printed = 0;
+        for (long seq = start; seq < end; seq++) {
+            if (!read(seq, record)) continue;
+            printed++;
+            final Event event = sEvents[(int) record[1]];
+            sb.setLength(0);
+            sb.append(String.format("%9.3f ", (record[0] - newest) / 1e6))
+                    .append("VDIW".charAt(Math.min(3, Math.max(0, event.mLevel - VERBOSE))))
+                    .append(' ').append(event.mTag.mName).append(": ")
+                    .append(String.format(event.mFormat, record[2], record[3], record[4]));
+            writer.println(sb);
+        }
+        writer.println(printed + " of " + end + " records");
+    }
+
+    // Copies one record if it is still in the ring and not being rewritten
+    private static boolean read(long seq, long[] record) {
+        final int slot = (int) (seq & MASK);
+        if (sSeq.get(slot) != seq + 1) return false;
+        for (int i = 0; i < FIELDS; i++) {
+            record[i] = sData.get(slot * FIELDS + i);
+        }
+        return sSeq.get(slot) == seq + 1;
+    }
+}
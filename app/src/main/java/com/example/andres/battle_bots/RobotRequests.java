@@ -0,0 +1,324 @@
+package com.example.andres.battle_bots;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Query-style exchanges with the robot, e.g. battery level or firmware configuration, over the
+ * same UART characteristics as the driving commands. Firmware that supports them says so with
+ * {@link ProtocolCodecs#FLAG_REQUESTS}. Each request carries an id that the response echoes:
+ *
+ *   request   0xC0  id  type    len  payload[len]     written to TX
+ *   response  0xC1  id  status  len  payload[len]     notified on RX, status 0 = success
+ *
+ * so several requests can be in flight at once and answered in any order. Requests go out
+ * through the {@link CommandScheduler} as background frames, only while no driving command is
+ * waiting, so queries never hold up the robot's controls. Every request has its own timeout,
+ * counted from when it was made.
+ *
+ * Thread-safe: requests are made on the main thread, responses arrive on binder threads and the
+ * scheduler takes frames under its own lock. Results are delivered through the executor given at
+ * construction, never with a lock held.
+ */
+public class RobotRequests implements CommandScheduler.BackgroundSource {
+
+    public static final int REQUEST_MAGIC = 0xC0;
+    public static final int RESPONSE_MAGIC = 0xC1;
+
+    // Header before the payload: magic, id, type or status, len
+    public static final int HEADER = 4;
+    // A frame must fit one 20 byte ATT write or notification
+    public static final int MAX_PAYLOAD = 20 - HEADER;
+
+    // Requests the stock firmware answers
+    public static final int TYPE_BATTERY = 0x01;
+    public static final int TYPE_FIRMWARE_CONFIG = 0x02;
+
+    public static final int MAX_IN_FLIGHT = 16;
+    public static final long DEFAULT_TIMEOUT_MS = 1000;
+
+    // Why a request failed
+    public static final int REASON_TIMEOUT = 1;
+    public static final int REASON_ROBOT_ERROR = 2;
+    public static final int REASON_LINK_LOST = 3;
+    public static final int REASON_CANCELLED = 4;
+
+    public interface Callback {
+        void onResponse(Request request, byte[] payload);
+
+        void onFailure(Request request, int reason);
+    }
+
+    /**
+     * One exchange with the robot. Usable as a future, or through the callback it was made with.
+     */
+    public static class Request implements Future<byte[]> {
+        private final int mType;
+        private final byte[] mFrame;
+        private final long mDeadline;
+        private final Callback mCallback;
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private int mId;
+        private long mSentAt = -1;
+
+        // Outcome, written once under the owner's lock before mDone is released
+        private byte[] mResponse;
+        private int mReason;
+        private int mStatus;
+        private long mLatency = -1;
+        private RobotRequests mOwner;
+
+        Request(int type, byte[] payload, long deadline, Callback callback) {
+            mType = type;
+            mDeadline = deadline;
+            mCallback = callback;
+            mFrame = new byte[HEADER + payload.length];
+            mFrame[0] = (byte) REQUEST_MAGIC;
+            mFrame[2] = (byte) type;
+            mFrame[3] = (byte) payload.length;
+            System.arraycopy(payload, 0, mFrame, HEADER, payload.length);
+        }
+
+        public int getType() {
+            return mType;
+        }
+
+        // Status byte of a REASON_ROBOT_ERROR failure
+        public int getStatus() {
+            return mStatus;
+        }
+
+        // Time from being sent to being answered, -1 if it was not answered
+        public long getLatencyMillis() {
+            return mLatency;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return mOwner.finish(this, null, REASON_CANCELLED, 0);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return isDone() && mReason == REASON_CANCELLED;
+        }
+
+        @Override
+        public boolean isDone() {
+            return mDone.getCount() == 0;
+        }
+
+        @Override
+        public byte[] get() throws InterruptedException, ExecutionException {
+            mDone.await();
+            return result();
+        }
+
+        @Override
+        public byte[] get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            if (!mDone.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            return result();
+        }
+
+        private byte[] result() throws ExecutionException {
+            if (mResponse == null) {
+                throw new ExecutionException(new RequestFailedException(mReason, mStatus));
+            }
+            return mResponse;
+        }
+    }
+
+    // Cause of the ExecutionException from a failed request's get()
+    public static class RequestFailedException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public final int reason;
+        public final int status;
+
+        RequestFailedException(int reason, int status) {
+            super("Request failed, reason " + reason + (reason == REASON_ROBOT_ERROR
+                    ? " status " + status : ""));
+            this.reason = reason;
+            this.status = status;
+        }
+    }
+
+    private final Clock mClock;
+    private final Executor mCallbackExecutor;
+
+    // Made but not yet sent, oldest first, and sent but not answered, by id
+    private final ArrayDeque<Request> mWaiting = new ArrayDeque<Request>();
+    private final Request[] mInFlight = new Request[256];
+    private int mInFlightCount;
+    private int mNextId = 1;
+
+    public RobotRequests(Clock clock, Executor callbackExecutor) {
+        mClock = clock;
+        mCallbackExecutor = callbackExecutor;
+    }
+
+    /**
+     * Queues a request. The owner must pump the scheduler afterwards for it to go out.
+     *
+     * @param payload At most {@link #MAX_PAYLOAD} bytes.
+     * @param callback May be null when the request is used as a future.
+     */
+    public synchronized Request request(int type, byte[] payload, long timeoutMillis,
+                                        Callback callback) {
+        if (payload.length > MAX_PAYLOAD) {
+            throw new IllegalArgumentException("Payload of " + payload.length + " bytes");
+        }
+        final Request request = new Request(type, payload, mClock.nowMillis() + timeoutMillis,
+                callback);
+        request.mOwner = this;
+        mWaiting.add(request);
+        return request;
+    }
+
+    @Override
+    public synchronized byte[] peekBackground() {
+        final Request next = mWaiting.peek();
+        if (next == null || mInFlightCount >= MAX_IN_FLIGHT) return null;
+        if (next.mId == 0) {
+            // Ids are only taken when the frame is about to go out, so none sit idle in the queue
+            while (mInFlight[mNextId] != null) {
+                mNextId = mNextId % 255 + 1;
+            }
+            next.mId = mNextId;
+            next.mFrame[1] = (byte) mNextId;
+            mNextId = mNextId % 255 + 1;
+        }
+        return next.mFrame;
+    }
+
+    @Override
+    public synchronized void onBackgroundSent(byte[] frame, long now) {
+        // Timed out or cancelled since it was peeked: it went out, but nobody waits for the answer
+        final Request sent = mWaiting.peek();
+        if (sent == null || sent.mFrame != frame) return;
+        mWaiting.poll();
+        sent.mSentAt = now;
+        mInFlight[sent.mId] = sent;
+        mInFlightCount++;
+    }
+
+    /**
+     * Matches data notified on RX against the requests in flight.
+     *
+     * @return false if the data is not a response and should be handled as telemetry.
+     */
+    public boolean onReceive(byte[] data) {
+        if (data == null || data.length < HEADER || (data[0] & 0xFF) != RESPONSE_MAGIC) {
+            return false;
+        }
+        final int id = data[1] & 0xFF;
+        final int status = data[2] & 0xFF;
+        final int length = Math.min(data[3] & 0xFF, data.length - HEADER);
+        final Request request;
+        synchronized (this) {
+            request = mInFlight[id];
+        }
+        // A response to something that already timed out or was cancelled is simply dropped
+        if (request != null) {
+            final byte[] payload = new byte[length];
+            System.arraycopy(data, HEADER, payload, 0, length);
+            if (status == 0) {
+                finish(request, payload, 0, 0);
+            } else {
+                finish(request, null, REASON_ROBOT_ERROR, status);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Fails every request whose timeout has passed.
+     *
+     * @return The next deadline among the remaining requests, Long.MAX_VALUE if none.
+     */
+    public long expire() {
+        final long now = mClock.nowMillis();
+        final ArrayDeque<Request> expired = new ArrayDeque<Request>();
+        long next = Long.MAX_VALUE;
+        synchronized (this) {
+            for (Request request : mWaiting) {
+                if (request.mDeadline <= now) expired.add(request);
+                else next = Math.min(next, request.mDeadline);
+            }
+            for (Request request : mInFlight) {
+                if (request == null) continue;
+                if (request.mDeadline <= now) expired.add(request);
+                else next = Math.min(next, request.mDeadline);
+            }
+        }
+        for (Request request : expired) {
+            finish(request, null, REASON_TIMEOUT, 0);
+        }
+        return next;
+    }
+
+    // Fails everything, e.g. when the link goes away
+    public void failAll(int reason) {
+        final ArrayDeque<Request> all;
+        synchronized (this) {
+            all = new ArrayDeque<Request>(mWaiting);
+            for (Request request : mInFlight) {
+                if (request != null) all.add(request);
+            }
+        }
+        for (Request request : all) {
+            finish(request, null, reason, 0);
+        }
+    }
+
+    public synchronized int getInFlightCount() {
+        return mInFlightCount;
+    }
+
+    public synchronized int getWaitingCount() {
+        return mWaiting.size();
+    }
+
+    // Settles a request once; returns false if it was already settled
+    private boolean finish(final Request request, final byte[] response, final int reason,
+                           int status) {
+        synchronized (this) {
+            if (request.isDone()) return false;
+            if (request.mSentAt >= 0 && mInFlight[request.mId] == request) {
+                mInFlight[request.mId] = null;
+                mInFlightCount--;
+            } else {
+                mWaiting.remove(request);
+            }
+            request.mResponse = response;
+            request.mReason = reason;
+            request.mStatus = status;
+            if (response != null) {
+                request.mLatency = mClock.nowMillis() - request.mSentAt;
+            }
+            request.mDone.countDown();
+        }
+        final Callback callback = request.mCallback;
+        if (callback != null) {
+            mCallbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (response != null) {
+                        callback.onResponse(request, response);
+                    } else {
+                        callback.onFailure(request, reason);
+                    }
+                }
+            });
+        }
+        return true;
+    }
+}
@@ -28,6 +28,10 @@ public class SampleGattAttributes {
     public static String UUID_STRING_WELL_KNOWN_SPP =
             "00001101-0000-1000-8000-00805F9B34FB";
 
+    //The Bluefruit's UART service, which holds the TX and RX characteristics below
+    public static String UUID_UART_SERVICE =
+            "6e400001-b5a3-f393-e0a9-e50e24dcca9e";
+
     //This is the TX UUID for the Adafruit Bluefruit, so we will check for devices that contain this ID
     public static String UUID_TX =
             "6e400002-b5a3-f393-e0a9-e50e24dcca9e";
@@ -36,6 +40,10 @@ public class SampleGattAttributes {
     public static String UUID_RX =
                     "6e400003-b5a3-f393-e0a9-e50e24dcca9e";
 
+    //Our firmware's protocol version, next to the UART characteristics. Older robots do not have it
+    public static String UUID_PROTOCOL_VERSION =
+            "6e400004-b5a3-f393-e0a9-e50e24dcca9e";
+
     static {
         // Sample Services.
         attributes.put("0000ffe0-0000-1000-8000-00805f9b34fb", "HM 10 Serial");
@@ -0,0 +1,212 @@
+package com.example.andres.battle_bots;
+
+import java.util.HashSet;
+
+/**
+ * Runs LE scans on a duty-cycled schedule instead of one long continuous scan. A schedule is a
+ * list of {@link DutyCycle}s run in order, typically an aggressive continuous window first and
+ * then short windows further apart, after which the scan stops by itself.
+ *
+ * Scanning shares the radio with any live control link and drains the battery, so a caller after
+ * specific devices can have the engine stop as soon as it has seen every one of them. Either way
+ * it records how long the first target took to show up, and how long all of them took.
+ */
+public class ScanEngine {
+    private static final RingLog.Tag LOG_SCAN = RingLog.tag("scan");
+    private static final RingLog.Event LOG_ALL_TARGETS =
+            RingLog.event(LOG_SCAN, RingLog.INFO, "found all %d target(s) in %d ms");
+    private static final RingLog.Event LOG_FINISHED =
+            RingLog.event(LOG_SCAN, RingLog.INFO, "schedule finished, first target after %d ms");
+
+    // Turns the actual LE scan on and off
+    public interface Radio {
+        void startScan();
+
+        void stopScan();
+    }
+
+    // Runs the engine's windows, e.g. a Handler on the main thread
+    public interface Timer {
+        void postDelayed(Runnable task, long delayMillis);
+
+        void removeCallbacks(Runnable task);
+    }
+
+    // Called on the timer's thread
+    public interface Listener {
+        void onScanStateChanged(boolean active);
+    }
+
+    /**
+     * Scan for {@code windowMillis} out of every {@code periodMillis}, {@code repeats} times.
+     */
+    public static final class DutyCycle {
+        final long windowMillis;
+        final long periodMillis;
+        final int repeats;
+
+        public DutyCycle(long windowMillis, long periodMillis, int repeats) {
+            this.windowMillis = windowMillis;
+            this.periodMillis = Math.max(windowMillis, periodMillis);
+            this.repeats = repeats;
+        }
+    }
+
+    // A solid window to find nearby robots fast
+    public static final DutyCycle[] AGGRESSIVE = {
+            new DutyCycle(4000, 4000, 1)
+    };
+
+    // A low duty cycle in case a robot powers up late
+    public static final DutyCycle[] BACKOFF = {
+            new DutyCycle(1000, 3000, 5)
+    };
+
+    public static final DutyCycle[] AGGRESSIVE_THEN_BACKOFF = {AGGRESSIVE[0], BACKOFF[0]};
+
+    // For when a control link is live and the radio should mostly be left to it
+    public static final DutyCycle[] BACKGROUND = {
+            new DutyCycle(1000, 4000, 4)
+    };
+
+    private final Radio mRadio;
+    private final Timer mTimer;
+    private final Clock mClock;
+    private final Listener mListener;
+
+    private DutyCycle[] mSchedule;
+    private int mCycle;
+    private int mRepeat;
+    private boolean mActive;
+    private boolean mRadioOn;
+
+    private int mTargetCount;
+    private final HashSet<String> mTargetsSeen = new HashSet<String>();
+    private long mStartedAt;
+    private long mFirstTargetMillis = -1;
+    private long mAllTargetsMillis = -1;
+
+    public ScanEngine(Radio radio, Timer timer, Clock clock, Listener listener) {
+        mRadio = radio;
+        mTimer = timer;
+        mClock = clock;
+        mListener = listener;
+    }
+
+    /**
+     * Starts a new scan, replacing any that is running.
+     *
+     * @param schedule The duty cycles to run, in order.
+     * @param targetCount How many distinct targets to find before stopping early, 0 to always run
+     *                    the whole schedule.
+     */
+    public void start(DutyCycle[] schedule, int targetCount) {
+        stop();
+        mSchedule = schedule;
+        mCycle = 0;
+        mRepeat = 0;
+        mTargetCount = targetCount;
+        mTargetsSeen.clear();
+        mStartedAt = mClock.nowMillis();
+        mFirstTargetMillis = -1;
+        mAllTargetsMillis = -1;
+        mActive = true;
+        mListener.onScanStateChanged(true);
+        windowStart();
+    }
+
+    public void stop() {
+        mTimer.removeCallbacks(mWindowStart);
+        mTimer.removeCallbacks(mWindowEnd);
+        setRadio(false);
+        if (mActive) {
+            mActive = false;
+            mListener.onScanStateChanged(false);
+        }
+    }
+
+    public boolean isActive() {
+        return mActive;
+    }
+
+    /**
+     * Reports a device from the scan callback.
+     *
+     * @param address The device's address.
+     * @param isTarget Whether it is one of the devices this scan is looking for.
+     */
+    public void onDeviceSeen(String address, boolean isTarget) {
+        if (!mActive || !isTarget || !mTargetsSeen.add(address)) return;
+
+        final long elapsed = mClock.nowMillis() - mStartedAt;
+        if (mFirstTargetMillis < 0) {
+            mFirstTargetMillis = elapsed;
+            LinkMetrics.SCAN_TO_TARGET.record(elapsed);
+        }
+        if (mTargetCount > 0 && mTargetsSeen.size() >= mTargetCount) {
+            mAllTargetsMillis = elapsed;
+            LinkMetrics.SCAN_TO_ALL_TARGETS.record(elapsed);
+            RingLog.log(LOG_ALL_TARGETS, mTargetCount, elapsed);
+            stop();
+        }
+    }
+
+    // Time from starting the scan to the first target, -1 if none was seen
+    public long getFirstTargetMillis() {
+        return mFirstTargetMillis;
+    }
+
+    // Time from starting the scan to the last wanted target, -1 unless the scan ended early
+    public long getAllTargetsMillis() {
+        return mAllTargetsMillis;
+    }
+
+    private void windowStart() {
+        if (mCycle >= mSchedule.length) {
+            RingLog.log(LOG_FINISHED, mFirstTargetMillis);
+            stop();
+            return;
+        }
+        setRadio(true);
+        mTimer.postDelayed(mWindowEnd, mSchedule[mCycle].windowMillis);
+    }
+
+    private void windowEnd() {
+        final DutyCycle cycle = mSchedule[mCycle];
+        final long idle = cycle.periodMillis - cycle.windowMillis;
+        if (++mRepeat >= cycle.repeats) {
+            mRepeat = 0;
+            mCycle++;
+        }
+        // Back-to-back windows keep the radio on rather than restarting the scan
+        final boolean more = mCycle < mSchedule.length;
+        if (idle > 0 || !more) {
+            setRadio(false);
+        }
+        mTimer.postDelayed(mWindowStart, idle);
+    }
+
+    private void setRadio(boolean on) {
+        if (on == mRadioOn) return;
+        mRadioOn = on;
+        if (on) {
+            mRadio.startScan();
+        } else {
+            mRadio.stopScan();
+        }
+    }
+
+    private final Runnable mWindowStart = new Runnable() {
+        @Override
+        public void run() {
+            windowStart();
+        }
+    };
+
+    private final Runnable mWindowEnd = new Runnable() {
+        @Override
+        public void run() {
+            windowEnd();
+        }
+    };
+}
@@ -0,0 +1,94 @@
+package com.example.andres.battle_bots;
+
+/**
+ * Additive-increase, multiplicative-decrease control of the gap between motion commands. Every
+ * write that completes quickly shortens the gap by {@link #STEP_MS}, twice as fast while commands
+ * pile up behind it; a failed, slow or refused write multiplies it by {@link #BACKOFF}. The link
+ * therefore creeps up to the fastest rate it can sustain and backs off hard as soon as it shows
+ * congestion.
+ *
+ * A completion only says the Bluefruit bridge took the bytes, not that the Arduino parsed them,
+ * so the radio alone would lead it well past what the robot can handle. It never goes below
+ * {@link #MIN_INTERVAL_MS}, the pace the robot's loop keeps up with.
+ *
+ * The learned gap is meant to be saved per robot (see {@link SendRatePrefs}) so the next session
+ * starts close to it instead of at the hand-tuned default.
+ *
+ * Not thread-safe; the owning {@link CommandScheduler} serializes all calls.
+ */
+public class SendRateController {
+
+    // The stock sketch parses one command per 100 ms loop and overruns its serial buffer beyond
+    // that, see RobotSimulatorTest
+    public static final long MIN_INTERVAL_MS = 100;
+    public static final long MAX_INTERVAL_MS = 400;
+    public static final long DEFAULT_INTERVAL_MS = CommandScheduler.MOTION_INTERVAL_MS;
+
+    // A write with response normally completes within a couple of connection events
+    public static final long TARGET_LATENCY_MS = 60;
+
+    // More commands than this waiting means we are sending slower than the driver asks
+    public static final int QUEUE_DEPTH_LIMIT = 4;
+
+    public static final double STEP_MS = 2.0;
+    public static final double BACKOFF = 1.5;
+
+    private double mInterval;
+
+    private long mIncreases;
+    private long mBackoffs;
+
+    public SendRateController(long initialIntervalMillis) {
+        mInterval = clamp(initialIntervalMillis);
+    }
+
+    public long getIntervalMillis() {
+        return (long) mInterval;
+    }
+
+    /**
+     * Feeds back the outcome of one write.
+     *
+     * @param latencyMillis Time from handing the frame to the stack to its completion.
+     * @param success Whether the stack reported success.
+     * @param queueDepth Commands still waiting behind it.
+     */
+    public void onWriteComplete(long latencyMillis, boolean success, int queueDepth) {
+        if (!success || latencyMillis > TARGET_LATENCY_MS) {
+            backOff();
+            return;
+        }
+        increase();
+        if (queueDepth > QUEUE_DEPTH_LIMIT) {
+            // Writes are fast but the driver keeps ahead of us: catch up quicker
+            increase();
+        }
+    }
+
+    // The stack refused a write because it was still busy
+    public void onBusy() {
+        backOff();
+    }
+
+    private void increase() {
+        mInterval = clamp(mInterval - STEP_MS);
+        mIncreases++;
+    }
+
+    private void backOff() {
+        mInterval = clamp(mInterval * BACKOFF);
+        mBackoffs++;
+    }
+
+    private static double clamp(double interval) {
+        return Math.max(MIN_INTERVAL_MS, Math.min(MAX_INTERVAL_MS, interval));
+    }
+
+    public long getIncreaseCount() {
+        return mIncreases;
+    }
+
+    public long getBackoffCount() {
+        return mBackoffs;
+    }
+}
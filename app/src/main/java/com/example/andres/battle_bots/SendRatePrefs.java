@@ -0,0 +1,28 @@
+package com.example.andres.battle_bots;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Stores the command interval each robot's link settled on, keyed by device address.
+ */
+public class SendRatePrefs {
+
+    private static final String PREFS_NAME = "send_rate";
+
+    private SendRatePrefs() {
+    }
+
+    private static SharedPreferences prefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    // The last learned interval, or the default for robots we have not driven yet
+    public static long load(Context context, String address) {
+        return prefs(context).getLong(address, SendRateController.DEFAULT_INTERVAL_MS);
+    }
+
+    public static void save(Context context, String address, long intervalMillis) {
+        prefs(context).edit().putLong(address, intervalMillis).apply();
+    }
+}
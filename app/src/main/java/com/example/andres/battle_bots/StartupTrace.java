@@ -0,0 +1,69 @@
+package com.example.andres.battle_bots;
+
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Times a launch from the moment the app is opened to the first command reaching the pipeline,
+ * with the stages in between. Each stage is recorded once per launch, from whichever thread gets
+ * there. The total goes to {@link LinkMetrics#LAUNCH_TO_FIRST_COMMAND} and the whole breakdown is
+ * logged when the first command goes out:
+ *
+ *   adb logcat -s StartupTrace
+ */
+public final class StartupTrace {
+    private final static String TAG = StartupTrace.class.getSimpleName();
+
+    public static final int LAUNCH = 0;
+    public static final int CONTROL_CREATED = 1;
+    public static final int CONTENT_INFLATED = 2;
+    public static final int LINK_READY = 3;
+    public static final int FIRST_COMMAND = 4;
+
+    private static final String[] STAGE_NAMES = {
+            "launch", "controlCreated", "contentInflated", "linkReady", "firstCommand"
+    };
+
+    // When each stage was reached, 0 if not yet in this launch
+    private static final AtomicLongArray sMarks = new AtomicLongArray(STAGE_NAMES.length);
+
+    private StartupTrace() {
+    }
+
+    // Starts timing a new launch, forgetting the previous one
+    public static void begin() {
+        for (int i = 0; i < STAGE_NAMES.length; i++) {
+            sMarks.set(i, 0);
+        }
+        sMarks.set(LAUNCH, Clock.SYSTEM.nowMillis());
+    }
+
+    /**
+     * Records that a stage was reached. Only the first time counts, and nothing is recorded
+     * unless {@link #begin()} was called for this launch.
+     */
+    public static void mark(int stage) {
+        // Cheap enough to call for every command
+        if (sMarks.get(stage) != 0 || sMarks.get(LAUNCH) == 0) return;
+        if (sMarks.compareAndSet(stage, 0, Clock.SYSTEM.nowMillis()) && stage == FIRST_COMMAND) {
+            LinkMetrics.LAUNCH_TO_FIRST_COMMAND.record(elapsedMillis(FIRST_COMMAND));
+            Log.i(TAG, describe());
+        }
+    }
+
+    // Time from launch to the stage, -1 if it was not reached
+    public static long elapsedMillis(int stage) {
+        final long launch = sMarks.get(LAUNCH);
+        final long at = sMarks.get(stage);
+        return launch == 0 || at == 0 ? -1 : at - launch;
+    }
+
+    public static String describe() {
+        final StringBuilder sb = new StringBuilder("startup");
+        for (int i = CONTROL_CREATED; i < STAGE_NAMES.length; i++) {
+            sb.append(' ').append(STAGE_NAMES[i]).append('=').append(elapsedMillis(i)).append("ms");
+        }
+        return sb.toString();
+    }
+}
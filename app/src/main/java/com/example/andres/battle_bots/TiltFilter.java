@@ -0,0 +1,119 @@
+package com.example.andres.battle_bots;
+
+/**
+ * Turns raw accelerometer samples into a few discrete steering levels. The sensor delivers 50 to
+ * 200 samples a second, far more than the link can carry, so each sample goes through:
+ *
+ * 1. a low-pass filter with time constant {@link #TIME_CONSTANT_MS}, which follows a deliberate
+ *    tilt but removes hand shake and vibration, whatever the sample rate,
+ * 2. a deadband, so a phone held roughly level means "stop",
+ * 3. quantization to {@link #STEPS} levels each way, with some hysteresis so a tilt resting on a
+ *    step boundary does not flicker between levels,
+ * 4. a rate cap: the output changes at most once per minimum interval. A change that comes too
+ *    soon is held back and goes out with the first sample after the interval.
+ *
+ * Axis 0 is steering (positive = right), axis 1 is throttle (positive = forward), both in m/s^2 of
+ * gravity along the screen axes. Pure Java and allocation-free, so it can be replayed against
+ * recorded sensor traces on the JVM.
+ */
+public class TiltFilter {
+
+    public static final int AXIS_STEER = 0;
+    public static final int AXIS_THROTTLE = 1;
+
+    public static final float GRAVITY = 9.81f;
+
+    public static final float TIME_CONSTANT_MS = 80f;
+
+    // Tilt below this fraction of full scale (about 9 degrees) counts as level
+    public static final float DEADBAND = 0.15f;
+
+    // Full scale, as a fraction of gravity: about 35 degrees of tilt gives the top level
+    public static final float FULL_SCALE = 0.6f;
+
+    public static final int STEPS = 4;
+
+    // Extra distance past a step boundary, in steps, before the level moves
+    public static final float HYSTERESIS = 0.15f;
+
+    public static final long DEFAULT_MIN_INTERVAL_MS = 100;
+
+    private final long mMinIntervalMillis;
+
+    private final float[] mFiltered = new float[2];
+    private final int[] mLevel = new int[2];
+    private final int[] mOutput = new int[2];
+    private long mLastSampleAt = -1;
+    private long mLastOutputAt = Long.MIN_VALUE / 2;
+
+    private long mSamples;
+    private long mOutputChanges;
+
+    public TiltFilter(long minIntervalMillis) {
+        mMinIntervalMillis = minIntervalMillis;
+    }
+
+    /**
+     * Feeds one sample.
+     *
+     * @param timeMillis When the sample was taken, monotonic.
+     * @return true if the output levels changed.
+     */
+    public boolean onSample(long timeMillis, float steer, float throttle) {
+        mSamples++;
+        if (mLastSampleAt < 0) {
+            // Start from the first reading instead of sweeping up from zero
+            mFiltered[AXIS_STEER] = steer;
+            mFiltered[AXIS_THROTTLE] = throttle;
+        } else {
+            final float dt = Math.max(0, timeMillis - mLastSampleAt);
+            final float alpha = dt / (TIME_CONSTANT_MS + dt);
+            mFiltered[AXIS_STEER] += alpha * (steer - mFiltered[AXIS_STEER]);
+            mFiltered[AXIS_THROTTLE] += alpha * (throttle - mFiltered[AXIS_THROTTLE]);
+        }
+        mLastSampleAt = timeMillis;
+
+        mLevel[AXIS_STEER] = quantize(mFiltered[AXIS_STEER], mLevel[AXIS_STEER]);
+        mLevel[AXIS_THROTTLE] = quantize(mFiltered[AXIS_THROTTLE], mLevel[AXIS_THROTTLE]);
+
+        if (mLevel[AXIS_STEER] == mOutput[AXIS_STEER]
+                && mLevel[AXIS_THROTTLE] == mOutput[AXIS_THROTTLE]) {
+            return false;
+        }
+        if (timeMillis - mLastOutputAt < mMinIntervalMillis) {
+            return false;
+        }
+        mOutput[AXIS_STEER] = mLevel[AXIS_STEER];
+        mOutput[AXIS_THROTTLE] = mLevel[AXIS_THROTTLE];
+        mLastOutputAt = timeMillis;
+        mOutputChanges++;
+        return true;
+    }
+
+    // Level from -STEPS to STEPS for a filtered reading, staying at the current level near edges
+    static int quantize(float value, int current) {
+        float scaled = Math.max(-1f, Math.min(1f, value / (GRAVITY * FULL_SCALE)));
+        final float magnitude = Math.abs(scaled);
+        scaled = magnitude < DEADBAND ? 0f
+                : Math.signum(scaled) * (magnitude - DEADBAND) / (1f - DEADBAND);
+        final float position = scaled * STEPS;
+        // Only move once the reading is clearly inside another step
+        if (Math.abs(position - current) <= 0.5f + HYSTERESIS) {
+            return current;
+        }
+        return Math.round(position);
+    }
+
+    // Current output level of an axis, from -STEPS to STEPS
+    public int getLevel(int axis) {
+        return mOutput[axis];
+    }
+
+    public long getSampleCount() {
+        return mSamples;
+    }
+
+    public long getOutputChangeCount() {
+        return mOutputChanges;
+    }
+}
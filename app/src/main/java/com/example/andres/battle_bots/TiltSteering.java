@@ -0,0 +1,120 @@
+package com.example.andres.battle_bots;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.view.Display;
+import android.view.Surface;
+
+/**
+ * Steers with the phone: the accelerometer, sampled at game rate, goes through a
+ * {@link TiltFilter} and its output holds the profile's tilt controls in the
+ * {@link ControllerState}. Tilting the top edge away drives forward, tilting a side down turns
+ * that way. Only level changes, at most one per {@link TiltFilter#DEFAULT_MIN_INTERVAL_MS}, ever
+ * reach the state, so the link sees a handful of commands however fast the sensor runs.
+ *
+ * While the {@link DriveInput} is enabled, the levels go to it as throttle and steering instead.
+ */
+public class TiltSteering implements SensorEventListener {
+
+    private final SensorManager mSensorManager;
+    private final Sensor mAccelerometer;
+    private final Display mDisplay;
+    private final ControllerProfile mProfile;
+    private final ControllerState mState;
+    private final DriveInput mDrive;
+    private final TiltFilter mFilter = new TiltFilter(TiltFilter.DEFAULT_MIN_INTERVAL_MS);
+    private boolean mRunning;
+
+    /**
+     * @param drive Where tilt goes when mixing on the phone, null if the profile has no drive.
+     */
+    public TiltSteering(SensorManager sensorManager, Display display, ControllerProfile profile,
+                        ControllerState state, DriveInput drive) {
+        mSensorManager = sensorManager;
+        mAccelerometer = sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+        mDisplay = display;
+        mProfile = profile;
+        mState = state;
+        mDrive = drive;
+    }
+
+    // Whether this phone and profile can steer by tilt at all
+    public boolean isAvailable() {
+        return mAccelerometer != null && mProfile.hasTiltControls();
+    }
+
+    public void start() {
+        if (mRunning || !isAvailable()) return;
+        mRunning = mSensorManager.registerListener(this, mAccelerometer,
+                SensorManager.SENSOR_DELAY_GAME);
+    }
+
+    // Stops listening and lets go of anything tilt was holding
+    public void stop() {
+        if (!mRunning) return;
+        mSensorManager.unregisterListener(this);
+        mRunning = false;
+        apply(0, 0);
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    @Override
+    public void onSensorChanged(SensorEvent event) {
+        // Device axes to screen axes, so "right" is right whichever way the phone is turned
+        final float x = event.values[0];
+        final float y = event.values[1];
+        float screenX;
+        float screenY;
+        switch (mDisplay.getRotation()) {
+            case Surface.ROTATION_90:
+                screenX = -y;
+                screenY = x;
+                break;
+            case Surface.ROTATION_180:
+                screenX = -x;
+                screenY = -y;
+                break;
+            case Surface.ROTATION_270:
+                screenX = y;
+                screenY = -x;
+                break;
+            default:
+                screenX = x;
+                screenY = y;
+        }
+        // The accelerometer reads the reaction to gravity, so the edge tilted down reads negative
+        if (mFilter.onSample(event.timestamp / 1000000, -screenX, -screenY)) {
+            apply(mFilter.getLevel(TiltFilter.AXIS_STEER),
+                    mFilter.getLevel(TiltFilter.AXIS_THROTTLE));
+        }
+    }
+
+    private void apply(int steer, int throttle) {
+        final boolean mixing = mDrive != null && mDrive.isEnabled();
+        if (mDrive != null) {
+            mDrive.set(DriveInput.SOURCE_TILT,
+                    mixing ? throttle * DriveMixer.INPUT_MAX / TiltFilter.STEPS : 0,
+                    mixing ? steer * DriveMixer.INPUT_MAX / TiltFilter.STEPS : 0);
+        }
+        hold(ControllerProfile.TILT_RIGHT, !mixing && steer > 0);
+        hold(ControllerProfile.TILT_LEFT, !mixing && steer < 0);
+        hold(ControllerProfile.TILT_FORWARD, !mixing && throttle > 0);
+        hold(ControllerProfile.TILT_BACK, !mixing && throttle < 0);
+    }
+
+    private void hold(int direction, boolean held) {
+        final int control = mProfile.getTiltControl(direction);
+        if (control >= 0) {
+            mState.set(control, ControllerState.SOURCE_TILT, held);
+        }
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+    }
+}
@@ -0,0 +1,94 @@
+package com.example.andres.battle_bots;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Drives commands through the same pipeline the service uses (codec, scheduler, rate control,
+ * link quality and reliable framing) and checks that once warmed up, a command allocates nothing
+ * and costs exactly one write to the radio.
+ */
+public class CommandPathAllocationTest {
+
+    private static final int WARM_UP = 20000;
+    private static final int MEASURED = 100000;
+
+    private long mNow;
+    private int mWrites;
+    private int mLastSeq;
+
+    private final Clock mClock = new Clock() {
+        @Override
+        public long nowMillis() {
+            return mNow;
+        }
+    };
+
+    private final CommandScheduler.Transport mRadio = new CommandScheduler.Transport() {
+        @Override
+        public boolean write(byte[] frame) {
+            mWrites++;
+            mLastSeq = frame[1] & 0xFF;
+            return true;
+        }
+    };
+
+    private final CommandScheduler.Waker mWaker = new CommandScheduler.Waker() {
+        @Override
+        public void wakeUpIn(long delayMillis) {
+        }
+    };
+
+    @Test
+    public void steadyStateCommandsDoNotAllocate() {
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean allocations =
+                (com.sun.management.ThreadMXBean) threads;
+        assumeTrue(allocations.isThreadAllocatedMemorySupported());
+        allocations.setThreadAllocatedMemoryEnabled(true);
+
+        final ProtocolCodec codec = ProtocolCodecs.forVersion(ProtocolCodecs.VERSION_COMPACT);
+        final ReliableLink link = new ReliableLink(mRadio, mClock);
+        final CommandScheduler scheduler = new CommandScheduler(link, mWaker, mClock);
+        scheduler.setRetransmitter(link);
+        scheduler.setRateController(new SendRateController(SendRateController.DEFAULT_INTERVAL_MS));
+        scheduler.setLinkQuality(new LinkQualityMonitor());
+        final byte[] ack = {(byte) ReliableLink.ACK_MAGIC, 0, 1, 0};
+
+        runCommands(codec, link, scheduler, ack, WARM_UP);
+
+        final long threadId = Thread.currentThread().getId();
+        final int writesBefore = mWrites;
+        final long before = allocations.getThreadAllocatedBytes(threadId);
+        runCommands(codec, link, scheduler, ack, MEASURED);
+        final long allocated = allocations.getThreadAllocatedBytes(threadId) - before;
+
+        // Even the smallest object is 16 bytes, so anything per command would add up to megabytes
+        assertEquals("bytes allocated per command", 0, allocated / MEASURED);
+        assertEquals("writes per command", MEASURED, mWrites - writesBefore);
+    }
+
+    // Alternating presses and releases, each written, completed and acknowledged before the next
+    private void runCommands(ProtocolCodec codec, ReliableLink link, CommandScheduler scheduler,
+                             byte[] ack, int count) {
+        for (int i = 0; i < count; i++) {
+            final int channel = i % 8;
+            final boolean pressed = (i & 8) == 0;
+            mNow += SendRateController.MAX_INTERVAL_MS * 3;
+            scheduler.submit(channel,
+                    pressed ? CommandScheduler.PRIORITY_MOTION : CommandScheduler.PRIORITY_STOP,
+                    codec.encodeButton(channel, pressed));
+            mNow += 5;
+            scheduler.onWriteComplete(true);
+            ack[1] = (byte) mLastSeq;
+            ack[3] = ReliableLink.crc8(ack, 1, 2);
+            link.onReceive(ack);
+        }
+    }
+}
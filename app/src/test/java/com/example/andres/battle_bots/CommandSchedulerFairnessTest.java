@@ -0,0 +1,138 @@
+package com.example.andres.battle_bots;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Two players on one link, as with a driver on d-pad 1 and a weapon operator on d-pad 2: checks
+ * that the {@link CommandScheduler}'s per-group lanes keep either from starving the other, and
+ * that a single group still behaves as before.
+ */
+public class CommandSchedulerFairnessTest {
+
+    private static final int DRIVER = 0;
+    private static final int WEAPON = 1;
+
+    // Driver on channels 0-3, weapon operator on 4-7, as in the default profile
+    private static final int CHANNELS_PER_GROUP = 4;
+
+    private long mNow;
+    private boolean mCompletionDue;
+    private CommandScheduler mScheduler;
+    private final List<Integer> mWritten = new ArrayList<Integer>();
+    private final long[] mSubmittedAt = new long[CommandScheduler.MAX_CHANNELS];
+    private final long[] mMaxLatency = new long[2];
+    private final boolean[] mPressed = new boolean[CommandScheduler.MAX_CHANNELS];
+
+    private final Clock mClock = new Clock() {
+        @Override
+        public long nowMillis() {
+            return mNow;
+        }
+    };
+
+    @Before
+    public void setUp() {
+        mScheduler = new CommandScheduler(new CommandScheduler.Transport() {
+            @Override
+            public boolean write(byte[] frame) {
+                final int channel = frame[0];
+                final int group = channel / CHANNELS_PER_GROUP;
+                mMaxLatency[group] = Math.max(mMaxLatency[group], mNow - mSubmittedAt[channel]);
+                mWritten.add(channel);
+                mCompletionDue = true;
+                return true;
+            }
+        }, new CommandScheduler.Waker() {
+            @Override
+            public void wakeUpIn(long delayMillis) {
+            }
+        }, mClock);
+        for (int channel = 0; channel < 2 * CHANNELS_PER_GROUP; channel++) {
+            mScheduler.setChannelGroup(channel, channel / CHANNELS_PER_GROUP);
+        }
+    }
+
+    @Test
+    public void mashingCannotStarveTheOtherGroup() {
+        final Random random = new Random(1);
+        for (int ms = 0; ms < 60000; ms++) {
+            // The weapon operator hammers their buttons, the driver makes a move every half second
+            if (ms % 10 == 0) toggle(WEAPON, random.nextInt(CHANNELS_PER_GROUP));
+            if (ms % 500 == 0) toggle(DRIVER, random.nextInt(CHANNELS_PER_GROUP));
+            step();
+        }
+        // Never more than one weapon frame plus the driver's own motion pace ahead of a move
+        assertTrue("driver waited " + mMaxLatency[DRIVER] + " ms",
+                mMaxLatency[DRIVER] <= 2 * CommandScheduler.MOTION_INTERVAL_MS);
+        assertTrue(mScheduler.getSentCount(WEAPON) > mScheduler.getSentCount(DRIVER));
+    }
+
+    @Test
+    public void busyGroupsSplitTheLinkByWeight() {
+        assertShare(1, 0.45, 0.55);
+        setUp();
+        mScheduler.setGroupWeight(DRIVER, 2);
+        assertShare(2, 0.62, 0.72);
+    }
+
+    // Both players mashing: the driver's share of everything sent should be in range
+    private void assertShare(int seed, double min, double max) {
+        final Random random = new Random(seed);
+        for (int ms = 0; ms < 60000; ms++) {
+            if (ms % 10 == 0) toggle(WEAPON, random.nextInt(CHANNELS_PER_GROUP));
+            if (ms % 10 == 5) toggle(DRIVER, random.nextInt(CHANNELS_PER_GROUP));
+            step();
+        }
+        final double driver = mScheduler.getSentCount(DRIVER);
+        final double share = driver / (driver + mScheduler.getSentCount(WEAPON));
+        assertTrue("driver share " + share, share >= min && share <= max);
+    }
+
+    @Test
+    public void singleGroupStopStillOvertakesMotion() {
+        submit(0, true);
+        step();
+        submit(1, true);
+        submit(2, true);
+        submit(3, false);
+        for (int ms = 0; ms < 1000; ms++) step();
+        assertEquals(4, mWritten.size());
+        assertEquals(0, (int) mWritten.get(0));
+        assertEquals(3, (int) mWritten.get(1));
+        assertEquals(1, (int) mWritten.get(2));
+        assertEquals(2, (int) mWritten.get(3));
+    }
+
+    private void toggle(int group, int button) {
+        final int channel = group * CHANNELS_PER_GROUP + button;
+        mPressed[channel] = !mPressed[channel];
+        submit(channel, mPressed[channel]);
+    }
+
+    private void submit(int channel, boolean pressed) {
+        if (!mScheduler.isPending(channel)) {
+            mSubmittedAt[channel] = mNow;
+        }
+        mScheduler.submit(channel, pressed
+                        ? CommandScheduler.PRIORITY_MOTION : CommandScheduler.PRIORITY_STOP,
+                new byte[] {(byte) channel});
+    }
+
+    // One millisecond: the radio finishes whatever it was given last, then the scheduler runs
+    private void step() {
+        if (mCompletionDue) {
+            mCompletionDue = false;
+            mScheduler.onWriteComplete(true);
+        }
+        mScheduler.pump();
+        mNow++;
+    }
+}
@@ -0,0 +1,302 @@
+package com.example.andres.battle_bots;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Long randomized driving sessions through the whole control path without hardware: input
+ * sources holding controls in a {@link ControllerState}, the protocol codec, the
+ * {@link CommandScheduler} with its rate controller and link monitor, a radio that is sometimes
+ * busy or never reports a completion, and a {@link RobotSimulator} applying what arrives.
+ *
+ * Checks after every session that nothing is left on at the robot, that the queue stays bounded
+ * throughout, that releases reach the radio promptly and that the heap does not grow with the
+ * length of the run, and reports the input-to-radio latency percentiles for presses and releases.
+ * The input is several times what the robot can parse, so presses wait their turn at the robot's
+ * pace: their p99 is only held to one frame of every control at the slowest pace, which still
+ * catches motion pacing that falls behind for good.
+ *
+ * Each codec is run against a robot with fast firmware, so anything lost or left on is the app's
+ * doing, and against the stock sketch's defaults, so the pace the app settles on is one the robot
+ * really keeps up with. Runs {@link #DEFAULT_MINUTES} simulated minutes per codec;
+ * pass -Dsoak.minutes=600 for an overnight-length run.
+ */
+public class ControlPipelineSoakTest {
+
+    private static final long DEFAULT_MINUTES = 10;
+    private static final long MINUTES = Long.getLong("soak.minutes", DEFAULT_MINUTES);
+
+    // Mirrors the default profile: eight controls on channels 0-7
+    private static final int CONTROLS = 8;
+    // Touch, gamepad keys and two axes can hold the same control at once
+    private static final int SOURCES = 4;
+
+    // Mean gap between input events, about 3000 a minute
+    private static final int MEAN_EVENT_GAP_MS = 20;
+    private static final int MIN_SESSION_MS = 5000;
+    private static final int MAX_SESSION_MS = 60000;
+    private static final long DRAIN_LIMIT_MS = 5000;
+
+    private static final double BUSY_CHANCE = 0.02;
+    private static final double LOST_COMPLETION_CHANCE = 0.002;
+
+    // Latencies are counted per millisecond below this, anything longer in an overflow slot
+    private static final int LATENCY_SLOTS = 5000;
+    private static final long MAX_P999_RELEASE_LATENCY_MS = 1000;
+    // A press waits for at most one frame of every other control, even at the slowest pace
+    private static final long MAX_P99_PRESS_LATENCY_MS =
+            CONTROLS * SendRateController.MAX_INTERVAL_MS;
+    private static final long MAX_HEAP_GROWTH_BYTES = 4 * 1024 * 1024;
+
+    private long mNow;
+    private long mWakeAt;
+    private Random mRandom;
+    private ProtocolCodec mCodec;
+    private CommandScheduler mScheduler;
+    private ControllerState mState;
+    private RobotSimulator mRobot;
+    private final ArrayDeque<Boolean> mCompletions = new ArrayDeque<Boolean>();
+
+    private final long[] mInputAt = new long[CommandScheduler.MAX_CHANNELS];
+    private final boolean[] mInputPressed = new boolean[CommandScheduler.MAX_CHANNELS];
+    private final Latencies mPressLatencies = new Latencies();
+    private final Latencies mReleaseLatencies = new Latencies();
+    private long mEvents;
+    private long mWrites;
+    private int mMaxQueueDepth;
+
+    private final Clock mClock = new Clock() {
+        @Override
+        public long nowMillis() {
+            return mNow;
+        }
+    };
+
+    @Test
+    public void compactCodecSoak() {
+        soak(ProtocolCodecs.forVersion(ProtocolCodecs.VERSION_COMPACT), "fast robot",
+                fastRobot(true), 1);
+    }
+
+    @Test
+    public void asciiCodecSoak() {
+        soak(ProtocolCodecs.ascii(), "fast robot", fastRobot(false), 2);
+    }
+
+    @Test
+    public void compactCodecSoakOnStockRobot() {
+        soak(ProtocolCodecs.forVersion(ProtocolCodecs.VERSION_COMPACT), "stock robot",
+                stockRobot(true), 3);
+    }
+
+    @Test
+    public void asciiCodecSoakOnStockRobot() {
+        soak(ProtocolCodecs.ascii(), "stock robot", stockRobot(false), 4);
+    }
+
+    private static RobotSimulator.Config fastRobot(boolean compact) {
+        final RobotSimulator.Config config = stockRobot(compact);
+        config.baudRate = 115200;
+        config.loopPeriodMicros = 2000;
+        config.commandsPerLoop = 8;
+        return config;
+    }
+
+    private static RobotSimulator.Config stockRobot(boolean compact) {
+        final RobotSimulator.Config config = new RobotSimulator.Config();
+        config.compact = compact;
+        return config;
+    }
+
+    private void soak(ProtocolCodec codec, String robotName, RobotSimulator.Config robotConfig,
+                      long seed) {
+        setUp(codec, robotConfig, seed);
+        final String name = codec.getName() + " on " + robotName;
+        final long end = MINUTES * 60000;
+        final long warmUpEnd = end / 10;
+        long heapAfterWarmUp = -1;
+        int sessions = 0;
+        while (mNow < end) {
+            runSession(MIN_SESSION_MS + mRandom.nextInt(MAX_SESSION_MS - MIN_SESSION_MS));
+            sessions++;
+            drain();
+            assertEquals("robot left driving after session " + sessions, 0, mRobot.getMotorMask());
+            for (int control = 0; control < CONTROLS; control++) {
+                assertTrue(!mState.isPressed(control));
+            }
+            if (heapAfterWarmUp < 0 && mNow >= warmUpEnd) {
+                heapAfterWarmUp = usedHeap();
+            }
+        }
+        final long heapGrowth = usedHeap() - heapAfterWarmUp;
+
+        final RobotSimulator.Report robot = mRobot.report();
+        System.out.println(String.format("%s soak: %d min, %d sessions, %d events (%d/min), "
+                        + "%d writes, %d superseded, max queue %d, heap growth %d KB",
+                name, MINUTES, sessions, mEvents, mEvents / MINUTES, mWrites,
+                mScheduler.getSupersededCount(), mMaxQueueDepth, heapGrowth / 1024));
+        System.out.println(name + " press latency: " + mPressLatencies);
+        System.out.println(name + " release latency: " + mReleaseLatencies);
+        System.out.println(name + ", at the robot: " + robot);
+
+        assertEquals(0, robot.commandsDropped);
+        assertEquals(0, robot.bytesOverflowed);
+        final long releaseP999 = mReleaseLatencies.percentile(0.999);
+        assertTrue("p999 release latency " + releaseP999 + " ms",
+                releaseP999 <= MAX_P999_RELEASE_LATENCY_MS);
+        final long pressP99 = mPressLatencies.percentile(0.99);
+        assertTrue("p99 press latency " + pressP99 + " ms", pressP99 <= MAX_P99_PRESS_LATENCY_MS);
+        assertTrue("heap grew by " + heapGrowth + " bytes", heapGrowth < MAX_HEAP_GROWTH_BYTES);
+    }
+
+    private void setUp(final ProtocolCodec codec, RobotSimulator.Config robotConfig, long seed) {
+        mRandom = new Random(seed);
+        mCodec = codec;
+        mWakeAt = Long.MAX_VALUE;
+        mRobot = new RobotSimulator(robotConfig);
+
+        final CommandScheduler.Transport radio = new CommandScheduler.Transport() {
+            @Override
+            public boolean write(byte[] frame) {
+                if (mRandom.nextDouble() < BUSY_CHANCE) {
+                    return false;
+                }
+                final int channel = channelOf(frame);
+                (mInputPressed[channel] ? mPressLatencies : mReleaseLatencies)
+                        .record(mNow - mInputAt[channel]);
+                mWrites++;
+                mCompletions.add(mRandom.nextDouble() >= LOST_COMPLETION_CHANCE);
+                return mRobot.write(frame);
+            }
+        };
+        mScheduler = new CommandScheduler(radio, new CommandScheduler.Waker() {
+            @Override
+            public void wakeUpIn(long delayMillis) {
+                mWakeAt = Math.min(mWakeAt, mNow + delayMillis);
+            }
+        }, mClock);
+        mScheduler.setRateController(new SendRateController(SendRateController.DEFAULT_INTERVAL_MS));
+        mScheduler.setLinkQuality(new LinkQualityMonitor());
+        mRobot.setWriteListener(new RobotSimulator.WriteListener() {
+            @Override
+            public void onWriteComplete() {
+                // A lost completion leaves the scheduler to time the write out
+                if (mCompletions.poll()) {
+                    mScheduler.onWriteComplete(true);
+                }
+            }
+        });
+
+        // Same mapping and lanes as the control screen: presses paced, releases first
+        mState = new ControllerState(CONTROLS, new ControllerState.Listener() {
+            @Override
+            public void onControlChanged(int control, boolean pressed) {
+                mInputAt[control] = mNow;
+                mInputPressed[control] = pressed;
+                mScheduler.submit(control, pressed
+                                ? CommandScheduler.PRIORITY_MOTION : CommandScheduler.PRIORITY_STOP,
+                        mCodec.encodeButton(control, pressed));
+            }
+        });
+    }
+
+    // Random presses and releases from every source, then everything let go as onPause() does
+    private void runSession(long length) {
+        final long end = mNow + length;
+        while (mNow < end) {
+            if (mRandom.nextInt(MEAN_EVENT_GAP_MS) == 0) {
+                final int control = mRandom.nextInt(CONTROLS);
+                final int source = mRandom.nextInt(SOURCES);
+                mState.set(control, source, !mState.isHeldBy(control, source));
+                mEvents++;
+            }
+            step();
+        }
+        mState.releaseAll();
+    }
+
+    private void drain() {
+        final long limit = mNow + DRAIN_LIMIT_MS;
+        while ((mScheduler.getQueueDepth() > 0 || mWakeAt != Long.MAX_VALUE || !mRobot.isIdle())
+                && mNow < limit) {
+            step();
+        }
+    }
+
+    private void step() {
+        mRobot.advanceTo(mNow * 1000);
+        if (mWakeAt <= mNow) {
+            mWakeAt = Long.MAX_VALUE;
+            mScheduler.pump();
+        }
+        final int depth = mScheduler.getQueueDepth();
+        if (depth > mMaxQueueDepth) {
+            mMaxQueueDepth = depth;
+            // One pending frame per channel at most, however fast the input comes
+            assertTrue("queue depth " + depth, depth <= CONTROLS);
+        }
+        mNow++;
+    }
+
+    private int channelOf(byte[] frame) {
+        if (mCodec == ProtocolCodecs.ascii()) {
+            return "urdl".indexOf(frame[0]) + 4 * (frame[1] - '1');
+        }
+        return frame[0] & 0x0F;
+    }
+
+    /**
+     * Input-to-radio latencies, counted per millisecond below {@link #LATENCY_SLOTS} and in an
+     * overflow slot above, with the true maximum kept on the side.
+     */
+    private static class Latencies {
+        private final long[] mCounts = new long[LATENCY_SLOTS + 1];
+        private long mTotal;
+        private long mMax;
+
+        void record(long millis) {
+            mCounts[(int) Math.min(millis, LATENCY_SLOTS)]++;
+            mTotal++;
+            mMax = Math.max(mMax, millis);
+        }
+
+        long getMax() {
+            return mMax;
+        }
+
+        // LATENCY_SLOTS when it falls in the overflow slot
+        long percentile(double fraction) {
+            final long rank = Math.max(1, (long) Math.ceil(fraction * mTotal));
+            long seen = 0;
+            for (int millis = 0; millis < LATENCY_SLOTS; millis++) {
+                seen += mCounts[millis];
+                if (seen >= rank) return millis;
+            }
+            return LATENCY_SLOTS;
+        }
+
+        @Override
+        public String toString() {
+            return "p50=" + describe(0.5) + " p99=" + describe(0.99) + " p999="
+                    + describe(0.999) + " max=" + mMax + " ms";
+        }
+
+        private String describe(double fraction) {
+            final long millis = percentile(fraction);
+            return millis < LATENCY_SLOTS ? Long.toString(millis) : ">=" + LATENCY_SLOTS;
+        }
+    }
+
+    private static long usedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,128 @@
+package com.example.andres.battle_bots;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks the shape of {@link DriveMixer}'s curves and mix, and that mixing allocates nothing.
+ */
+public class DriveMixerTest {
+
+    private static final int MAX = DriveMixer.INPUT_MAX;
+    private static final int STEPS = ProtocolCodec.MOTOR_STEPS;
+
+    @Test
+    public void centerAndDeadbandStopBothMotors() {
+        final DriveMixer mixer = new DriveMixer(new DriveMixer.Tuning());
+        assertTrue(mixer.mix(MAX, 0));
+        assertTrue(mixer.mix(3, -3));
+        assertEquals(0, mixer.getLeft());
+        assertEquals(0, mixer.getRight());
+        assertFalse(mixer.mix(0, 0));
+    }
+
+    @Test
+    public void fullThrottleDrivesBothMotorsFullyAndSteeringSpins() {
+        final DriveMixer mixer = new DriveMixer(new DriveMixer.Tuning());
+        mixer.mix(MAX, 0);
+        assertEquals(STEPS, mixer.getLeft());
+        assertEquals(STEPS, mixer.getRight());
+        mixer.mix(-MAX, 0);
+        assertEquals(-STEPS, mixer.getLeft());
+        assertEquals(-STEPS, mixer.getRight());
+
+        // Turning in place is limited by the steering rate
+        mixer.mix(0, MAX);
+        assertEquals(-mixer.getLeft(), mixer.getRight());
+        assertTrue(mixer.getLeft() > 0 && mixer.getLeft() < STEPS);
+
+        // Full throttle into a turn clips the outer motor and slows the inner one
+        mixer.mix(MAX, MAX);
+        assertEquals(STEPS, mixer.getLeft());
+        assertTrue(mixer.getRight() < STEPS);
+    }
+
+    @Test
+    public void expoSoftensTheMiddleAndMaxOutputCapsIt() {
+        final DriveMixer.Tuning tuning = new DriveMixer.Tuning();
+        tuning.throttleExpo = 0f;
+        final DriveMixer linear = new DriveMixer(tuning);
+        tuning.throttleExpo = 1f;
+        tuning.maxOutput = 0.6f;
+        final DriveMixer shaped = new DriveMixer(tuning);
+
+        int previous = 0;
+        for (int input = 0; input <= MAX; input++) {
+            linear.mix(input, 0);
+            shaped.mix(input, 0);
+            assertTrue(shaped.getLeft() <= linear.getLeft());
+            assertTrue("monotonic at " + input, linear.getLeft() >= previous);
+            previous = linear.getLeft();
+        }
+        linear.mix(MAX / 2, 0);
+        shaped.mix(MAX / 2, 0);
+        assertTrue(shaped.getLeft() < linear.getLeft() / 2);
+        shaped.mix(MAX, 0);
+        assertEquals(Math.round(0.6f * STEPS), shaped.getLeft());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTuningOutOfRange() {
+        final DriveMixer.Tuning tuning = new DriveMixer.Tuning();
+        tuning.deadband = 1f;
+        new DriveMixer(tuning);
+    }
+
+    @Test
+    public void compactCodecFramesAreSharedAndFullScale() {
+        final ProtocolCodec codec = ProtocolCodecs.forVersion(ProtocolCodecs.VERSION_COMPACT);
+        assertArrayEquals(new byte[] {(byte) 0xD0, 127, -127}, codec.encodeMotors(STEPS, -STEPS));
+        assertArrayEquals(new byte[] {(byte) 0xD0, 0, 0}, codec.encodeMotors(0, 0));
+        assertSame(codec.encodeMotors(3, 4), codec.encodeMotors(3, 4));
+        assertEquals(null, ProtocolCodecs.ascii().encodeMotors(0, 0));
+    }
+
+    @Test
+    public void mixingDoesNotAllocate() {
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean allocations =
+                (com.sun.management.ThreadMXBean) threads;
+        assumeTrue(allocations.isThreadAllocatedMemorySupported());
+        allocations.setThreadAllocatedMemoryEnabled(true);
+
+        final DriveMixer mixer = new DriveMixer(new DriveMixer.Tuning());
+        final ProtocolCodec codec = ProtocolCodecs.forVersion(ProtocolCodecs.VERSION_COMPACT);
+        sweep(mixer, codec);
+
+        final long threadId = Thread.currentThread().getId();
+        final long before = allocations.getThreadAllocatedBytes(threadId);
+        final int frames = sweep(mixer, codec);
+        final long allocated = allocations.getThreadAllocatedBytes(threadId) - before;
+        assertTrue(frames > 0);
+        assertEquals("bytes allocated per mix", 0, allocated / (255 * 255));
+    }
+
+    // Every pair of inputs, encoding a frame whenever the levels change
+    private static int sweep(DriveMixer mixer, ProtocolCodec codec) {
+        int frames = 0;
+        for (int throttle = -MAX; throttle <= MAX; throttle++) {
+            for (int steer = -MAX; steer <= MAX; steer++) {
+                if (mixer.mix(throttle, steer)
+                        && codec.encodeMotors(mixer.getLeft(), mixer.getRight()) != null) {
+                    frames++;
+                }
+            }
+        }
+        return frames;
+    }
+}
@@ -0,0 +1,176 @@
+package com.example.andres.battle_bots;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link L2capLink} over a loopback TCP socket pair standing in for the L2CAP channel, with
+ * the test playing the robot on the far end.
+ */
+public class L2capLinkTest {
+
+    private static final long TIMEOUT_S = 5;
+
+    private Socket mPhone;
+    private Socket mRobot;
+    private L2capLink mLink;
+
+    private final BlockingQueue<Boolean> mCompletions = new LinkedBlockingQueue<Boolean>();
+    private final BlockingQueue<byte[]> mPackets = new LinkedBlockingQueue<byte[]>();
+    private final CountDownLatch mClosed = new CountDownLatch(1);
+    private volatile CommandScheduler mScheduler;
+
+    @Before
+    public void setUp() throws IOException {
+        final ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        mPhone = new Socket(server.getInetAddress(), server.getLocalPort());
+        mRobot = server.accept();
+        server.close();
+        mPhone.setTcpNoDelay(true);
+        mRobot.setTcpNoDelay(true);
+        mLink = new L2capLink(mPhone.getInputStream(), mPhone.getOutputStream(), mPhone,
+                new L2capLink.Listener() {
+                    @Override
+                    public void onWriteComplete(boolean success) {
+                        mCompletions.add(success);
+                        final CommandScheduler scheduler = mScheduler;
+                        if (scheduler != null) {
+                            scheduler.onWriteComplete(success);
+                        }
+                    }
+
+                    @Override
+                    public void onPacket(byte[] packet) {
+                        mPackets.add(packet);
+                    }
+
+                    @Override
+                    public void onClosed(IOException cause) {
+                        mClosed.countDown();
+                    }
+                });
+        mLink.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mLink.close();
+        mRobot.close();
+    }
+
+    @Test
+    public void writesArriveLengthPrefixedOnePerCompletion() throws Exception {
+        final DataInputStream robot = new DataInputStream(mRobot.getInputStream());
+        final byte[] frame = {(byte) 0xA1, 0x02, 0x03};
+        assertTrue(mLink.write(frame));
+        // The frame is copied, so the caller may reuse its buffer straight away
+        frame[0] = 0;
+        assertTrue(mCompletions.poll(TIMEOUT_S, TimeUnit.SECONDS));
+        assertArrayEquals(new byte[]{(byte) 0xA1, 0x02, 0x03}, readPacket(robot));
+
+        final byte[] large = new byte[L2capLink.MAX_PACKET];
+        Arrays.fill(large, (byte) 0x55);
+        assertTrue(mLink.write(large));
+        assertTrue(mCompletions.poll(TIMEOUT_S, TimeUnit.SECONDS));
+        assertArrayEquals(large, readPacket(robot));
+
+        assertFalse(mLink.write(new byte[L2capLink.MAX_PACKET + 1]));
+    }
+
+    @Test
+    public void secondWriteIsRefusedUntilTheFirstCompletes() throws Exception {
+        // Nothing reads on the robot's side, so enough data eventually blocks the writer
+        final byte[] frame = new byte[L2capLink.MAX_PACKET];
+        boolean refused = false;
+        for (int i = 0; i < 100000 && !refused; i++) {
+            if (mLink.write(frame)) {
+                mCompletions.poll(100, TimeUnit.MILLISECONDS);
+            } else {
+                refused = true;
+            }
+        }
+        assertTrue(refused);
+        assertNull(mCompletions.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void fragmentedPacketsAreDeliveredWhole() throws Exception {
+        final OutputStream robot = mRobot.getOutputStream();
+        final byte[] telemetry = {2, 'o', 'k', 3, 0x10, 0x20, 0x30};
+        // One byte at a time, as a stream may hand them over
+        for (byte b : telemetry) {
+            robot.write(b);
+            robot.flush();
+            Thread.sleep(2);
+        }
+        assertArrayEquals(new byte[]{'o', 'k'}, mPackets.poll(TIMEOUT_S, TimeUnit.SECONDS));
+        assertArrayEquals(new byte[]{0x10, 0x20, 0x30}, mPackets.poll(TIMEOUT_S, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void robotClosingEndsTheLink() throws Exception {
+        mRobot.close();
+        assertTrue(mClosed.await(TIMEOUT_S, TimeUnit.SECONDS));
+        assertTrue(mLink.isClosed());
+        assertFalse(mLink.write(new byte[]{1}));
+    }
+
+    @Test
+    public void schedulerDeliversEveryCommandInOrder() throws Exception {
+        final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+        mScheduler = new CommandScheduler(mLink, new CommandScheduler.Waker() {
+            @Override
+            public void wakeUpIn(long delayMillis) {
+                timer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        mScheduler.pump();
+                    }
+                }, delayMillis, TimeUnit.MILLISECONDS);
+            }
+        }, Clock.SYSTEM);
+        final ProtocolCodec codec = ProtocolCodecs.forVersion(ProtocolCodecs.VERSION_COMPACT);
+        final DataInputStream robot = new DataInputStream(mRobot.getInputStream());
+        try {
+            // Presses go out paced, releases in the stop lane, as from the control screen
+            for (int i = 0; i < 8; i++) {
+                final int channel = i % 4;
+                final boolean pressed = i % 2 == 0;
+                final byte[] frame = codec.encodeButton(channel, pressed);
+                mScheduler.submit(channel, pressed
+                        ? CommandScheduler.PRIORITY_MOTION : CommandScheduler.PRIORITY_STOP, frame);
+                assertArrayEquals("command " + i, frame, readPacket(robot));
+            }
+            assertEquals(0, mScheduler.getQueueDepth());
+        } finally {
+            timer.shutdownNow();
+        }
+    }
+
+    private static byte[] readPacket(DataInputStream in) throws IOException {
+        final byte[] packet = new byte[in.readUnsignedByte()];
+        in.readFully(packet);
+        return packet;
+    }
+}
@@ -0,0 +1,28 @@
+package com.example.andres.battle_bots;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that {@link MetricsRegistry.Histogram}'s bucketed percentiles stay within what was
+ * actually recorded.
+ */
+public class MetricsRegistryTest {
+
+    @Test
+    public void percentileNeverExceedsTheMaximum() {
+        final MetricsRegistry.Histogram histogram =
+                new MetricsRegistry(Clock.SYSTEM).histogram("latency", 50, 150, 500);
+        histogram.record(90);
+        histogram.record(110);
+        assertEquals(110, histogram.getMax());
+        assertEquals(110, histogram.getPercentile(0.99));
+        assertEquals(110, histogram.getPercentile(0.5));
+
+        // Past the last bound, the maximum is all there is to report
+        histogram.record(700);
+        assertEquals(700, histogram.getPercentile(1.0));
+        assertEquals(150, histogram.getPercentile(0.5));
+    }
+}
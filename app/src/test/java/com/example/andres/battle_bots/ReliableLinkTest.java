@@ -0,0 +1,194 @@
+package com.example.andres.battle_bots;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link ReliableLink}'s acknowledgements, resends and expiry against a radio that records
+ * what it was given, with the test playing the robot's acknowledgements.
+ */
+public class ReliableLinkTest {
+
+    private static final int STOP = CommandScheduler.PRIORITY_STOP;
+    private static final int MOTION = CommandScheduler.PRIORITY_MOTION;
+
+    private long mNow;
+    private boolean mBusy;
+    private ReliableLink mLink;
+    private final List<byte[]> mWritten = new ArrayList<byte[]>();
+
+    @Before
+    public void setUp() {
+        mLink = new ReliableLink(new CommandScheduler.Transport() {
+            @Override
+            public boolean write(byte[] frame) {
+                if (mBusy) return false;
+                mWritten.add(frame.clone());
+                return true;
+            }
+        }, new Clock() {
+            @Override
+            public long nowMillis() {
+                return mNow;
+            }
+        });
+    }
+
+    @Test
+    public void nackResendsOnlyTheMissingFrame() {
+        assertTrue(send(0, MOTION, 1));
+        assertTrue(send(1, MOTION, 1));
+        assertTrue(send(2, MOTION, 1));
+        mNow += 10;
+        // Frames 0 and 2 arrived, so 1 was lost
+        assertTrue(mLink.onReceive(ack(0, 0x05)));
+        assertEquals(mNow, mLink.nextRetransmitAt(mNow));
+        assertTrue(mLink.retransmit(mNow));
+        assertEquals(1, seqOf(last()));
+        assertEquals(1, channelOf(last()));
+
+        // Nothing else is due until the resend's own timeout
+        assertFalse(mLink.retransmit(mNow));
+        assertEquals(mNow + ReliableLink.ACK_TIMEOUT_MS, mLink.nextRetransmitAt(mNow));
+        assertTrue(mLink.onReceive(ack(1, 0x01)));
+        assertEquals(Long.MAX_VALUE, mLink.nextRetransmitAt(mNow));
+        assertEquals(1, mLink.getRetransmitCount());
+    }
+
+    @Test
+    public void lostFrameIsNotResentAfterANewerOneForItsChannel() {
+        // "On" is lost, "off" for the same button gets through
+        assertTrue(send(0, MOTION, 1));
+        assertTrue(send(0, STOP, 0));
+        assertTrue(mLink.onReceive(ack(0, 0x02)));
+        assertFalse(mLink.retransmit(mNow));
+        mNow += ReliableLink.ACK_TIMEOUT_MS;
+        assertFalse(mLink.retransmit(mNow));
+        assertEquals(2, mWritten.size());
+        assertEquals(1, mLink.getReplacedCount());
+
+        // A full state replaces every per-control frame, but not motor levels
+        assertTrue(send(3, STOP, 0));
+        assertTrue(send(CommandScheduler.DRIVE_CHANNEL, MOTION, 5));
+        assertTrue(send(CommandScheduler.STATE_CHANNEL, STOP, 0));
+        assertFalse(mLink.isOutstanding(3));
+        assertTrue(mLink.isOutstanding(CommandScheduler.DRIVE_CHANNEL));
+        assertTrue(mLink.isOutstanding(CommandScheduler.STATE_CHANNEL));
+    }
+
+    @Test
+    public void motionFramesExpireButStopFramesAreResentUntilAcknowledged() {
+        assertTrue(send(0, MOTION, 1));
+        assertTrue(send(1, STOP, 0));
+        int resends = 0;
+        for (int ms = 0; ms < 10 * ReliableLink.STALE_AFTER_MS; ms++) {
+            mNow++;
+            if (mLink.retransmit(mNow)) {
+                resends++;
+                if (mNow > ReliableLink.STALE_AFTER_MS) {
+                    assertEquals("only the stop frame is resent late", 1, channelOf(last()));
+                }
+            }
+        }
+        assertFalse(mLink.isOutstanding(0));
+        assertEquals(1, mLink.getStaleCount());
+        assertTrue(mLink.isOutstanding(1));
+        assertTrue(resends >= 10 * ReliableLink.STALE_AFTER_MS / ReliableLink.ACK_TIMEOUT_MS - 1);
+
+        assertTrue(mLink.onReceive(ack(seqOf(last()), 0x01)));
+        assertFalse(mLink.isOutstanding(1));
+        assertEquals(Long.MAX_VALUE, mLink.nextRetransmitAt(mNow));
+    }
+
+    @Test
+    public void unacknowledgedStopFrameHoldsItsWindowSlot() {
+        assertTrue(send(0, STOP, 0));
+        for (int channel = 1; channel < ReliableLink.WINDOW; channel++) {
+            assertTrue(send(channel, MOTION, 1));
+        }
+        // The next sequence number needs the stop frame's slot
+        assertFalse(send(ReliableLink.WINDOW, MOTION, 1));
+        assertEquals(ReliableLink.WINDOW, mWritten.size());
+        assertTrue(mLink.isOutstanding(0));
+
+        // A newer frame for the same button may take it over
+        assertTrue(send(0, MOTION, 1));
+        assertEquals(ReliableLink.WINDOW, seqOf(last()));
+        assertEquals(0, mLink.getStaleCount());
+    }
+
+    @Test
+    public void busyRadioKeepsTheFrameInTheSlot() {
+        for (int channel = 0; channel < ReliableLink.WINDOW; channel++) {
+            assertTrue(send(channel, MOTION, 1));
+        }
+        mBusy = true;
+        assertFalse(send(ReliableLink.WINDOW, MOTION, 1));
+        mBusy = false;
+
+        // The oldest frame was not evicted, so it is still resent intact
+        mNow += ReliableLink.ACK_TIMEOUT_MS;
+        assertTrue(mLink.retransmit(mNow));
+        assertArrayEquals(mWritten.get(0), last());
+        assertEquals(0, mLink.getStaleCount());
+
+        // Once the radio takes a new frame, the slot is reused
+        assertTrue(send(ReliableLink.WINDOW, MOTION, 1));
+        assertEquals(1, mLink.getStaleCount());
+        assertFalse(mLink.isOutstanding(0));
+    }
+
+    @Test
+    public void telemetryIsNeverTakenForAnAcknowledgement() {
+        assertTrue(send(0, STOP, 0));
+        assertFalse(mLink.onReceive("Zap".getBytes()));
+        assertFalse(mLink.onReceive(new byte[] {'Z', 0, 1}));
+        final byte[] corrupted = ack(0, 0x01);
+        corrupted[2] ^= 0x02;
+        assertFalse(mLink.onReceive(corrupted));
+        assertTrue(mLink.isOutstanding(0));
+        assertTrue(mLink.onReceive(ack(0, 0x01)));
+        assertFalse(mLink.isOutstanding(0));
+    }
+
+    @Test
+    public void framesCarryTheirSequenceAndChecksum() {
+        assertTrue(send(2, MOTION, 1));
+        final byte[] frame = last();
+        assertEquals(ReliableLink.FRAME_MAGIC, frame[0] & 0xFF);
+        assertEquals(2, frame[2]);
+        assertEquals(ReliableLink.crc8(frame, 1, frame.length - 2), frame[frame.length - 1]);
+    }
+
+    // Writes a two-byte payload of channel and state, as the scheduler would
+    private boolean send(int channel, int priority, int state) {
+        mLink.onWriting(channel, priority);
+        return mLink.write(new byte[] {(byte) channel, (byte) state});
+    }
+
+    private static byte[] ack(int base, int bitmap) {
+        final byte[] ack = {(byte) ReliableLink.ACK_MAGIC, (byte) base, (byte) bitmap, 0};
+        ack[3] = ReliableLink.crc8(ack, 1, 2);
+        return ack;
+    }
+
+    private byte[] last() {
+        return mWritten.get(mWritten.size() - 1);
+    }
+
+    private static int seqOf(byte[] frame) {
+        return frame[1] & 0xFF;
+    }
+
+    private static int channelOf(byte[] frame) {
+        return frame[3];
+    }
+}
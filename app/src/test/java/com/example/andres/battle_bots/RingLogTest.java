@@ -0,0 +1,78 @@
+package com.example.andres.battle_bots;
+
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link RingLog}'s per-tag level and sampling against what ends up in the dump.
+ */
+public class RingLogTest {
+
+    private static final RingLog.Tag SAMPLED = RingLog.tag("sampled");
+    private static final RingLog.Event SAMPLED_EVENT =
+            RingLog.event(SAMPLED, RingLog.DEBUG, "sampled n=%d");
+    private static final RingLog.Tag GATED = RingLog.tag("gated");
+    private static final RingLog.Event GATED_DEBUG =
+            RingLog.event(GATED, RingLog.DEBUG, "gated debug n=%d");
+    private static final RingLog.Event GATED_WARN =
+            RingLog.event(GATED, RingLog.WARN, "gated warn n=%d");
+
+    @Test
+    public void everyNthEventReachesTheRing() {
+        assertTrue(RingLog.setSampleEvery("sampled", 3));
+        final long before = RingLog.getRecordCount();
+        for (int n = 1; n <= 10; n++) {
+            RingLog.log(SAMPLED_EVENT, n);
+        }
+        assertEquals(3, RingLog.getRecordCount() - before);
+        assertEquals(Arrays.asList("sampled n=3", "sampled n=6", "sampled n=9"), dumped("sampled"));
+
+        // Asking first counts towards the sample the same way
+        int kept = 0;
+        for (int n = 11; n <= 19; n++) {
+            if (RingLog.isLoggable(SAMPLED_EVENT)) {
+                RingLog.record(SAMPLED_EVENT, n, 0);
+                kept++;
+            }
+        }
+        assertEquals(3, kept);
+        RingLog.setSampleEvery("sampled", 1);
+    }
+
+    @Test
+    public void levelGatesBeforeSampling() {
+        assertFalse(RingLog.setLevel("no such tag", RingLog.OFF));
+        assertTrue(RingLog.setLevel("gated", RingLog.INFO));
+        assertTrue(RingLog.setSampleEvery("gated", 2));
+        for (int n = 1; n <= 4; n++) {
+            assertFalse(RingLog.isLoggable(GATED_DEBUG));
+            RingLog.log(GATED_WARN, n);
+        }
+        // Dropped debug events did not count towards the sample
+        assertEquals(Arrays.asList("gated warn n=2", "gated warn n=4"), dumped("gated"));
+        RingLog.setLevel("gated", RingLog.DEBUG);
+        RingLog.setSampleEvery("gated", 1);
+    }
+
+    // The messages of one tag's records still in the ring, oldest first
+    private static List<String> dumped(String tag) {
+        final StringWriter out = new StringWriter();
+        RingLog.dump(new PrintWriter(out));
+        final List<String> messages = new ArrayList<String>();
+        final String prefix = " " + tag + ": ";
+        for (String line : out.toString().split("\n")) {
+            final int at = line.indexOf(prefix);
+            if (at >= 0) messages.add(line.substring(at + prefix.length()));
+        }
+        return messages;
+    }
+}
@@ -0,0 +1,171 @@
+package com.example.andres.battle_bots;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link RobotRequests}' matching of responses to requests, its timeouts and requests
+ * that end while the scheduler is sending them, with the test playing both the scheduler and
+ * the robot.
+ */
+public class RobotRequestsTest {
+
+    private long mNow;
+    private RobotRequests mRequests;
+    private final List<String> mResults = new ArrayList<String>();
+
+    private final RobotRequests.Callback mCallback = new RobotRequests.Callback() {
+        @Override
+        public void onResponse(RobotRequests.Request request, byte[] payload) {
+            mResults.add("type " + request.getType() + " answered " + payload[0]);
+        }
+
+        @Override
+        public void onFailure(RobotRequests.Request request, int reason) {
+            mResults.add("type " + request.getType() + " failed " + reason);
+        }
+    };
+
+    @Before
+    public void setUp() {
+        mRequests = new RobotRequests(new Clock() {
+            @Override
+            public long nowMillis() {
+                return mNow;
+            }
+        }, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+    }
+
+    @Test
+    public void responsesAreMatchedByIdInAnyOrder() throws Exception {
+        final RobotRequests.Request battery = request(RobotRequests.TYPE_BATTERY, 500);
+        final RobotRequests.Request config = request(RobotRequests.TYPE_FIRMWARE_CONFIG, 500);
+        final int batteryId = send()[1];
+        final int configId = send()[1];
+        assertTrue(batteryId != configId);
+        assertNull(mRequests.peekBackground());
+        assertEquals(2, mRequests.getInFlightCount());
+
+        mNow += 40;
+        assertTrue(mRequests.onReceive(response(configId, 0, 7)));
+        mNow += 10;
+        assertTrue(mRequests.onReceive(response(batteryId, 0, 3)));
+        assertArrayEquals(new byte[] {3}, battery.get());
+        assertArrayEquals(new byte[] {7}, config.get());
+        assertEquals(50, battery.getLatencyMillis());
+        assertEquals(40, config.getLatencyMillis());
+        assertEquals(0, mRequests.getInFlightCount());
+
+        // Telemetry and answers nobody is waiting for are not taken as responses to anything
+        assertFalse(mRequests.onReceive("Zap".getBytes()));
+        assertTrue(mRequests.onReceive(response(batteryId, 0, 9)));
+        assertEquals(2, mResults.size());
+    }
+
+    @Test
+    public void robotErrorFailsOnlyItsRequest() {
+        final RobotRequests.Request battery = request(RobotRequests.TYPE_BATTERY, 500);
+        final int id = send()[1];
+        assertTrue(mRequests.onReceive(response(id, 5, 0)));
+        assertTrue(battery.isDone());
+        assertEquals(5, battery.getStatus());
+        assertEquals("type 1 failed " + RobotRequests.REASON_ROBOT_ERROR, mResults.get(0));
+    }
+
+    @Test
+    public void requestsTimeOutWhetherSentOrNot() {
+        final RobotRequests.Request sent = request(RobotRequests.TYPE_BATTERY, 100);
+        send();
+        final RobotRequests.Request queued = request(RobotRequests.TYPE_FIRMWARE_CONFIG, 300);
+        mNow += 99;
+        assertEquals(100, mRequests.expire());
+        mNow += 1;
+        assertEquals(300, mRequests.expire());
+        assertTrue(sent.isDone());
+        assertFalse(queued.isDone());
+        assertEquals(0, mRequests.getInFlightCount());
+
+        mNow += 200;
+        assertEquals(Long.MAX_VALUE, mRequests.expire());
+        assertTrue(queued.isDone());
+        assertEquals(0, mRequests.getWaitingCount());
+        assertEquals("type 1 failed " + RobotRequests.REASON_TIMEOUT, mResults.get(0));
+        assertEquals("type 2 failed " + RobotRequests.REASON_TIMEOUT, mResults.get(1));
+    }
+
+    @Test
+    public void cancelWhileQueuedOrBeingSent() throws Exception {
+        final RobotRequests.Request first = request(RobotRequests.TYPE_BATTERY, 500);
+        final RobotRequests.Request second = request(RobotRequests.TYPE_FIRMWARE_CONFIG, 500);
+        assertTrue(second.cancel(false));
+        assertTrue(second.isCancelled());
+        assertFalse(second.cancel(false));
+
+        // The scheduler has taken the first frame when the main thread cancels it
+        final byte[] taken = mRequests.peekBackground();
+        assertTrue(first.cancel(false));
+        final RobotRequests.Request third = request(RobotRequests.TYPE_BATTERY, 500);
+        mRequests.onBackgroundSent(taken, mNow);
+        assertEquals(0, mRequests.getInFlightCount());
+        assertEquals(1, mRequests.getWaitingCount());
+
+        // A late answer to the cancelled frame settles nothing
+        assertTrue(mRequests.onReceive(response(taken[1], 0, 1)));
+        assertFalse(third.isDone());
+
+        final byte[] next = send();
+        assertNotSame(taken, next);
+        assertTrue(mRequests.onReceive(response(next[1], 0, 4)));
+        assertArrayEquals(new byte[] {4}, third.get());
+        assertEquals("type 2 failed " + RobotRequests.REASON_CANCELLED, mResults.get(0));
+        assertEquals("type 1 failed " + RobotRequests.REASON_CANCELLED, mResults.get(1));
+        assertEquals("type 1 answered 4", mResults.get(2));
+    }
+
+    @Test
+    public void expiryBetweenPeekAndSendLeavesTheNextRequestQueued() {
+        request(RobotRequests.TYPE_BATTERY, 10);
+        final RobotRequests.Request later = request(RobotRequests.TYPE_FIRMWARE_CONFIG, 500);
+        final byte[] taken = mRequests.peekBackground();
+        mNow += 10;
+        mRequests.expire();
+        mRequests.onBackgroundSent(taken, mNow);
+        assertFalse(later.isDone());
+        assertEquals(1, mRequests.getWaitingCount());
+        assertEquals(0, mRequests.getInFlightCount());
+        assertSame(mRequests.peekBackground(), mRequests.peekBackground());
+    }
+
+    private RobotRequests.Request request(int type, long timeoutMillis) {
+        return mRequests.request(type, new byte[0], timeoutMillis, mCallback);
+    }
+
+    // Takes the next frame and sends it, as the scheduler does
+    private byte[] send() {
+        final byte[] frame = mRequests.peekBackground();
+        mRequests.onBackgroundSent(frame, mNow);
+        return frame;
+    }
+
+    private static byte[] response(int id, int status, int value) {
+        return new byte[] {(byte) RobotRequests.RESPONSE_MAGIC, (byte) id, (byte) status, 1,
+                (byte) value};
+    }
+}
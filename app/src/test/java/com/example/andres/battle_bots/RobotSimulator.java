@@ -0,0 +1,354 @@
+package com.example.andres.battle_bots;
+
+import java.util.ArrayDeque;
+
+/**
+ * Behavioral model of the robot end of the link, for measuring throughput without hardware:
+ *
+ *   app write --(BLE, air latency)--> Bluefruit UART bridge FIFO
+ *             --(UART, baud rate)--> Arduino serial buffer (64 bytes on an Uno)
+ *             --(one loop() pass every loop period)--> command parser --> motor state
+ *
+ * The sketch reads a few commands per pass of loop() and then spends the rest of the period
+ * driving the motors, which is why commands sent in quick succession pile up. Bytes that arrive
+ * while a buffer is full are lost, exactly as the UART driver loses them, and a command missing a
+ * byte is skipped when the parser resynchronizes.
+ *
+ * It understands the ASCII and compact codecs, but not the acknowledged framing of
+ * {@link ReliableLink}. Used as the {@link CommandScheduler.Transport}, every write is accepted
+ * and completes after the air latency, like a write with response. Time is in microseconds and
+ * only moves through {@link #advanceTo(long)}.
+ */
+public class RobotSimulator implements CommandScheduler.Transport {
+
+    // What the hardware and firmware look like. The defaults are a Bluefruit LE UART Friend at its
+    // factory 9600 baud in front of an Uno whose sketch handles one command per 100 ms pass of
+    // loop(); set them to match the robot being modelled.
+    public static class Config {
+        public int baudRate = 9600;
+        public int bridgeBufferBytes = 1024;
+        public int serialBufferBytes = 64;
+        public long loopPeriodMicros = 100000;
+        public int commandsPerLoop = 1;
+        // From handing a write to the stack until the bridge has the bytes
+        public long airLatencyMicros = 15000;
+        // A command applied this long after the app wrote it counts as late
+        public long lateAfterMicros = 250000;
+        public boolean compact;
+    }
+
+    // Outcome of a run
+    public static class Report {
+        public long commandsSent;
+        public long commandsApplied;
+        public long commandsLate;
+        // Sent but lost to overflow, and no longer anywhere in the pipeline
+        public long commandsDropped;
+        public long bytesOverflowed;
+        public long peakSerialBytes;
+        public long meanLatencyMillis;
+        public long p99LatencyMillis;
+        public long maxLatencyMillis;
+
+        public boolean isClean() {
+            return commandsLate == 0 && commandsDropped == 0 && bytesOverflowed == 0;
+        }
+
+        @Override
+        public String toString() {
+            return "sent=" + commandsSent + " applied=" + commandsApplied
+                    + " late=" + commandsLate + " dropped=" + commandsDropped
+                    + " overflowed=" + bytesOverflowed + "B peakSerial=" + peakSerialBytes
+                    + "B latency mean=" + meanLatencyMillis + " p99=" + p99LatencyMillis
+                    + " max=" + maxLatencyMillis + "ms";
+        }
+    }
+
+    // Called when a write has reached the robot side, the point a write with response completes
+    public interface WriteListener {
+        void onWriteComplete();
+    }
+
+    private static final String ASCII_BUTTONS = "urdl";
+
+    private final Config mConfig;
+    private final long mByteMicros;
+    private WriteListener mWriteListener;
+
+    private long mNow;
+
+    // Frames on the air: the time they reach the bridge, and the bytes with their write time
+    private final ArrayDeque<long[]> mDeliveries = new ArrayDeque<long[]>();
+
+    private final ByteRing mBridge;
+    private final ByteRing mSerial;
+    private long mNextByteAt = Long.MAX_VALUE;
+    private long mNextLoopAt;
+
+    // Parser state: bytes of the command collected so far and when the first one was written
+    private final int[] mCommand = new int[3];
+    private int mCommandLength;
+    private long mCommandSentAt;
+    private final Parser mCounter = new Parser();
+
+    private int mMotorMask;
+
+    private long mCommandsSent;
+    private long mCommandsApplied;
+    private long mCommandsLate;
+    private long mBytesOverflowed;
+    private long mPeakSerialBytes;
+    private final MetricsRegistry.Histogram mLatency;
+
+    public RobotSimulator(Config config) {
+        mConfig = config;
+        // Start bit, 8 data bits, stop bit
+        mByteMicros = 10000000L / config.baudRate;
+        mBridge = new ByteRing(config.bridgeBufferBytes);
+        mSerial = new ByteRing(config.serialBufferBytes);
+        mNextLoopAt = config.loopPeriodMicros;
+        mLatency = new MetricsRegistry(Clock.SYSTEM).histogram("latency",
+                10, 20, 50, 100, 150, 200, 250, 300, 400, 500, 750, 1000, 2000, 5000);
+    }
+
+    public void setWriteListener(WriteListener listener) {
+        mWriteListener = listener;
+    }
+
+    public long nowMicros() {
+        return mNow;
+    }
+
+    @Override
+    public boolean write(byte[] frame) {
+        final long[] delivery = new long[frame.length + 1];
+        delivery[0] = mNow + mConfig.airLatencyMicros;
+        for (int i = 0; i < frame.length; i++) {
+            delivery[i + 1] = frame[i] & 0xFF;
+        }
+        mDeliveries.add(delivery);
+        mCommandsSent += mCounter.count(frame, mConfig.compact);
+        return true;
+    }
+
+    // Runs the robot side up to the given time, in order of events
+    public void advanceTo(long micros) {
+        while (true) {
+            final long delivery = mDeliveries.isEmpty() ? Long.MAX_VALUE : mDeliveries.peek()[0];
+            final long next = Math.min(delivery, Math.min(mNextByteAt, mNextLoopAt));
+            if (next > micros) break;
+            mNow = next;
+            if (next == delivery) {
+                deliver(mDeliveries.poll());
+            } else if (next == mNextByteAt) {
+                shiftByte();
+            } else {
+                runLoop();
+            }
+        }
+        mNow = micros;
+    }
+
+    private void deliver(long[] delivery) {
+        final long sentAt = delivery[0] - mConfig.airLatencyMicros;
+        for (int i = 1; i < delivery.length; i++) {
+            if (!mBridge.offer((int) delivery[i], sentAt)) {
+                mBytesOverflowed++;
+            }
+        }
+        if (mNextByteAt == Long.MAX_VALUE && !mBridge.isEmpty()) {
+            mNextByteAt = mNow + mByteMicros;
+        }
+        if (mWriteListener != null) {
+            mWriteListener.onWriteComplete();
+        }
+    }
+
+    // One byte has crossed the UART into the Arduino's serial buffer
+    private void shiftByte() {
+        final long sentAt = mBridge.peekSentAt();
+        final int value = mBridge.poll();
+        if (!mSerial.offer(value, sentAt)) {
+            mBytesOverflowed++;
+        }
+        mPeakSerialBytes = Math.max(mPeakSerialBytes, mSerial.size());
+        mNextByteAt = mBridge.isEmpty() ? Long.MAX_VALUE : mNow + mByteMicros;
+    }
+
+    // One pass of loop(): parse up to commandsPerLoop commands from what has arrived
+    private void runLoop() {
+        int parsed = 0;
+        while (parsed < mConfig.commandsPerLoop && !mSerial.isEmpty()) {
+            final long sentAt = mSerial.peekSentAt();
+            if (feed(mSerial.poll(), sentAt)) {
+                parsed++;
+            }
+        }
+        mNextLoopAt += mConfig.loopPeriodMicros;
+    }
+
+    // Returns true when the byte completed a command
+    private boolean feed(int value, long sentAt) {
+        if (mCommandLength == 0) {
+            mCommandSentAt = sentAt;
+        }
+        mCommand[mCommandLength++] = value;
+        final int state = mConfig.compact
+                ? Parser.checkCompact(mCommand, mCommandLength)
+                : Parser.checkAscii(mCommand, mCommandLength);
+        if (state == Parser.INCOMPLETE) {
+            return false;
+        }
+        if (state == Parser.INVALID) {
+            // A byte went missing: drop the partial command, keeping this byte if it starts one
+            final boolean restart = mCommandLength > 1 && isStart(value);
+            mCommandLength = 0;
+            return restart && feed(value, sentAt);
+        }
+        apply();
+        mCommandLength = 0;
+        return true;
+    }
+
+    private boolean isStart(int value) {
+        return mConfig.compact ? (value & 0x80) != 0 : ASCII_BUTTONS.indexOf(value) >= 0;
+    }
+
+    private void apply() {
+        if (mConfig.compact) {
+            final int first = mCommand[0];
+            if (first == 0xA0) {
+                mMotorMask = 0;
+            } else if (first == 0xB0) {
+                mMotorMask = mCommand[1] | (mCommand[2] << 8);
+            } else {
+                setChannel(first & 0x0F, (first & 0x10) != 0);
+            }
+        } else {
+            final int channel = ASCII_BUTTONS.indexOf(mCommand[0]) + 4 * (mCommand[1] - '1');
+            setChannel(channel, mCommand[2] == 'n');
+        }
+        mCommandsApplied++;
+        final long latency = mNow - mCommandSentAt;
+        mLatency.record(latency / 1000);
+        if (latency > mConfig.lateAfterMicros) {
+            mCommandsLate++;
+        }
+    }
+
+    private void setChannel(int channel, boolean on) {
+        mMotorMask = on ? mMotorMask | (1 << channel) : mMotorMask & ~(1 << channel);
+    }
+
+    // Bit i set while the robot drives channel i
+    public int getMotorMask() {
+        return mMotorMask;
+    }
+
+    // Nothing left anywhere between the app and the motors
+    public boolean isIdle() {
+        return mDeliveries.isEmpty() && mBridge.isEmpty() && mSerial.isEmpty()
+                && mCommandLength == 0;
+    }
+
+    // Lets the robot work through everything already sent, giving up after a simulated minute
+    public void drain() {
+        final long giveUpAt = mNow + 60000000L;
+        while (!isIdle() && mNow < giveUpAt) {
+            advanceTo(mNow + mConfig.loopPeriodMicros);
+        }
+    }
+
+    // Meant for an idle pipeline (see drain()): commands still on their way count as dropped
+    public Report report() {
+        final Report report = new Report();
+        report.commandsSent = mCommandsSent;
+        report.commandsApplied = mCommandsApplied;
+        report.commandsLate = mCommandsLate;
+        report.bytesOverflowed = mBytesOverflowed;
+        report.peakSerialBytes = mPeakSerialBytes;
+        report.meanLatencyMillis = mLatency.getMean();
+        report.p99LatencyMillis = mLatency.getPercentile(0.99);
+        report.maxLatencyMillis = mLatency.getMax();
+        report.commandsDropped = mCommandsSent - mCommandsApplied;
+        return report;
+    }
+
+    // Frame boundaries of the two protocols, shared by the robot's parser and the sent count
+    static class Parser {
+        static final int INCOMPLETE = 0;
+        static final int COMPLETE = 1;
+        static final int INVALID = 2;
+
+        private final int[] mScratch = new int[3];
+
+        static int checkAscii(int[] command, int length) {
+            if (ASCII_BUTTONS.indexOf(command[0]) < 0) return INVALID;
+            if (length < 2) return INCOMPLETE;
+            if (command[1] != '1' && command[1] != '2') return INVALID;
+            if (length < 3) return INCOMPLETE;
+            return command[2] == 'n' || command[2] == 'f' ? COMPLETE : INVALID;
+        }
+
+        static int checkCompact(int[] command, int length) {
+            final int first = command[0];
+            if ((first & 0xE0) == 0x80 || first == 0xA0) return COMPLETE;
+            if (first != 0xB0) return INVALID;
+            return length < 3 ? INCOMPLETE : COMPLETE;
+        }
+
+        int count(byte[] frame, boolean compact) {
+            int commands = 0;
+            int length = 0;
+            for (byte b : frame) {
+                mScratch[length++] = b & 0xFF;
+                final int state = compact ? checkCompact(mScratch, length)
+                        : checkAscii(mScratch, length);
+                if (state == COMPLETE) commands++;
+                if (state != INCOMPLETE) length = 0;
+            }
+            return commands;
+        }
+    }
+
+    // Fixed-size FIFO of bytes, each tagged with the time the app wrote it
+    private static class ByteRing {
+        private final int[] mValues;
+        private final long[] mSentAt;
+        private int mHead;
+        private int mSize;
+
+        ByteRing(int capacity) {
+            mValues = new int[capacity];
+            mSentAt = new long[capacity];
+        }
+
+        boolean offer(int value, long sentAt) {
+            if (mSize == mValues.length) return false;
+            final int tail = (mHead + mSize) % mValues.length;
+            mValues[tail] = value;
+            mSentAt[tail] = sentAt;
+            mSize++;
+            return true;
+        }
+
+        long peekSentAt() {
+            return mSentAt[mHead];
+        }
+
+        int poll() {
+            final int value = mValues[mHead];
+            mHead = (mHead + 1) % mValues.length;
+            mSize--;
+            return value;
+        }
+
+        boolean isEmpty() {
+            return mSize == 0;
+        }
+
+        int size() {
+            return mSize;
+        }
+    }
+}
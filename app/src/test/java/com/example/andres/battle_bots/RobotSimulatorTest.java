@@ -0,0 +1,178 @@
+package com.example.andres.battle_bots;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the app's command bytes against {@link RobotSimulator} to find how fast the robot can
+ * really take them, and checks the command pipeline's pacing against that.
+ */
+public class RobotSimulatorTest {
+
+    private static final long RUN_MILLIS = 30000;
+    private static final long DRIVER_INTERVAL_MS = 100;
+
+    @Test
+    public void singlePressReachesTheMotors() {
+        final RobotSimulator robot = new RobotSimulator(new RobotSimulator.Config());
+        robot.write(ProtocolCodecs.ascii().encodeButton(2, true));
+        robot.drain();
+
+        assertEquals(1 << 2, robot.getMotorMask());
+        final RobotSimulator.Report report = robot.report();
+        assertEquals(1, report.commandsApplied);
+        assertTrue(report.toString(), report.isClean());
+    }
+
+    @Test
+    public void stopAllFramesClearEveryChannel() {
+        for (ProtocolCodec codec : new ProtocolCodec[] {
+                ProtocolCodecs.ascii(), ProtocolCodecs.forVersion(ProtocolCodecs.VERSION_COMPACT)}) {
+            final RobotSimulator.Config config = new RobotSimulator.Config();
+            config.compact = codec != ProtocolCodecs.ascii();
+            config.commandsPerLoop = 8;
+            final RobotSimulator robot = new RobotSimulator(config);
+            for (int channel = 0; channel < 8; channel++) {
+                robot.write(codec.encodeButton(channel, true));
+            }
+            robot.drain();
+            assertEquals(codec.getName(), 0xFF, robot.getMotorMask());
+            for (byte[] frame : codec.encodeStopAll()) {
+                robot.write(frame);
+            }
+            robot.drain();
+            assertEquals(codec.getName(), 0, robot.getMotorMask());
+        }
+    }
+
+    /**
+     * Sends commands at a fixed interval, faster and faster, and reports the shortest interval
+     * the robot keeps up with.
+     */
+    @Test
+    public void findMaximumSafeCommandRate() {
+        for (boolean compact : new boolean[] {false, true}) {
+            final ProtocolCodec codec = compact
+                    ? ProtocolCodecs.forVersion(ProtocolCodecs.VERSION_COMPACT)
+                    : ProtocolCodecs.ascii();
+            long safeInterval = -1;
+            for (long interval = 200; interval >= 10; interval -= 10) {
+                final RobotSimulator.Config config = new RobotSimulator.Config();
+                config.compact = compact;
+                final RobotSimulator.Report report = runFixedInterval(config, codec, interval);
+                System.out.println(String.format("%s every %d ms: %s",
+                        codec.getName(), interval, report));
+                if (!report.isClean()) break;
+                safeInterval = interval;
+            }
+            System.out.println(String.format("%s: max safe rate %.1f commands/s (%d ms apart)",
+                    codec.getName(), 1000.0 / safeInterval, safeInterval));
+
+            // The hand-tuned motion pace must hold up against the default robot
+            assertTrue(codec.getName(), safeInterval > 0
+                    && safeInterval <= CommandScheduler.MOTION_INTERVAL_MS);
+            // ...and so must the fastest pace the rate controller may pick
+            assertTrue(codec.getName(), SendRateController.MIN_INTERVAL_MS >= safeInterval);
+        }
+    }
+
+    private static RobotSimulator.Report runFixedInterval(RobotSimulator.Config config,
+                                                          ProtocolCodec codec, long interval) {
+        final RobotSimulator robot = new RobotSimulator(config);
+        final Random random = new Random(interval);
+        int mask = 0;
+        for (long t = 0; t < RUN_MILLIS; t += interval) {
+            robot.advanceTo(t * 1000);
+            final int channel = random.nextInt(8);
+            final boolean pressed = (mask & (1 << channel)) == 0;
+            mask ^= 1 << channel;
+            robot.write(codec.encodeButton(channel, pressed));
+        }
+        robot.drain();
+        final RobotSimulator.Report report = robot.report();
+        if (report.isClean()) {
+            assertEquals("motors disagree with the app", mask, robot.getMotorMask());
+        }
+        return report;
+    }
+
+    /**
+     * A hard-driving player, ten control changes a second, through the real scheduler at its
+     * default pace: nothing overflows and the robot ends up exactly where the driver left the
+     * controls. Releases go out in the stop lane, which is paced for responsiveness rather than
+     * for the robot, so much faster input than this does overrun the default robot.
+     */
+    @Test
+    public void schedulerPacingKeepsTheRobotInSync() {
+        final RobotSimulator.Config config = new RobotSimulator.Config();
+        final RobotSimulator robot = new RobotSimulator(config);
+        final long[] now = new long[1];
+        final long[] wakeAt = {Long.MAX_VALUE};
+        final Clock clock = new Clock() {
+            @Override
+            public long nowMillis() {
+                return now[0];
+            }
+        };
+        final CommandScheduler scheduler = new CommandScheduler(robot,
+                new CommandScheduler.Waker() {
+                    @Override
+                    public void wakeUpIn(long delayMillis) {
+                        wakeAt[0] = Math.min(wakeAt[0], now[0] + delayMillis);
+                    }
+                }, clock);
+        robot.setWriteListener(new RobotSimulator.WriteListener() {
+            @Override
+            public void onWriteComplete() {
+                scheduler.onWriteComplete(true);
+            }
+        });
+
+        final ProtocolCodec codec = ProtocolCodecs.ascii();
+        final Random random = new Random(42);
+        int mask = 0;
+        int presses = 0;
+        for (now[0] = 0; now[0] < RUN_MILLIS; now[0]++) {
+            robot.advanceTo(now[0] * 1000);
+            if (now[0] % DRIVER_INTERVAL_MS == 0) {
+                final int channel = random.nextInt(8);
+                final boolean pressed = (mask & (1 << channel)) == 0;
+                mask ^= 1 << channel;
+                presses++;
+                scheduler.submit(channel, pressed
+                        ? CommandScheduler.PRIORITY_MOTION : CommandScheduler.PRIORITY_STOP,
+                        codec.encodeButton(channel, pressed));
+            }
+            if (wakeAt[0] <= now[0]) {
+                wakeAt[0] = Long.MAX_VALUE;
+                scheduler.pump();
+            }
+        }
+        // Let go of everything, as leaving the screen does, and let the robot catch up
+        for (int channel = 0; channel < 8; channel++) {
+            if ((mask & (1 << channel)) != 0) {
+                scheduler.submit(channel, CommandScheduler.PRIORITY_STOP,
+                        codec.encodeButton(channel, false));
+            }
+        }
+        for (; scheduler.getQueueDepth() > 0 || wakeAt[0] != Long.MAX_VALUE; now[0]++) {
+            robot.advanceTo(now[0] * 1000);
+            if (wakeAt[0] <= now[0]) {
+                wakeAt[0] = Long.MAX_VALUE;
+                scheduler.pump();
+            }
+        }
+        robot.drain();
+
+        final RobotSimulator.Report report = robot.report();
+        System.out.println(String.format("scheduler, %d driver commands: %s", presses, report));
+        assertEquals("stuck motors", 0, robot.getMotorMask());
+        assertEquals(0, report.commandsDropped);
+        assertEquals(0, report.bytesOverflowed);
+        assertEquals(report.commandsSent, report.commandsApplied);
+    }
+}
@@ -0,0 +1,122 @@
+package com.example.andres.battle_bots;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link ScanEngine}'s schedules on a simulated clock and checks when the radio scans, when
+ * the engine stops early and the discovery times it records.
+ */
+public class ScanEngineTest {
+
+    private long mNow;
+    private boolean mScanning;
+    private long mScanMillis;
+    private long mScanOnAt;
+    private final List<Boolean> mStates = new ArrayList<Boolean>();
+    private final List<Runnable> mTasks = new ArrayList<Runnable>();
+    private final List<Long> mTaskTimes = new ArrayList<Long>();
+    private ScanEngine mEngine;
+
+    @Before
+    public void setUp() {
+        mEngine = new ScanEngine(new ScanEngine.Radio() {
+            @Override
+            public void startScan() {
+                mScanning = true;
+                mScanOnAt = mNow;
+            }
+
+            @Override
+            public void stopScan() {
+                mScanning = false;
+                mScanMillis += mNow - mScanOnAt;
+            }
+        }, new ScanEngine.Timer() {
+            @Override
+            public void postDelayed(Runnable task, long delayMillis) {
+                mTasks.add(task);
+                mTaskTimes.add(mNow + delayMillis);
+            }
+
+            @Override
+            public void removeCallbacks(Runnable task) {
+                for (int i = mTasks.size() - 1; i >= 0; i--) {
+                    if (mTasks.get(i) == task) {
+                        mTasks.remove(i);
+                        mTaskTimes.remove(i);
+                    }
+                }
+            }
+        }, new Clock() {
+            @Override
+            public long nowMillis() {
+                return mNow;
+            }
+        }, new ScanEngine.Listener() {
+            @Override
+            public void onScanStateChanged(boolean active) {
+                mStates.add(active);
+            }
+        });
+    }
+
+    @Test
+    public void stopsAsSoonAsEveryTargetWasSeen() {
+        mEngine.start(ScanEngine.AGGRESSIVE_THEN_BACKOFF, 2);
+        advanceTo(700);
+        mEngine.onDeviceSeen("robot-a", true);
+        mEngine.onDeviceSeen("stranger", false);
+        advanceTo(1500);
+        mEngine.onDeviceSeen("robot-a", true);
+        assertTrue(mEngine.isActive());
+
+        advanceTo(2300);
+        mEngine.onDeviceSeen("robot-b", true);
+        assertFalse(mEngine.isActive());
+        assertFalse(mScanning);
+        assertEquals(700, mEngine.getFirstTargetMillis());
+        assertEquals(2300, mEngine.getAllTargetsMillis());
+        assertEquals(2300, mScanMillis);
+        assertTrue(mTasks.isEmpty());
+        assertEquals(2, mStates.size());
+        assertFalse(mStates.get(1));
+    }
+
+    @Test
+    public void runsTheWholeScheduleWithoutATarget() {
+        mEngine.start(ScanEngine.AGGRESSIVE_THEN_BACKOFF, 0);
+        advanceTo(1000);
+        mEngine.onDeviceSeen("robot-a", true);
+        advanceTo(60000);
+        assertFalse(mEngine.isActive());
+        assertEquals(1000, mEngine.getFirstTargetMillis());
+        assertEquals(-1, mEngine.getAllTargetsMillis());
+        // The aggressive window, then five short ones
+        assertEquals(4000 + 5 * 1000, mScanMillis);
+    }
+
+    // Runs every task due up to the given time, in order
+    private void advanceTo(long time) {
+        while (true) {
+            int next = -1;
+            for (int i = 0; i < mTasks.size(); i++) {
+                if (mTaskTimes.get(i) <= time
+                        && (next < 0 || mTaskTimes.get(i) < mTaskTimes.get(next))) {
+                    next = i;
+                }
+            }
+            if (next < 0) break;
+            mNow = mTaskTimes.remove(next);
+            mTasks.remove(next).run();
+        }
+        mNow = time;
+    }
+}
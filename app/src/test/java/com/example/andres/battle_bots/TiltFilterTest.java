@@ -0,0 +1,138 @@
+package com.example.andres.battle_bots;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays a recorded sensor trace through the tilt filter and checks what would reach the link:
+ * only level changes, never faster than the cap, and a small fraction of the sensor rate.
+ */
+public class TiltFilterTest {
+
+    private static final String TRACE = "tilt/drive_trace.csv";
+    private static final int REPLAYS = 200;
+
+    private long[] mTimes;
+    private float[] mSteer;
+    private float[] mThrottle;
+    private int mCount;
+
+    @Before
+    public void loadTrace() throws IOException {
+        final InputStream in = getClass().getClassLoader().getResourceAsStream(TRACE);
+        assertNotNull("missing trace " + TRACE, in);
+        mTimes = new long[1024];
+        mSteer = new float[1024];
+        mThrottle = new float[1024];
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("#") || line.startsWith("t_ms")) continue;
+                final String[] fields = line.split(",");
+                if (mCount == mTimes.length) grow();
+                mTimes[mCount] = Long.parseLong(fields[0]);
+                mSteer[mCount] = Float.parseFloat(fields[1]);
+                mThrottle[mCount] = Float.parseFloat(fields[2]);
+                mCount++;
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void grow() {
+        final int size = mTimes.length * 2;
+        final long[] times = new long[size];
+        final float[] steer = new float[size];
+        final float[] throttle = new float[size];
+        System.arraycopy(mTimes, 0, times, 0, mCount);
+        System.arraycopy(mSteer, 0, steer, 0, mCount);
+        System.arraycopy(mThrottle, 0, throttle, 0, mCount);
+        mTimes = times;
+        mSteer = steer;
+        mThrottle = throttle;
+    }
+
+    @Test
+    public void outputChangesAreRateCappedAndSparse() {
+        final TiltFilter filter = new TiltFilter(TiltFilter.DEFAULT_MIN_INTERVAL_MS);
+        long lastChange = Long.MIN_VALUE / 2;
+        int lastSteer = 0;
+        int lastThrottle = 0;
+        for (int i = 0; i < mCount; i++) {
+            if (filter.onSample(mTimes[i], mSteer[i], mThrottle[i])) {
+                assertTrue("changed after " + (mTimes[i] - lastChange) + " ms",
+                        mTimes[i] - lastChange >= TiltFilter.DEFAULT_MIN_INTERVAL_MS);
+                assertTrue("reported a change that is none",
+                        filter.getLevel(TiltFilter.AXIS_STEER) != lastSteer
+                                || filter.getLevel(TiltFilter.AXIS_THROTTLE) != lastThrottle);
+                lastChange = mTimes[i];
+                lastSteer = filter.getLevel(TiltFilter.AXIS_STEER);
+                lastThrottle = filter.getLevel(TiltFilter.AXIS_THROTTLE);
+            }
+        }
+
+        final double seconds = (mTimes[mCount - 1] - mTimes[0]) / 1000.0;
+        final double changesPerSecond = filter.getOutputChangeCount() / seconds;
+        System.out.println(String.format("tilt trace: %d samples (%.0f/s), %d output changes (%.2f/s)",
+                mCount, mCount / seconds, filter.getOutputChangeCount(), changesPerSecond));
+
+        assertEquals(mCount, filter.getSampleCount());
+        // The trace does tilt, so something must come out, but hand tremor and vibration must not
+        assertTrue("no output at all", filter.getOutputChangeCount() > 0);
+        assertTrue("more than 1 change per 20 samples", filter.getOutputChangeCount() * 20 < mCount);
+        // The trace ends level, so the robot is left stopped
+        assertEquals(0, filter.getLevel(TiltFilter.AXIS_STEER));
+        assertEquals(0, filter.getLevel(TiltFilter.AXIS_THROTTLE));
+    }
+
+    @Test
+    public void levelPhoneStaysStopped() {
+        final TiltFilter filter = new TiltFilter(TiltFilter.DEFAULT_MIN_INTERVAL_MS);
+        // Noise well inside the deadband, alternating sign every sample
+        for (int i = 0; i < 1000; i++) {
+            final float noise = (i & 1) == 0 ? 0.5f : -0.5f;
+            assertTrue(!filter.onSample(i * 5, noise, -noise));
+        }
+        assertEquals(0, filter.getOutputChangeCount());
+    }
+
+    @Test
+    public void fullTiltReachesTopLevel() {
+        final TiltFilter filter = new TiltFilter(TiltFilter.DEFAULT_MIN_INTERVAL_MS);
+        for (int i = 0; i < 200; i++) {
+            filter.onSample(i * 5, TiltFilter.GRAVITY, -TiltFilter.GRAVITY);
+        }
+        assertEquals(TiltFilter.STEPS, filter.getLevel(TiltFilter.AXIS_STEER));
+        assertEquals(-TiltFilter.STEPS, filter.getLevel(TiltFilter.AXIS_THROTTLE));
+    }
+
+    @Test
+    public void replayCost() {
+        final TiltFilter filter = new TiltFilter(TiltFilter.DEFAULT_MIN_INTERVAL_MS);
+        long offset = 0;
+        final long span = mTimes[mCount - 1] + 5;
+        final long start = System.nanoTime();
+        for (int replay = 0; replay < REPLAYS; replay++) {
+            for (int i = 0; i < mCount; i++) {
+                filter.onSample(offset + mTimes[i], mSteer[i], mThrottle[i]);
+            }
+            offset += span;
+        }
+        final long elapsed = System.nanoTime() - start;
+        final long samples = (long) REPLAYS * mCount;
+        System.out.println(String.format("tilt filter: %.1f ns/sample over %d samples",
+                (double) elapsed / samples, samples));
+        assertEquals(samples, filter.getSampleCount());
+    }
+}